@@ -0,0 +1,612 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * BinaryProtocol is the compact alternative to JSON-RPC over HTTP. It carries the same requests and responses, so the
+ * same Dispatchers answer them, but every message is a varint length followed by a tagged binary body: no HTTP head,
+ * method names and well known param names sent as small numbers, integers as zigzag varints, strings as a length
+ * and their UTF-8 bytes and IDs made by IdGenerator as their 8 bytes. Events and Topics have tags of their own and
+ * come out of a decoded message as Event and Topic objects, which JsonCodec.event and JsonCodec.topic take like the
+ * maps of a JSON message.
+ *
+ * A client picks the protocol per connection. A binary connection starts with the MAGIC byte, which no HTTP request
+ * starts with, and the highest version the client speaks; the server answers with MAGIC and the version both speak,
+ * or 0 if there is none and closes the connection. The EventManager tells the protocols apart by the first byte, so
+ * it serves both on the same port at once.
+ *
+ * A message body is a kind byte followed by
+ *   request: method, params, id
+ *   result:  result, id
+ *   error:   code, message, data, id
+ * The id comes last so an EncodedRequest can share everything before it between clients, like it does for JSON.
+ */
+package edu.rit.cs;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+import com.thetransactioncompany.jsonrpc2.server.Dispatcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class BinaryProtocol {
+
+    public static final int MAGIC = 0xB7;
+    // the highest version this side speaks. Version 1 is the first one.
+    public static final int VERSION = 1;
+    // larger frames are treated as a broken stream rather than allocated.
+    public static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+    private static final int REQUEST = 1;
+    private static final int RESULT = 2;
+    private static final int ERROR = 3;
+
+    private static final int NULL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int INT = 3;
+    private static final int DOUBLE = 4;
+    private static final int STRING = 5;
+    private static final int LIST = 6;
+    private static final int MAP = 7;
+    private static final int TOPIC = 8;
+    private static final int EVENT = 9;
+    // any other value, as its JSON bytes.
+    private static final int JSON = 10;
+    // a string that is an IdGenerator ID, as the ID's 8 bytes.
+    private static final int ID = 11;
+
+    // method names sent by number in version 1, starting at 1. 0 means the name follows as a string. Only ever append.
+    private static final String[] METHODS = {null,
+            "publisherLogin", "publisherLogoff", "subscriberLogin", "subscriberLogoff",
+            "advertiseTopic", "publishEvent", "publishEvents",
+            "subscribeTopic", "unsubscribeTopic", "unsubscribeAll", "getSubscriptions",
+            "getAllTopics", "getTopicFromTopicName", "getTopicFromKeyword", "searchTopics",
+            "fetchEvents", "commitOffset", "checkForPendingNotifications",
+            "receiveTopic", "receiveEvent", "receiveEvents", "receivePendingNotifications",
+            "getClusterNodes", "addClusterNode", "adoptTopic", "syncClusterNode",
+            PushChannelServer.ATTACH_METHOD};
+
+    // map keys sent by number in version 1, like the method names.
+    private static final String[] NAMES = {null,
+            "id", "topic", "title", "content", "name", "keywords", "event", "events", "topicName",
+            "publisherID", "subscriberID", "machineID", "ipAddress", "clientID",
+            "qos", "retrails", "ack", "filter", "pulling", "mode",
+            "offset", "nextOffset", "fromOffset", "maxEvents", "maxWaitMs", "limit", "prefix", "total",
+            "keyword", "topics", "subscriptions", "pendingNotifications", "pattern", "patterns",
+            "node", "nodes", "virtualNodes", "subscribers", "publishers", "version",
+            "topicId", "headers", "timestamp"};
+
+    private static final Map<String, Integer> METHOD_CODES = codes(METHODS);
+    private static final Map<String, Integer> NAME_CODES = codes(NAMES);
+
+    private static Map<String, Integer> codes(String[] table) {
+        Map<String, Integer> codes = new HashMap<>();
+        for (int i = 1; i < table.length; i++) {
+            codes.put(table[i], i);
+        }
+        return codes;
+    }
+
+    // the version both sides speak, 0 if there is none.
+    public static int negotiate(int clientVersion) {
+        return clientVersion < 1 ? 0 : Math.min(clientVersion, VERSION);
+    }
+
+    /*
+     * the handshake both sides send: MAGIC and a version, the highest one from the client and the agreed one from
+     * the server.
+     */
+    public static byte[] hello(int version) {
+        Encoder hello = new Encoder();
+        hello.write(MAGIC);
+        hello.varint(version);
+        return hello.toByteArray();
+    }
+
+    /*
+     * Reads a handshake from the buffer, which must be in read mode. Returns its version and consumes it, or -1 and
+     * leaves the buffer untouched if it hasn't fully arrived yet.
+     */
+    public static int parseHello(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 2) {
+            return -1;
+        }
+        if ((buffer.get(buffer.position()) & 0xFF) != MAGIC) {
+            throw new IOException("Not a binary protocol handshake");
+        }
+        long[] version = peekVarint(buffer, buffer.position() + 1);
+        if (version == null) {
+            return -1;
+        }
+        buffer.position((int) version[1]);
+        return (int) Math.min(version[0], Integer.MAX_VALUE);
+    }
+
+    public static int readHello(InputStream in) throws IOException {
+        int magic = in.read();
+        if (magic < 0) {
+            throw new EOFException("Connection closed during the handshake");
+        }
+        if (magic != MAGIC) {
+            throw new IOException("Not a binary protocol handshake");
+        }
+        long version = readVarint(in);
+        if (version < 0) {
+            throw new EOFException("Connection closed during the handshake");
+        }
+        return (int) Math.min(version, Integer.MAX_VALUE);
+    }
+
+    // the body with its length in front.
+    public static byte[] frame(byte[] body) {
+        Encoder frame = new Encoder(body.length + 5);
+        frame.varint(body.length);
+        frame.write(body, 0, body.length);
+        return frame.toByteArray();
+    }
+
+    /*
+     * Cuts the next frame's body out of the buffer, which must be in read mode, like HttpFrame.parse. Returns null
+     * and leaves the buffer untouched if the frame hasn't fully arrived yet.
+     */
+    public static byte[] parse(ByteBuffer buffer) throws IOException {
+        long[] length = peekVarint(buffer, buffer.position());
+        if (length == null) {
+            return null;
+        }
+        if (length[0] > MAX_FRAME_BYTES) {
+            throw new IOException("Bad frame length " + length[0]);
+        }
+        if (buffer.limit() - length[1] < length[0]) {
+            return null;
+        }
+        byte[] body = new byte[(int) length[0]];
+        buffer.position((int) length[1]);
+        buffer.get(body);
+        return body;
+    }
+
+    // reads the next frame's body. Returns null if the stream ended cleanly before the frame started.
+    public static byte[] read(InputStream in) throws IOException {
+        long length = readVarint(in);
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_FRAME_BYTES) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte[] body = in.readNBytes((int) length);
+        if (body.length < length) {
+            throw new EOFException("Connection closed in the middle of a frame");
+        }
+        return body;
+    }
+
+    /*
+     * decodes and processes one request, answering a message that can't be decoded with a parse error and a request
+     * whose handler throws with an internal error.
+     */
+    public static JSONRPC2Response process(byte[] body, Dispatcher dispatcher) {
+        JSONRPC2Request request;
+        try {
+            request = decodeRequest(body);
+        } catch (JSONRPC2ParseException e) {
+            return new JSONRPC2Response(JSONRPC2Error.PARSE_ERROR, null);
+        }
+        try {
+            return dispatcher.process(request, null);
+        } catch (RuntimeException e) {
+            System.out.println("Exception processing " + request.getMethod() + ": " + e);
+            return new JSONRPC2Response(JSONRPC2Error.INTERNAL_ERROR, request.getID());
+        }
+    }
+
+    public static byte[] encode(JSONRPC2Request request) {
+        Encoder encoder = new Encoder();
+        encoder.requestStart(request.getMethod(), request.getNamedParams() != null
+                ? request.getNamedParams() : request.getPositionalParams());
+        encoder.value(request.getID());
+        return encoder.toByteArray();
+    }
+
+    public static byte[] encode(JSONRPC2Response response) {
+        Encoder encoder = new Encoder();
+        if (response.indicatesSuccess()) {
+            encoder.write(RESULT);
+            encoder.value(response.getResult());
+        } else {
+            JSONRPC2Error error = response.getError();
+            encoder.write(ERROR);
+            encoder.varint(zigzag(error.getCode()));
+            encoder.value(error.getMessage());
+            encoder.value(error.getData());
+        }
+        encoder.value(response.getID());
+        return encoder.toByteArray();
+    }
+
+    // a request up to its id, for EncodedRequest.
+    static byte[] encodeRequestStart(String method, Object params) {
+        Encoder encoder = new Encoder();
+        encoder.requestStart(method, params);
+        return encoder.toByteArray();
+    }
+
+    // an id as it ends a message, for EncodedRequest.
+    static byte[] encodeID(long id) {
+        Encoder encoder = new Encoder(10);
+        encoder.value(id);
+        return encoder.toByteArray();
+    }
+
+    /*
+     * The value a JSON value encoded once already comes to in this protocol, for JsonCodec.Raw. Parsed once, so
+     * objects in it are sent as maps with their keys by number; JSON that doesn't parse is sent as it is.
+     */
+    static byte[] encodeJson(byte[] json) {
+        Encoder encoder = new Encoder();
+        try {
+            encoder.value(JsonCodec.parseValue(json));
+        } catch (JSONRPC2ParseException e) {
+            encoder.reset();
+            encoder.write(JSON);
+            encoder.bytes(json);
+        }
+        return encoder.toByteArray();
+    }
+
+    public static JSONRPC2Request decodeRequest(byte[] body) throws JSONRPC2ParseException {
+        Decoder decoder = new Decoder(body);
+        if (decoder.next() != REQUEST) {
+            throw new JSONRPC2ParseException("Not a request", JSONRPC2ParseException.PROTOCOL, null);
+        }
+        int code = (int) decoder.varint();
+        String method = code == 0 ? decoder.string() : code < METHODS.length ? METHODS[code] : null;
+        if (method == null) {
+            throw new JSONRPC2ParseException("Unknown method number " + code, JSONRPC2ParseException.PROTOCOL, null);
+        }
+        Object params = decoder.value();
+        Object id = decoder.value();
+        if (params == null) {
+            return new JSONRPC2Request(method, id);
+        }
+        if (params instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> namedParams = (Map<String, Object>) params;
+            return new JSONRPC2Request(method, namedParams, id);
+        }
+        if (params instanceof List) {
+            @SuppressWarnings("unchecked")
+            List<Object> positionalParams = (List<Object>) params;
+            return new JSONRPC2Request(method, positionalParams, id);
+        }
+        throw new JSONRPC2ParseException("The params must be an object or an array", JSONRPC2ParseException.PROTOCOL, null);
+    }
+
+    public static JSONRPC2Response decodeResponse(byte[] body) throws JSONRPC2ParseException {
+        Decoder decoder = new Decoder(body);
+        int kind = decoder.next();
+        if (kind == RESULT) {
+            Object result = decoder.value();
+            return new JSONRPC2Response(result, decoder.value());
+        }
+        if (kind == ERROR) {
+            int code = (int) unzigzag(decoder.varint());
+            Object message = decoder.value();
+            Object data = decoder.value();
+            return new JSONRPC2Response(new JSONRPC2Error(code, String.valueOf(message), data), decoder.value());
+        }
+        throw new JSONRPC2ParseException("Not a response", JSONRPC2ParseException.PROTOCOL, null);
+    }
+
+    public static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    public static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // returns -1 if the stream ended before the varint started.
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    // the varint at index and the index after it, or null if it's cut off at the buffer's limit.
+    private static long[] peekVarint(ByteBuffer buffer, int index) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (index >= buffer.limit()) {
+                return null;
+            }
+            int b = buffer.get(index++);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return new long[]{value, index};
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static class Encoder extends ByteArrayOutputStream {
+
+        Encoder() {
+            super(256);
+        }
+
+        Encoder(int size) {
+            super(size);
+        }
+
+        void varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void bytes(byte[] bytes) {
+            varint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void string(String string) {
+            bytes(string.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void requestStart(String method, Object params) {
+            write(REQUEST);
+            Integer code = METHOD_CODES.get(method);
+            if (code != null) {
+                varint(code);
+            } else {
+                varint(0);
+                string(method);
+            }
+            value(params);
+        }
+
+        void value(Object value) {
+            if (value == null) {
+                write(NULL);
+            } else if (value instanceof Boolean) {
+                write((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                write(INT);
+                varint(zigzag(((Number) value).longValue()));
+            } else if (value instanceof Double || value instanceof Float) {
+                write(DOUBLE);
+                long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    write((int) (bits >>> shift));
+                }
+            } else if (value instanceof String && IdGenerator.isId((String) value)) {
+                write(ID);
+                byte[] id = IdGenerator.toBytes(IdGenerator.parse((String) value));
+                write(id, 0, id.length);
+            } else if (value instanceof String) {
+                write(STRING);
+                string((String) value);
+            } else if (value instanceof Event) {
+                Event event = (Event) value;
+                write(EVENT);
+                value(event.getId());
+                value(event.getTopicId());
+                value(event.getTitle());
+                value(event.getContent());
+                value(event.getHeaders().isEmpty() ? null : event.getHeaders());
+                value(event.getTimestamp());
+            } else if (value instanceof Topic) {
+                Topic topic = (Topic) value;
+                write(TOPIC);
+                value(topic.getId());
+                value(topic.getName());
+                value(topic.getKeywords());
+            } else if (value instanceof JsonCodec.Raw) {
+                byte[] binary = ((JsonCodec.Raw) value).getBinary();
+                write(binary, 0, binary.length);
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                write(LIST);
+                varint(list.size());
+                for (Object element : list) {
+                    value(element);
+                }
+            } else if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                write(MAP);
+                varint(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    String key = String.valueOf(entry.getKey());
+                    Integer code = NAME_CODES.get(key);
+                    if (code != null) {
+                        varint(code);
+                    } else {
+                        varint(0);
+                        string(key);
+                    }
+                    value(entry.getValue());
+                }
+            } else {
+                write(JSON);
+                bytes(JsonCodec.encodeValue(value));
+            }
+        }
+    }
+
+    private static class Decoder {
+        private final byte[] body;
+        private int position = 0;
+
+        Decoder(byte[] body) {
+            this.body = body;
+        }
+
+        int next() throws JSONRPC2ParseException {
+            if (position >= body.length) {
+                throw truncated();
+            }
+            return body[position++] & 0xFF;
+        }
+
+        long varint() throws JSONRPC2ParseException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = next();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new JSONRPC2ParseException("Varint too long", JSONRPC2ParseException.PROTOCOL, null);
+        }
+
+        byte[] bytes() throws JSONRPC2ParseException {
+            long length = varint();
+            if (length > body.length - position) {
+                throw truncated();
+            }
+            byte[] bytes = new byte[(int) length];
+            System.arraycopy(body, position, bytes, 0, bytes.length);
+            position += bytes.length;
+            return bytes;
+        }
+
+        String string() throws JSONRPC2ParseException {
+            long length = varint();
+            if (length > body.length - position) {
+                throw truncated();
+            }
+            String string = new String(body, position, (int) length, StandardCharsets.UTF_8);
+            position += (int) length;
+            return string;
+        }
+
+        Object value() throws JSONRPC2ParseException {
+            int tag = next();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case FALSE:
+                    return false;
+                case TRUE:
+                    return true;
+                case INT:
+                    return unzigzag(varint());
+                case DOUBLE:
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits = (bits << 8) | next();
+                    }
+                    return Double.longBitsToDouble(bits);
+                case STRING:
+                    return string();
+                case ID:
+                    if (body.length - position < 8) {
+                        throw truncated();
+                    }
+                    position += 8;
+                    return IdGenerator.toString(IdGenerator.fromBytes(body, position - 8));
+                case LIST: {
+                    long size = varint();
+                    List<Object> list = new ArrayList<>();
+                    for (long i = 0; i < size; i++) {
+                        list.add(value());
+                    }
+                    return list;
+                }
+                case MAP: {
+                    long size = varint();
+                    Map<String, Object> map = new HashMap<>();
+                    for (long i = 0; i < size; i++) {
+                        int code = (int) varint();
+                        String key = code == 0 ? string() : code < NAMES.length ? NAMES[code] : null;
+                        if (key == null) {
+                            throw new JSONRPC2ParseException("Unknown name number " + code, JSONRPC2ParseException.PROTOCOL, null);
+                        }
+                        map.put(key, value());
+                    }
+                    return map;
+                }
+                case TOPIC: {
+                    String id = text(value());
+                    String name = text(value());
+                    Object keywords = value();
+                    List<String> keywordList = null;
+                    if (keywords instanceof List) {
+                        keywordList = new ArrayList<>();
+                        for (Object keyword : (List<?>) keywords) {
+                            keywordList.add(text(keyword));
+                        }
+                    }
+                    return new Topic(id, keywordList, name);
+                }
+                case EVENT: {
+                    String id = text(value());
+                    String topicId = text(value());
+                    String title = text(value());
+                    String content = text(value());
+                    Map<String, String> headers = JsonCodec.headers(value());
+                    Object timestamp = value();
+                    return new Event(id, topicId, title, content, headers,
+                            timestamp instanceof Number ? ((Number) timestamp).longValue() : 0);
+                }
+                case JSON:
+                    return JsonCodec.parseValue(bytes());
+                default:
+                    throw new JSONRPC2ParseException("Unknown value tag " + tag, JSONRPC2ParseException.PROTOCOL, null);
+            }
+        }
+
+        private static String text(Object value) {
+            return value == null ? null : value.toString();
+        }
+
+        private static JSONRPC2ParseException truncated() {
+            return new JSONRPC2ParseException("Truncated message", JSONRPC2ParseException.PROTOCOL, null);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * CircuitBreaker remembers whether a client has been reachable lately. After failureThreshold deliveries in a row
+ * fail the breaker opens, and while it is open nothing is sent to the client at all. A background probe moves it to
+ * half open while it checks the client, and closes it again once the client answers.
+ */
+package edu.rit.cs;
+
+class CircuitBreaker {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+
+    public CircuitBreaker(int failureThreshold) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+    }
+
+    // deliveries are only attempted while the breaker is closed.
+    public synchronized boolean allowsDelivery() {
+        return state == State.CLOSED;
+    }
+
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+    }
+
+    /*
+     * counts a failed delivery. Returns true if this failure opened the breaker, so the caller knows to start
+     * probing the client.
+     */
+    public synchronized boolean recordFailure() {
+        consecutiveFailures++;
+        if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    // called by the probe before it checks the client. Returns false if the breaker isn't open anymore.
+    public synchronized boolean tryHalfOpen() {
+        if (state != State.OPEN) {
+            return false;
+        }
+        state = State.HALF_OPEN;
+        return true;
+    }
+
+    public synchronized void probeFailed() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
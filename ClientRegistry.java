@@ -0,0 +1,172 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * ClientRegistry keeps the publishers or the subscribers the EventManager knows about and the IP address each one is
+ * logged in from, with "0" for clients that are logged off. It's backed by concurrent maps, so handlers look clients
+ * up without taking a lock.
+ *
+ * An index from IP address to the client logged in there lets a login log off whoever was on its IP before without
+ * looking at every client.
+ *
+ * Which clients are online, and which subscribers pull their events instead of having them pushed, is also kept as
+ * IntBitmaps of the clients' interned IDs, so fan-out can pick the online push subscribers of a topic with two
+ * bitmap operations instead of looking up every subscriber.
+ */
+package edu.rit.cs;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class ClientRegistry {
+
+    public static final String OFFLINE = "0";
+
+    // The subscribers of a topic split by how they get an event: pushed now, or kept as a pending notification.
+    static class Receivers {
+        private final IntBitmap online;
+        private final IntBitmap offline;
+
+        Receivers(IntBitmap online, IntBitmap offline) {
+            this.online = online;
+            this.offline = offline;
+        }
+
+        public IntBitmap getOnline() {
+            return online;
+        }
+
+        public IntBitmap getOffline() {
+            return offline;
+        }
+    }
+
+    private final IdInterner ids;
+    private final Map<String, String> addresses = new ConcurrentHashMap<>();
+    private final Map<String, String> clientsByAddress = new ConcurrentHashMap<>();
+    // guarded by bitmapLock. Logins and logoffs hold it for writing, so online always agrees with addresses; lookups
+    // of addresses don't need it.
+    private final IntBitmap online = new IntBitmap();
+    private final IntBitmap pulling = new IntBitmap();
+    private final ReadWriteLock bitmapLock = new ReentrantReadWriteLock();
+
+    public ClientRegistry(IdInterner ids) {
+        this.ids = ids;
+    }
+
+    /*
+     * Logs the client in from the IP address, logging off the client that was logged in from it before. Returns false
+     * if the client is new.
+     */
+    public boolean login(String clientID, String ipAddress) {
+        int id = ids.intern(clientID);
+        bitmapLock.writeLock().lock();
+        try {
+            String previousClient = clientsByAddress.put(ipAddress, clientID);
+            if (previousClient != null && !previousClient.equals(clientID)
+                    && addresses.replace(previousClient, ipAddress, OFFLINE)) {
+                online.remove(ids.intern(previousClient));
+            }
+            String previousAddress = addresses.put(clientID, ipAddress);
+            if (previousAddress != null && !previousAddress.equals(ipAddress)) {
+                clientsByAddress.remove(previousAddress, clientID);
+            }
+            online.add(id);
+            return previousAddress != null;
+        } finally {
+            bitmapLock.writeLock().unlock();
+        }
+    }
+
+    public void logoff(String clientID) {
+        int id = ids.intern(clientID);
+        bitmapLock.writeLock().lock();
+        try {
+            String previousAddress = addresses.put(clientID, OFFLINE);
+            if (previousAddress != null) {
+                clientsByAddress.remove(previousAddress, clientID);
+            }
+            online.remove(id);
+        } finally {
+            bitmapLock.writeLock().unlock();
+        }
+    }
+
+    // marks a subscriber as fetching its events (pull mode) instead of having them pushed.
+    public void setPulling(String clientID, boolean isPulling) {
+        int id = ids.intern(clientID);
+        bitmapLock.writeLock().lock();
+        try {
+            if (isPulling) {
+                pulling.add(id);
+            } else {
+                pulling.remove(id);
+            }
+        } finally {
+            bitmapLock.writeLock().unlock();
+        }
+    }
+
+    public boolean isPulling(String clientID) {
+        int id = ids.idOf(clientID);
+        if (id < 0) {
+            return false;
+        }
+        bitmapLock.readLock().lock();
+        try {
+            return pulling.contains(id);
+        } finally {
+            bitmapLock.readLock().unlock();
+        }
+    }
+
+    /*
+     * splits the subscribers (interned IDs) that get events pushed into those online and those offline. Pull
+     * subscribers are left out, they read events from the log.
+     */
+    public Receivers receivers(IntBitmap subscribers) {
+        bitmapLock.readLock().lock();
+        try {
+            IntBitmap pushed = subscribers.andNot(pulling);
+            return new Receivers(pushed.and(online), pushed.andNot(online));
+        } finally {
+            bitmapLock.readLock().unlock();
+        }
+    }
+
+    // the IP address the client is logged in from, null if it's logged off or unknown.
+    public String addressOf(String clientID) {
+        String address = addresses.get(clientID);
+        return address == null || address.equals(OFFLINE) ? null : address;
+    }
+
+    public boolean isOnline(String clientID) {
+        return addressOf(clientID) != null;
+    }
+
+    public boolean contains(String clientID) {
+        return addresses.containsKey(clientID);
+    }
+
+    // the client logged in from the IP address, if any.
+    public String clientAt(String ipAddress) {
+        return clientsByAddress.get(ipAddress);
+    }
+
+    public Set<String> clientIDs() {
+        return Collections.unmodifiableSet(addresses.keySet());
+    }
+
+    // a copy of every client and its address ("0" if logged off), unaffected by later logins.
+    public Map<String, String> snapshot() {
+        return new HashMap<>(addresses);
+    }
+
+    public int size() {
+        return addresses.size();
+    }
+}
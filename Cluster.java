@@ -0,0 +1,284 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * Cluster is an EventManager's view of the other EventManagers it shares the topics with. The topics are partitioned
+ * over the nodes with a HashRing: the node owning a topic stores its events, keeps its subscriptions by name and
+ * pushes its events and advertisements. Wildcard subscriptions are kept on every node, since their topics can be on
+ * any of them. Requests for a topic this node doesn't own are answered with a NOT_OWNER error carrying the owner, so
+ * an agent with an outdated ring can fetch the node list and send the request again.
+ *
+ * The nodes come from the pubsub.cluster.nodes startup option. A node that starts up tells every other node about
+ * itself. A node that learns about a new one sends it the clients it knows and the wildcard subscriptions, and hands
+ * the topics it no longer owns over to their new owner with their subscriptions. Without the option the EventManager
+ * runs on its own and owns every topic.
+ */
+package edu.rit.cs;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+import com.thetransactioncompany.jsonrpc2.client.JSONRPC2SessionException;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class Cluster {
+
+    // error code of requests for a topic owned by another node. The error's data is the owner, as "host:port".
+    public static final int NOT_OWNER = -32001;
+
+    private final String self;
+    private final HashRing ring;
+    private final boolean enabled;
+    // one connection to every other node, for joining and handing over topics.
+    private final Map<String, RpcConnection> peers = new ConcurrentHashMap<>();
+    // hands topics over one ring change at a time.
+    private final ExecutorService rebalancer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-rebalance");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger requestID = new AtomicInteger();
+
+    public Cluster(String self, List<String> nodes, int virtualNodes) {
+        this.self = self;
+        this.enabled = !nodes.isEmpty();
+        this.ring = new HashRing(nodes, virtualNodes);
+        ring.add(self);
+    }
+
+    /*
+     * Builds the cluster from the pubsub.cluster.* startup options. Which of the nodes this one is comes from
+     * pubsub.cluster.self, or else from the only listed node on this EventManager's port.
+     */
+    public static Cluster fromConfig(int port) {
+        List<String> nodes = new ArrayList<>();
+        for (String node : PubSubConfig.getString(PubSubConfig.CLUSTER_NODES, "").split(",")) {
+            if (!node.trim().isEmpty()) {
+                nodes.add(node.trim());
+            }
+        }
+        String self = PubSubConfig.getString(PubSubConfig.CLUSTER_SELF, null);
+        if (self == null) {
+            for (String node : nodes) {
+                if (node.endsWith(":" + port)) {
+                    self = self == null ? node : "";
+                }
+            }
+        }
+        if (self == null || self.isEmpty()) {
+            try {
+                self = InetAddress.getLocalHost().getHostAddress() + ":" + port;
+            } catch (UnknownHostException e) {
+                self = "localhost:" + port;
+            }
+        }
+        return new Cluster(self, nodes, PubSubConfig.getInt(PubSubConfig.CLUSTER_VIRTUAL_NODES, 128));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    // the nodes of the cluster, none if this EventManager runs on its own.
+    public List<String> getNodes() {
+        return enabled ? ring.getNodes() : new ArrayList<>();
+    }
+
+    public int getVirtualNodes() {
+        return ring.getVirtualNodes();
+    }
+
+    public boolean owns(String topicName) {
+        return !enabled || topicName == null || self.equals(ring.ownerOf(topicName));
+    }
+
+    public String ownerOf(String topicName) {
+        return enabled ? ring.ownerOf(topicName) : self;
+    }
+
+    // the error answering a request for a topic another node owns.
+    public JSONRPC2Error notOwner(String topicName) {
+        String owner = ring.ownerOf(topicName);
+        return new JSONRPC2Error(NOT_OWNER, "Topic " + topicName + " is owned by " + owner, owner);
+    }
+
+    /*
+     * the error answering an event whose topic ID this node doesn't know. It can't tell the owner from the ID, but the
+     * agent knows the topic's name and sends the event again to the owner on its newest ring.
+     */
+    public JSONRPC2Error unknownTopic(String topicId) {
+        return new JSONRPC2Error(NOT_OWNER, "Topic " + topicId + " isn't known to " + self, null);
+    }
+
+    /*
+     * puts a node that joined the cluster on the ring and hands over the topics it owns now. Returns false if it was
+     * known already.
+     */
+    public boolean addNode(String node) {
+        if (!enabled || !ring.add(node)) {
+            return false;
+        }
+        System.out.println("Node " + node + " joined the cluster, handing over its topics.");
+        rebalancer.execute(() -> {
+            syncNode(node);
+            handOverTopics();
+        });
+        return true;
+    }
+
+    /*
+     * tells every other node this one is up, in the background, and adds the nodes they know of and this one didn't.
+     */
+    public void join() {
+        if (!enabled) {
+            return;
+        }
+        rebalancer.execute(() -> {
+            for (String node : ring.getNodes()) {
+                if (node.equals(self)) {
+                    continue;
+                }
+                Map<String, Object> params = new HashMap<>();
+                params.put("node", self);
+                try {
+                    JSONRPC2Response response = peer(node).send(request("addClusterNode", params));
+                    if (response.indicatesSuccess()) {
+                        for (Object known : (List<?>) ((Map<?, ?>) response.getResult()).get("nodes")) {
+                            ring.add(String.valueOf(known));
+                        }
+                    }
+                } catch (JSONRPC2SessionException e) {
+                    // it learns about this node when it starts up itself.
+                    System.out.println("Couldn't reach cluster node " + node + ": " + e.getMessage());
+                }
+            }
+            handOverTopics();
+        });
+    }
+
+    /*
+     * Sends every topic this node stores or has subscriptions by name to but no longer owns to its owner, with the
+     * subscriptions, and then drops it here. The events already in this node's log stay here; the new owner's log
+     * starts with the next event. A topic whose owner can't be reached is kept and tried again at the next change.
+     */
+    private void handOverTopics() {
+        Set<String> topicNames = new TreeSet<>(EventManager.TopicInfo.keySet());
+        for (String pattern : EventManager.Subscriptions.patterns()) {
+            if (!SubscriptionTrie.isPattern(pattern)) {
+                topicNames.add(pattern);
+            }
+        }
+        for (String topicName : topicNames) {
+            if (owns(topicName)) {
+                continue;
+            }
+            String owner = ring.ownerOf(topicName);
+            Map<String, EventFilter> subscribers = EventManager.Subscriptions.subscribersOf(topicName);
+            Map<String, Object> params = new HashMap<>();
+            params.put("topicName", topicName);
+            Topic topic = EventManager.TopicInfo.get(topicName);
+            if (topic != null) {
+                params.put("topic", topic);
+            }
+            params.put("subscriptions", subscriptions(subscribers));
+            try {
+                JSONRPC2Response response = peer(owner).send(request("adoptTopic", params));
+                if (!response.indicatesSuccess()) {
+                    System.out.println("Node " + owner + " didn't take topic " + topicName + ": " + response.getError().getMessage());
+                    continue;
+                }
+            } catch (JSONRPC2SessionException e) {
+                System.out.println("Couldn't hand topic " + topicName + " over to " + owner + ": " + e.getMessage());
+                continue;
+            }
+            EventManager.TopicInfo.remove(topicName);
+            EventManager.TopicKeywords.remove(topicName);
+            for (String subscriber : subscribers.keySet()) {
+                EventManager.Subscriptions.unsubscribe(topicName, subscriber);
+            }
+            System.out.println("Handed topic " + topicName + " over to " + owner);
+        }
+    }
+
+    /*
+     * Sends a node that joined the clients this node knows and the wildcard subscriptions, which every node keeps, so
+     * it can push its topics' events right away. It keeps what it knows already, e.g. clients that logged in to it.
+     */
+    private void syncNode(String node) {
+        List<Object> patterns = new ArrayList<>();
+        for (String pattern : EventManager.Subscriptions.patterns()) {
+            if (SubscriptionTrie.isPattern(pattern)) {
+                Map<String, Object> patternSubscriptions = new HashMap<>();
+                patternSubscriptions.put("pattern", pattern);
+                patternSubscriptions.put("subscriptions", subscriptions(EventManager.Subscriptions.subscribersOf(pattern)));
+                patterns.add(patternSubscriptions);
+            }
+        }
+        Map<String, Object> params = new HashMap<>();
+        params.put("publishers", EventManager.PublisherInfo.snapshot());
+        List<Object> subscribers = new ArrayList<>();
+        for (Map.Entry<String, String> entry : EventManager.SubscriberInfo.snapshot().entrySet()) {
+            Map<String, Object> subscriber = new HashMap<>();
+            subscriber.put("subscriberID", entry.getKey());
+            subscriber.put("ipAddress", entry.getValue());
+            subscriber.put("pulling", EventManager.SubscriberInfo.isPulling(entry.getKey()));
+            subscribers.add(subscriber);
+        }
+        params.put("subscribers", subscribers);
+        params.put("patterns", patterns);
+        try {
+            JSONRPC2Response response = peer(node).send(request("syncClusterNode", params));
+            if (!response.indicatesSuccess()) {
+                System.out.println("Node " + node + " didn't take the clients and wildcard subscriptions: " + response.getError().getMessage());
+            }
+        } catch (JSONRPC2SessionException e) {
+            System.out.println("Couldn't send the clients and wildcard subscriptions to " + node + ": " + e.getMessage());
+        }
+    }
+
+    // the subscriptions as adoptTopic and syncClusterNode take them.
+    private static List<Object> subscriptions(Map<String, EventFilter> subscribers) {
+        List<Object> subscriptions = new ArrayList<>();
+        for (Map.Entry<String, EventFilter> entry : subscribers.entrySet()) {
+            Map<String, Object> subscription = new HashMap<>();
+            subscription.put("subscriberID", entry.getKey());
+            subscription.put("filter", entry.getValue().getExpression());
+            subscription.put("pulling", EventManager.SubscriberInfo.isPulling(entry.getKey()));
+            subscriptions.add(subscription);
+        }
+        return subscriptions;
+    }
+
+    private RpcConnection peer(String node) {
+        return peers.computeIfAbsent(node, n -> new RpcConnection(hostOf(n), portOf(n), 3000, 30000));
+    }
+
+    private JSONRPC2Request request(String method, Map<String, Object> params) {
+        JSONRPC2Request request = new JSONRPC2Request(method, requestID.incrementAndGet());
+        request.setNamedParams(params);
+        return request;
+    }
+
+    static String hostOf(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    static int portOf(String node) {
+        return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * ClusterSession is a publisher's or subscriber's session with the EventManager, or with every EventManager of a
+ * cluster (see Cluster). It is used like an RpcConnection, and routes every request by what it's about:
+ *  - requests for one topic (publishEvent, advertiseTopic, subscribing to a topic name, fetchEvents, ...) go to the
+ *    node owning the topic on the agent's copy of the HashRing,
+ *  - a publishEvents batch is split by owner, and the results are put back in the batch's order,
+ *  - topic searches, getAllTopics and getSubscriptions ask every node and merge their answers,
+ *  - everything else, like logins, logoffs and wildcard subscriptions, goes to every node.
+ * If a node answers that it doesn't own a topic, the ring is fetched again from it and the request sent once more.
+ * The ring is also fetched every pubsub.cluster.refreshMs, so an agent that only waits for pushes finds nodes that
+ * joined the cluster too.
+ *
+ * With a single EventManager every request simply goes to it.
+ */
+package edu.rit.cs;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+import com.thetransactioncompany.jsonrpc2.client.JSONRPC2SessionException;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+class ClusterSession {
+
+    // sends a request to several nodes at once.
+    private static final ExecutorService scatter = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-scatter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // fetches the rings of the sessions in a cluster again now and then.
+    private static final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // whether the connections to the nodes speak the BinaryProtocol instead of JSON-RPC over HTTP.
+    private static final boolean binaryProtocol = PubSubConfig.getString(PubSubConfig.CLIENT_PROTOCOL, "json").equals("binary");
+
+    // a request to one node, run on the scatter threads.
+    private interface NodeCall<T> {
+        T call(String node) throws JSONRPC2SessionException;
+    }
+
+    // one node's first matches of a searchTopics request, and how many it has in all.
+    private static class SearchPart {
+        final Map<String, Object> topics = new HashMap<>();
+        long total;
+        JSONRPC2Response error;
+    }
+
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private volatile HashRing ring;
+    private final Map<String, RpcConnection> connections = new ConcurrentHashMap<>();
+    private volatile Consumer<String> nodeListener = node -> {};
+    private final AtomicInteger requestID = new AtomicInteger();
+
+    public ClusterSession(Collection<String> nodes, int virtualNodes, int connectTimeoutMs, int readTimeoutMs) {
+        this.ring = new HashRing(nodes, virtualNodes);
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    /*
+     * Connects to the EventManager at host:port and asks it for the nodes of its cluster. If it isn't part of one,
+     * or can't be reached yet, the session only talks to it.
+     */
+    public static ClusterSession connect(String host, int port, int connectTimeoutMs, int readTimeoutMs) {
+        String seed = host + ":" + port;
+        ClusterSession session = new ClusterSession(Collections.singletonList(seed), 1, connectTimeoutMs, readTimeoutMs);
+        if (session.refresh(seed)) {
+            long refreshMs = PubSubConfig.getInt(PubSubConfig.CLUSTER_REFRESH_MS, 30000);
+            refresher.scheduleWithFixedDelay(() -> {
+                List<String> nodes = session.getNodes();
+                session.refresh(nodes.get(ThreadLocalRandom.current().nextInt(nodes.size())));
+            }, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+        }
+        return session;
+    }
+
+    // a session with the same nodes and connections of its own, e.g. for a thread that long polls.
+    public ClusterSession fork(int connectTimeoutMs, int readTimeoutMs) {
+        HashRing current = ring;
+        return new ClusterSession(current.getNodes(), current.getVirtualNodes(), connectTimeoutMs, readTimeoutMs);
+    }
+
+    public List<String> getNodes() {
+        return ring.getNodes();
+    }
+
+    public String ownerOf(String topicName) {
+        return ring.ownerOf(topicName);
+    }
+
+    // called with every node the session learns about after it connected, e.g. to log in there too.
+    public void setNodeListener(Consumer<String> listener) {
+        nodeListener = listener;
+    }
+
+    // sends the request to this node only.
+    public JSONRPC2Response sendTo(String node, JSONRPC2Request request) throws JSONRPC2SessionException {
+        return connection(node).send(request);
+    }
+
+    public JSONRPC2Response send(JSONRPC2Request request) throws JSONRPC2SessionException {
+        Map<String, Object> params = request.getNamedParams() == null ? new HashMap<>() : request.getNamedParams();
+        switch (request.getMethod()) {
+            case "publishEvent":
+                return sendToOwner(request, topicNameOf(params.get("event")));
+            case "advertiseTopic":
+                return sendToOwner(request, topicNameOf(params.get("topic")));
+            case "getTopicFromTopicName":
+                return sendToOwner(request, topicNameOf(params.get("topicName")));
+            case "fetchEvents":
+            case "commitOffset":
+                return sendToOwner(request, topicNameOf(params.get("topic")));
+            case "subscribeTopic":
+            case "unsubscribeTopic": {
+                // every node keeps the wildcard subscriptions, their topics can be on any of them.
+                String topicName = topicNameOf(params.get("topic"));
+                return topicName != null && SubscriptionTrie.isPattern(topicName) ? sendToAll(request) : sendToOwner(request, topicName);
+            }
+            case "publishEvents":
+                return publishEvents(request);
+            case "getTopicFromKeyword":
+            case "getAllTopics":
+                return mergeTopics(request);
+            case "searchTopics":
+                return searchTopics(request);
+            case "getSubscriptions":
+                return mergeSubscriptions(request);
+            default:
+                return sendToAll(request);
+        }
+    }
+
+    public void close() {
+        for (RpcConnection connection : connections.values()) {
+            connection.close();
+        }
+    }
+
+    /*
+     * Asks the node for the cluster's nodes and rebuilds the ring from them. Returns false if it couldn't be asked or
+     * isn't part of a cluster.
+     */
+    private boolean refresh(String node) {
+        JSONRPC2Response response;
+        try {
+            response = connection(node).send(request("getClusterNodes", new HashMap<>()));
+        } catch (JSONRPC2SessionException e) {
+            return false;
+        }
+        if (!response.indicatesSuccess() || !(response.getResult() instanceof Map)) {
+            return false;
+        }
+        Map<?, ?> result = (Map<?, ?>) response.getResult();
+        List<String> nodes = new ArrayList<>();
+        for (Object known : (List<?>) result.get("nodes")) {
+            nodes.add(String.valueOf(known));
+        }
+        if (nodes.isEmpty()) {
+            return false;
+        }
+        HashRing old = ring;
+        List<String> added = new ArrayList<>(nodes);
+        added.removeAll(old.getNodes());
+        ring = new HashRing(nodes, ((Number) result.get("virtualNodes")).intValue());
+        for (String oldNode : old.getNodes()) {
+            // e.g. the seed, if the cluster knows it by another name.
+            if (!nodes.contains(oldNode)) {
+                RpcConnection connection = connections.remove(oldNode);
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+        for (String newNode : added) {
+            nodeListener.accept(newNode);
+        }
+        return true;
+    }
+
+    private JSONRPC2Response sendToOwner(JSONRPC2Request request, String topicName) throws JSONRPC2SessionException {
+        if (topicName == null) {
+            return connection(ring.getNodes().get(0)).send(request);
+        }
+        String owner = ring.ownerOf(topicName);
+        JSONRPC2Response response = connection(owner).send(request);
+        if (isNotOwner(response)) {
+            // the ring changed since it was fetched. The node that said no has the new one.
+            refresh(owner);
+            String newOwner = ring.ownerOf(topicName);
+            if (newOwner.equals(owner) && response.getError().getData() instanceof String) {
+                newOwner = (String) response.getError().getData();
+            }
+            response = connection(newOwner).send(request);
+        }
+        return response;
+    }
+
+    /*
+     * Sends the request to every node and returns the first node's answer, or if that node couldn't be reached the
+     * next one's. checkForPendingNotifications returns the answer of a node that had notifications.
+     */
+    private JSONRPC2Response sendToAll(JSONRPC2Request request) throws JSONRPC2SessionException {
+        List<String> nodes = ring.getNodes();
+        if (nodes.size() == 1) {
+            return connection(nodes.get(0)).send(request);
+        }
+        Map<String, JSONRPC2Response> responses = onEach(nodes, node -> {
+            try {
+                return connection(node).send(request);
+            } catch (JSONRPC2SessionException e) {
+                System.out.println("Couldn't send " + request.getMethod() + " to " + node + ": " + e.getMessage());
+                return null;
+            }
+        });
+        JSONRPC2Response answer = null;
+        for (JSONRPC2Response response : responses.values()) {
+            if (response == null) {
+                continue;
+            }
+            if (answer == null || (!answer.indicatesSuccess() && response.indicatesSuccess())) {
+                answer = response;
+            }
+            if (request.getMethod().equals("checkForPendingNotifications") && response.indicatesSuccess()
+                    && String.valueOf(response.getResult()).startsWith("You have pending")) {
+                answer = response;
+            }
+        }
+        if (answer == null) {
+            throw new JSONRPC2SessionException("No EventManager of " + nodes + " could be reached",
+                    JSONRPC2SessionException.NETWORK_EXCEPTION);
+        }
+        return answer;
+    }
+
+    /*
+     * Splits the batch by the owners of the events' topics and sends every node its part at once. Events a node
+     * refused because the ring changed are sent once more after fetching the new ring.
+     */
+    private JSONRPC2Response publishEvents(JSONRPC2Request request) throws JSONRPC2SessionException {
+        if (ring.size() == 1) {
+            return connection(ring.getNodes().get(0)).send(request);
+        }
+        List<?> events = (List<?>) request.getNamedParams().get("events");
+        Object[] results = new Object[events.size()];
+        List<Integer> unsent = new ArrayList<>();
+        for (int i = 0; i < events.size(); i++) {
+            unsent.add(i);
+        }
+        for (int attempt = 0; attempt < 2 && !unsent.isEmpty(); attempt++) {
+            Map<String, List<Integer>> eventsByOwner = new LinkedHashMap<>();
+            for (int i : unsent) {
+                eventsByOwner.computeIfAbsent(ring.ownerOf(topicNameOf(events.get(i))), k -> new ArrayList<>()).add(i);
+            }
+            Map<String, JSONRPC2Response> responses = onEach(eventsByOwner.keySet(), node -> {
+                List<Object> part = new ArrayList<>();
+                for (int i : eventsByOwner.get(node)) {
+                    part.add(events.get(i));
+                }
+                Map<String, Object> params = new HashMap<>(request.getNamedParams());
+                params.put("events", part);
+                return connection(node).send(new JSONRPC2Request(request.getMethod(), params, request.getID()));
+            });
+            unsent = new ArrayList<>();
+            String refusedBy = null;
+            for (Map.Entry<String, JSONRPC2Response> entry : responses.entrySet()) {
+                JSONRPC2Response response = entry.getValue();
+                List<Integer> part = eventsByOwner.get(entry.getKey());
+                if (isNotOwner(response)) {
+                    unsent.addAll(part);
+                    refusedBy = entry.getKey();
+                } else if (!response.indicatesSuccess()) {
+                    return response;
+                } else {
+                    List<?> partResults = (List<?>) response.getResult();
+                    for (int k = 0; k < part.size(); k++) {
+                        results[part.get(k)] = partResults.get(k);
+                    }
+                }
+            }
+            if (refusedBy != null) {
+                refresh(refusedBy);
+            }
+        }
+        for (int i : unsent) {
+            results[i] = "Topic moved to another EventManager, it was not published.";
+        }
+        JSONArray merged = new JSONArray();
+        Collections.addAll(merged, results);
+        return new JSONRPC2Response(merged, request.getID());
+    }
+
+    // getAllTopics and getTopicFromKeyword: the topics of every node in one map.
+    private JSONRPC2Response mergeTopics(JSONRPC2Request request) throws JSONRPC2SessionException {
+        if (ring.size() == 1) {
+            return connection(ring.getNodes().get(0)).send(request);
+        }
+        JSONObject merged = new JSONObject();
+        for (JSONRPC2Response response : onEach(ring.getNodes(), node -> connection(node).send(request)).values()) {
+            if (!response.indicatesSuccess()) {
+                return response;
+            }
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) response.getResult()).entrySet()) {
+                merged.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+        }
+        return new JSONRPC2Response(merged, request.getID());
+    }
+
+    // a subscriber's topic names from their owners and its patterns, which every node has, once.
+    private JSONRPC2Response mergeSubscriptions(JSONRPC2Request request) throws JSONRPC2SessionException {
+        if (ring.size() == 1) {
+            return connection(ring.getNodes().get(0)).send(request);
+        }
+        TreeSet<String> subscriptions = new TreeSet<>();
+        for (JSONRPC2Response response : onEach(ring.getNodes(), node -> connection(node).send(request)).values()) {
+            if (!response.indicatesSuccess()) {
+                return response;
+            }
+            for (Object subscription : (List<?>) response.getResult()) {
+                subscriptions.add(String.valueOf(subscription));
+            }
+        }
+        JSONArray merged = new JSONArray();
+        merged.addAll(subscriptions);
+        return new JSONRPC2Response(merged, request.getID());
+    }
+
+    /*
+     * Pages are sorted by topic name over the whole cluster, so every node is asked for its first offset + limit
+     * matches, a page at a time, and the page is cut from all of them.
+     */
+    private JSONRPC2Response searchTopics(JSONRPC2Request request) throws JSONRPC2SessionException {
+        if (ring.size() == 1) {
+            return connection(ring.getNodes().get(0)).send(request);
+        }
+        Map<String, Object> params = request.getNamedParams();
+        int offset = Math.max(0, JsonCodec.numberParam(params, "offset", 0).intValue());
+        int limit = Math.max(1, JsonCodec.numberParam(params, "limit", 1000).intValue());
+        long wanted = (long) offset + limit;
+
+        TreeMap<String, Object> matches = new TreeMap<>();
+        long total = 0;
+        for (SearchPart part : onEach(ring.getNodes(), node -> {
+            SearchPart nodePart = new SearchPart();
+            long nodeOffset = 0;
+            do {
+                Map<String, Object> pageParams = new HashMap<>(params);
+                pageParams.put("offset", nodeOffset);
+                pageParams.put("limit", wanted - nodePart.topics.size());
+                JSONRPC2Response response = connection(node).send(new JSONRPC2Request(request.getMethod(), pageParams, request.getID()));
+                if (!response.indicatesSuccess()) {
+                    nodePart.error = response;
+                    return nodePart;
+                }
+                Map<?, ?> page = (Map<?, ?>) response.getResult();
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) page.get("topics")).entrySet()) {
+                    nodePart.topics.put(String.valueOf(entry.getKey()), entry.getValue());
+                }
+                nodePart.total = ((Number) page.get("total")).longValue();
+                nodeOffset = ((Number) page.get("nextOffset")).longValue();
+            } while (nodeOffset >= 0 && nodePart.topics.size() < wanted);
+            return nodePart;
+        }).values()) {
+            if (part.error != null) {
+                return part.error;
+            }
+            matches.putAll(part.topics);
+            total += part.total;
+        }
+
+        JSONObject pageTopics = new JSONObject();
+        int skipped = 0;
+        for (Map.Entry<String, Object> entry : matches.entrySet()) {
+            if (skipped++ < offset) {
+                continue;
+            }
+            if (pageTopics.size() == limit) {
+                break;
+            }
+            pageTopics.put(entry.getKey(), entry.getValue());
+        }
+        JSONObject result = new JSONObject();
+        result.put("topics", pageTopics);
+        result.put("total", total);
+        result.put("nextOffset", offset + pageTopics.size() < total ? offset + pageTopics.size() : -1);
+        return new JSONRPC2Response(result, request.getID());
+    }
+
+    /*
+     * runs the call for every node, on the scatter threads if there are several, and returns the results by node.
+     * Throws the first node's failure, after all the calls are done.
+     */
+    private <T> Map<String, T> onEach(Collection<String> nodes, NodeCall<T> call) throws JSONRPC2SessionException {
+        Map<String, T> results = new LinkedHashMap<>();
+        if (nodes.size() == 1) {
+            String node = nodes.iterator().next();
+            results.put(node, call.call(node));
+            return results;
+        }
+        Map<String, Future<T>> calls = new LinkedHashMap<>();
+        for (String node : nodes) {
+            calls.put(node, scatter.submit(() -> call.call(node)));
+        }
+        JSONRPC2SessionException failure = null;
+        for (Map.Entry<String, Future<T>> entry : calls.entrySet()) {
+            try {
+                results.put(entry.getKey(), entry.getValue().get());
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof JSONRPC2SessionException)) {
+                    throw new IllegalStateException(e.getCause());
+                }
+                if (failure == null) {
+                    failure = (JSONRPC2SessionException) e.getCause();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JSONRPC2SessionException("Interrupted", JSONRPC2SessionException.NETWORK_EXCEPTION, e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    private RpcConnection connection(String node) {
+        return connections.computeIfAbsent(node,
+                n -> new RpcConnection(Cluster.hostOf(n), Cluster.portOf(n), connectTimeoutMs, readTimeoutMs, binaryProtocol));
+    }
+
+    private JSONRPC2Request request(String method, Map<String, Object> params) {
+        JSONRPC2Request request = new JSONRPC2Request(method, requestID.incrementAndGet());
+        request.setNamedParams(params);
+        return request;
+    }
+
+    private static boolean isNotOwner(JSONRPC2Response response) {
+        return !response.indicatesSuccess() && response.getError().getCode() == Cluster.NOT_OWNER;
+    }
+
+    // the topic name of an Event, a Topic or a name, as the agents put them in their requests.
+    private static String topicNameOf(Object value) {
+        if (value instanceof Event) {
+            return topicNameOf(((Event) value).getTopic());
+        }
+        if (value instanceof Topic) {
+            return ((Topic) value).getName();
+        }
+        if (value instanceof String) {
+            return (String) value;
+        }
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            return map.containsKey("topic") ? topicNameOf(map.get("topic")) : topicNameOf(map.get("name"));
+        }
+        return null;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * ConnectionPool keeps persistent RpcConnections from the EventManager to the publishers and subscribers, keyed by
+ * publisher/subscriber ID, so pushing topics, events and pending notifications reuses an open connection instead of
+ * doing a new TCP handshake for every push. Connections idle for too long are evicted in the background, and both
+ * the connections per client and the connections in total are capped. Clients that opened a push channel to the EM
+ * get their pushes over that channel instead.
+ */
+package edu.rit.cs;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+import com.thetransactioncompany.jsonrpc2.client.JSONRPC2SessionException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+class ConnectionPool {
+
+    private final int port;
+    private final int maxPerClient;
+    private final int maxTotal;
+    private final long idleTimeoutMs;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final PushChannelServer channels;
+
+    // idle connections per client ID, most recently used first. Guarded by this.
+    private final Map<String, Deque<RpcConnection>> idleConnections = new HashMap<>();
+    private int pooledConnections = 0;
+
+    public ConnectionPool(int port, int maxPerClient, int maxTotal, long idleTimeoutMs, int connectTimeoutMs,
+                          int readTimeoutMs, PushChannelServer channels) {
+        this.port = port;
+        this.maxPerClient = maxPerClient;
+        this.maxTotal = maxTotal;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.channels = channels;
+
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeoutMs / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdleConnections, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * builds the pool for client pushes from the pubsub.pool.* startup options.
+     */
+    public static ConnectionPool fromConfig(int port, PushChannelServer channels) {
+        return new ConnectionPool(port,
+                Math.max(1, PubSubConfig.getInt(PubSubConfig.POOL_MAX_PER_CLIENT, 4)),
+                Math.max(1, PubSubConfig.getInt(PubSubConfig.POOL_MAX_TOTAL, 1024)),
+                PubSubConfig.getInt(PubSubConfig.POOL_IDLE_TIMEOUT_MS, 30000),
+                PubSubConfig.getInt(PubSubConfig.POOL_CONNECT_TIMEOUT_MS, 3000),
+                PubSubConfig.getInt(PubSubConfig.POOL_READ_TIMEOUT_MS, 10000),
+                channels);
+    }
+
+    // A borrowed connection and whether it counts against the pool, connections made past maxTotal don't.
+    private static class Lease {
+        private final RpcConnection connection;
+        private final boolean pooled;
+
+        private Lease(RpcConnection connection, boolean pooled) {
+            this.connection = connection;
+            this.pooled = pooled;
+        }
+    }
+
+    /*
+     * Sends a request to the client with the given ID. If the client has a push channel open from the address it
+     * is logged in from the request goes over it, otherwise to the client's IP over an idle pooled connection if
+     * there is one. The connection goes back to the pool afterwards if the exchange succeeded and the client kept it
+     * open.
+     */
+    public JSONRPC2Response send(String clientID, String ipAddress, JSONRPC2Request request)
+            throws JSONRPC2SessionException {
+        return send(clientID, ipAddress, EncodedRequest.of(request));
+    }
+
+    // same as send, for a request encoded once for many clients.
+    public JSONRPC2Response send(String clientID, String ipAddress, EncodedRequest request)
+            throws JSONRPC2SessionException {
+        DuplexChannel channel = channels == null ? null : channels.get(clientID);
+        if (channel != null && channel.isFrom(ipAddress)) {
+            return channel.send(request, readTimeoutMs);
+        }
+        Lease lease = borrow(clientID, ipAddress);
+        boolean succeeded = false;
+        try {
+            JSONRPC2Response response = lease.connection.send(request);
+            succeeded = true;
+            return response;
+        } finally {
+            release(clientID, lease, succeeded);
+        }
+    }
+
+    private synchronized Lease borrow(String clientID, String ipAddress) {
+        Deque<RpcConnection> idle = idleConnections.get(clientID);
+        while (idle != null && !idle.isEmpty()) {
+            RpcConnection connection = idle.pollFirst();
+            if (connection.getHost().equals(ipAddress) && connection.isOpen()) {
+                return new Lease(connection, true);
+            }
+            // the client logged in again from another address or the connection was closed.
+            connection.close();
+            pooledConnections--;
+        }
+        if (pooledConnections >= maxTotal) {
+            evictLeastRecentlyUsed();
+        }
+        RpcConnection connection = new RpcConnection(ipAddress, port, connectTimeoutMs, readTimeoutMs);
+        if (pooledConnections < maxTotal) {
+            pooledConnections++;
+            return new Lease(connection, true);
+        }
+        return new Lease(connection, false);
+    }
+
+    private synchronized void release(String clientID, Lease lease, boolean succeeded) {
+        if (lease.pooled && succeeded && lease.connection.isOpen()) {
+            Deque<RpcConnection> idle = idleConnections.computeIfAbsent(clientID, k -> new ArrayDeque<>());
+            if (idle.size() < maxPerClient) {
+                idle.addFirst(lease.connection);
+                return;
+            }
+        }
+        lease.connection.close();
+        if (lease.pooled) {
+            pooledConnections--;
+        }
+    }
+
+    // closes the idle connection that has gone unused the longest to make room for a new one.
+    private void evictLeastRecentlyUsed() {
+        Deque<RpcConnection> oldestDeque = null;
+        RpcConnection oldest = null;
+        for (Deque<RpcConnection> idle : idleConnections.values()) {
+            RpcConnection candidate = idle.peekLast();
+            if (candidate != null && (oldest == null || candidate.getLastUsed() < oldest.getLastUsed())) {
+                oldest = candidate;
+                oldestDeque = idle;
+            }
+        }
+        if (oldest != null) {
+            oldestDeque.pollLast();
+            oldest.close();
+            pooledConnections--;
+        }
+    }
+
+    private synchronized void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Deque<RpcConnection>>> entries = idleConnections.entrySet().iterator();
+        while (entries.hasNext()) {
+            Deque<RpcConnection> idle = entries.next().getValue();
+            Iterator<RpcConnection> connections = idle.iterator();
+            while (connections.hasNext()) {
+                RpcConnection connection = connections.next();
+                if (now - connection.getLastUsed() > idleTimeoutMs || !connection.isOpen()) {
+                    connection.close();
+                    connections.remove();
+                    pooledConnections--;
+                }
+            }
+            if (idle.isEmpty()) {
+                entries.remove();
+            }
+        }
+    }
+
+    /*
+     * checks whether a client has a push channel open or accepts connections, without sending anything. Used to
+     * probe clients whose circuit is open.
+     */
+    public boolean isReachable(String clientID, String ipAddress) {
+        DuplexChannel channel = channels == null ? null : channels.get(clientID);
+        if (channel != null && channel.isFrom(ipAddress)) {
+            return true;
+        }
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(ipAddress, port), connectTimeoutMs);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /*
+     * closes all the idle connections and the push channel of a client, e.g. when it logs off.
+     */
+    public synchronized void remove(String clientID) {
+        if (channels != null) {
+            channels.remove(clientID);
+        }
+        Deque<RpcConnection> idle = idleConnections.remove(clientID);
+        if (idle != null) {
+            for (RpcConnection connection : idle) {
+                connection.close();
+                pooledConnections--;
+            }
+        }
+    }
+}
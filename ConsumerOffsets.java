@@ -0,0 +1,120 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * ConsumerOffsets keeps the committed offset of every pull subscriber in every topic it subscribed to, i.e. the offset
+ * of the next event it hasn't processed yet. Offsets are kept in memory and written to a json file next to the event
+ * log every flushIntervalMs and on shutdown, so a subscriber picks up where it left off after the EventManager
+ * restarts. Commits from the last interval can be lost in a crash; the subscriber then gets those events again.
+ */
+package edu.rit.cs;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+class ConsumerOffsets {
+
+    private final File file;
+    // subscriberID -> topic name -> committed offset. Guarded by this.
+    private final Map<String, Map<String, Long>> offsets;
+    private boolean dirty = false;
+
+    public ConsumerOffsets(File file, long flushIntervalMs) {
+        this.file = file;
+        this.offsets = load(file);
+
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "consumer-offsets-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(100, flushIntervalMs);
+        flusher.scheduleWithFixedDelay(this::flush, period, period, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "consumer-offsets-shutdown"));
+    }
+
+    /*
+     * builds the offset store in the event log directory, see the pubsub.log.* startup options.
+     */
+    public static ConsumerOffsets fromConfig() {
+        File directory = new File(PubSubConfig.getString(PubSubConfig.LOG_DIR, "eventlog"));
+        return new ConsumerOffsets(new File(directory, "offsets.json"),
+                PubSubConfig.getInt(PubSubConfig.LOG_FSYNC_INTERVAL_MS, 1000));
+    }
+
+    // returns the committed offset, or -1 if the subscriber never committed one for the topic.
+    public synchronized long committed(String subscriberID, String topicName) {
+        Map<String, Long> topics = offsets.get(subscriberID);
+        Long offset = topics == null ? null : topics.get(topicName);
+        return offset == null ? -1 : offset;
+    }
+
+    public synchronized void commit(String subscriberID, String topicName, long offset) {
+        offsets.computeIfAbsent(subscriberID, k -> new HashMap<>()).put(topicName, offset);
+        dirty = true;
+    }
+
+    // sets the offset a subscriber starts at in a topic, unless it already has one from an earlier subscription.
+    public synchronized void commitIfAbsent(String subscriberID, String topicName, long offset) {
+        if (committed(subscriberID, topicName) < 0) {
+            commit(subscriberID, topicName, offset);
+        }
+    }
+
+    public synchronized void remove(String subscriberID, String topicName) {
+        Map<String, Long> topics = offsets.get(subscriberID);
+        if (topics != null && topics.remove(topicName) != null) {
+            dirty = true;
+        }
+    }
+
+    /*
+     * writes the offsets to a temporary file and moves it over the old one, so a crash never leaves half a file.
+     */
+    public void flush() {
+        String json;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            json = new Gson().toJson(offsets);
+            dirty = false;
+        }
+        try {
+            File tmp = new File(file.getPath() + ".tmp");
+            Files.write(tmp.toPath(), json.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Couldn't save consumer offsets: " + e.getMessage());
+            synchronized (this) {
+                dirty = true;
+            }
+        }
+    }
+
+    private static Map<String, Map<String, Long>> load(File file) {
+        if (!file.isFile()) {
+            return new HashMap<>();
+        }
+        try {
+            String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            Type mapType = new TypeToken<HashMap<String, HashMap<String, Long>>>(){}.getType();
+            Map<String, Map<String, Long>> loaded = new Gson().fromJson(json, mapType);
+            return loaded == null ? new HashMap<>() : loaded;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Couldn't read consumer offsets from " + file + ", starting without them: " + e.getMessage());
+            return new HashMap<>();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * DeferredResponse is the result of a request that is answered later, like a fetchEvents long poll that waits for
+ * events. A handler returns it in place of its response instead of blocking the thread that processes the request,
+ * and the listener writes the real response once its future completes, without holding a thread in the meantime.
+ * Requests after it on the same connection wait for it, so responses still go out in order.
+ */
+package edu.rit.cs;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+
+import java.util.concurrent.CompletableFuture;
+
+class DeferredResponse {
+
+    private final CompletableFuture<JSONRPC2Response> response;
+
+    private DeferredResponse(CompletableFuture<JSONRPC2Response> response) {
+        this.response = response;
+    }
+
+    // what a handler returns for a response that completes later. One that is ready already is returned as it is.
+    public static JSONRPC2Response of(CompletableFuture<JSONRPC2Response> response, Object id) {
+        if (response.isDone() && !response.isCompletedExceptionally()) {
+            return response.join();
+        }
+        return new JSONRPC2Response(new DeferredResponse(response), id);
+    }
+
+    public static boolean isDeferred(JSONRPC2Response response) {
+        return response.indicatesSuccess() && response.getResult() instanceof DeferredResponse;
+    }
+
+    /*
+     * completes with the response once it is ready: right away for any response that isn't deferred, and with an
+     * internal error if a deferred one fails.
+     */
+    public static CompletableFuture<JSONRPC2Response> whenReady(JSONRPC2Response response) {
+        if (!isDeferred(response)) {
+            return CompletableFuture.completedFuture(response);
+        }
+        return ((DeferredResponse) response.getResult()).response.exceptionally(e -> {
+            System.out.println("Exception answering a deferred request: " + e);
+            return new JSONRPC2Response(JSONRPC2Error.INTERNAL_ERROR, response.getID());
+        });
+    }
+}
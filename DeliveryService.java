@@ -0,0 +1,244 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * DeliveryService fans published events out to the subscribers. Every delivery runs as its own task on a bounded pool
+ * of delivery threads, so all the subscribers of a topic are sent to at the same time instead of one after the other
+ * inside the publisher's request. Deliveries to one subscriber go through its own SubscriberLane, so a slow or dead
+ * subscriber doesn't hold up the others. Each delivery completes a future, which the PublishHandler uses to acknowledge
+ * the publisher according to the AckPolicy the publisher chose.
+ */
+package edu.rit.cs;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class DeliveryService {
+
+    // how long a task the prober hands off waits before trying a full delivery pool again.
+    private static final long HANDOFF_RETRY_MS = 10;
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService prober;
+    private final RetryScheduler retries;
+    private final Map<String, SubscriberLane> lanes = new ConcurrentHashMap<>();
+    private final int laneQueueSize;
+    private final int failureThreshold;
+    private final long probeIntervalMs;
+    private final int maxBatch;
+    private final long maxBatchDelayMs;
+    private final AtomicInteger threadCounter = new AtomicInteger();
+
+    public DeliveryService(int threads, int queueSize, int laneQueueSize, int failureThreshold, long probeIntervalMs,
+                           int maxBatch, long maxBatchDelayMs) {
+        this.laneQueueSize = laneQueueSize;
+        this.failureThreshold = failureThreshold;
+        this.probeIntervalMs = probeIntervalMs;
+        this.maxBatch = maxBatch;
+        this.maxBatchDelayMs = maxBatchDelayMs;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueSize),
+                r -> {
+                    Thread thread = new Thread(r, "delivery-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.prober = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "delivery-prober");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // the retry wheel gets the pool itself: a retry it has no room for waits for the next tick on the wheel.
+        this.retries = RetryScheduler.fromConfig(executor);
+    }
+
+    /*
+     * Runs the task on a delivery thread, or on the calling thread when the queue is full. That is what publishers
+     * get, so they slow down instead of events being dropped.
+     */
+    private void callerRuns(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /*
+     * Runs the task on a delivery thread, trying again a little later when the queue is full instead of running it
+     * on the calling thread. That is what the prober gets, so one lane's delivery never holds up the batch windows
+     * and probes of the others.
+     */
+    private void handOff(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            prober.schedule(() -> handOff(task), HANDOFF_RETRY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+     * builds the delivery service from the pubsub.delivery.* startup options.
+     */
+    public static DeliveryService fromConfig() {
+        return new DeliveryService(Math.max(1, PubSubConfig.getInt(PubSubConfig.DELIVERY_THREADS, 32)),
+                Math.max(1, PubSubConfig.getInt(PubSubConfig.DELIVERY_QUEUE_SIZE, 10000)),
+                PubSubConfig.getInt(PubSubConfig.LANE_QUEUE_SIZE, 1000),
+                PubSubConfig.getInt(PubSubConfig.BREAKER_FAILURE_THRESHOLD, 3),
+                Math.max(100, PubSubConfig.getInt(PubSubConfig.BREAKER_PROBE_INTERVAL_MS, 5000)),
+                PubSubConfig.getInt(PubSubConfig.LANE_MAX_BATCH, 100),
+                PubSubConfig.getInt(PubSubConfig.LANE_MAX_BATCH_DELAY_MS, 10));
+    }
+
+    /*
+     * Sends the request to one client in the background, through that client's SubscriberLane. The request was
+     * encoded once for all the subscribers of the event, and event is the event's encoded payload in it, which the
+     * lane copies into a receiveEvents batch if it coalesces the request with others. For QoS 1 and 2 a failed send is
+     * retried up to retrails times, with backoff. If the client still can't be reached, or its circuit is open, the
+     * notification is added to its pending notifications. The returned future completes with true if the client
+     * acknowledged the request.
+     */
+    public CompletableFuture<Boolean> deliver(String clientID, String ipAddress, EncodedRequest request,
+                                              JsonCodec.Raw event, Object notification, String qos, long retrails) {
+        return deliverAll(clientID, ipAddress, request, Collections.singletonList(event),
+                Collections.singletonList(notification), qos, retrails);
+    }
+
+    /*
+     * same as deliver, for a request that carries several events at once, e.g. a receiveEvents batch. If the request
+     * can't be delivered all of them are added to pending notifications.
+     */
+    public CompletableFuture<Boolean> deliverAll(String clientID, String ipAddress, EncodedRequest request,
+                                                 List<JsonCodec.Raw> events, List<?> notifications, String qos,
+                                                 long retrails) {
+        SubscriberLane.Delivery delivery = new SubscriberLane.Delivery(request, events, notifications, qos, retrails);
+        lanes.computeIfAbsent(clientID, id -> new SubscriberLane(id, laneQueueSize, failureThreshold, this::callerRuns,
+                this::handOff, retries, prober, probeIntervalMs, maxBatch, maxBatchDelayMs)).offer(delivery, ipAddress);
+        return delivery.getResult();
+    }
+
+    /*
+     * called when a client logs in, closes its circuit in case it was open.
+     */
+    public void clientLoggedIn(String clientID, String ipAddress) {
+        SubscriberLane lane = lanes.get(clientID);
+        if (lane != null) {
+            lane.reset(ipAddress);
+        }
+    }
+
+    public CircuitBreaker.State getCircuitState(String clientID) {
+        SubscriberLane lane = lanes.get(clientID);
+        return lane == null ? CircuitBreaker.State.CLOSED : lane.getState();
+    }
+
+    /*
+     * AckPolicy is the acknowledgement a publisher asks for: "accepted" answers as soon as the event has been handed
+     * to the delivery threads, "all" once every subscriber got it or had it parked in pending notifications, and a
+     * number N once N subscribers got it.
+     */
+    static class AckPolicy {
+        public static final String ACCEPTED = "accepted";
+        public static final String ALL = "all";
+
+        private final String mode;
+        private final int count;
+
+        private AckPolicy(String mode, int count) {
+            this.mode = mode;
+            this.count = count;
+        }
+
+        // a missing or unknown policy means "all", which is what publishers got before they could choose.
+        public static AckPolicy parse(Object ack) {
+            String value = ack == null ? ALL : ack.toString().trim();
+            if (value.equals(ACCEPTED)) {
+                return new AckPolicy(ACCEPTED, 0);
+            }
+            try {
+                return new AckPolicy("count", Math.max(0, Integer.parseInt(value)));
+            } catch (NumberFormatException e) {
+                return new AckPolicy(ALL, 0);
+            }
+        }
+    }
+
+    /*
+     * Tracker follows the deliveries of one published event, per subscriber, and waits for as many of them as the
+     * publisher's AckPolicy asks for.
+     */
+    static class Tracker {
+        private final Map<String, CompletableFuture<Boolean>> deliveries = new LinkedHashMap<>();
+        private final AtomicInteger delivered = new AtomicInteger();
+        private final CompletableFuture<Void> enoughDelivered = new CompletableFuture<>();
+        private int required;
+
+        public void track(String clientID, CompletableFuture<Boolean> delivery) {
+            deliveries.put(clientID, delivery);
+        }
+
+        /*
+         * Waits until the policy is satisfied or the timeout runs out, and describes the outcome for the publisher.
+         * Deliveries that are still running keep going in the background either way.
+         */
+        public String await(AckPolicy policy, long timeoutMs) {
+            int total = deliveries.size();
+            if (policy.mode.equals(AckPolicy.ACCEPTED)) {
+                return "Event accepted for delivery to " + total + " online subscribers";
+            }
+
+            CompletableFuture<Void> waitFor;
+            if (policy.mode.equals(AckPolicy.ALL)) {
+                waitFor = CompletableFuture.allOf(deliveries.values().toArray(new CompletableFuture<?>[0]));
+            } else {
+                required = Math.min(policy.count, total);
+                if (required == 0) {
+                    enoughDelivered.complete(null);
+                }
+                for (CompletableFuture<Boolean> delivery : deliveries.values()) {
+                    delivery.thenAccept(ok -> {
+                        if (ok && delivered.incrementAndGet() >= required) {
+                            enoughDelivered.complete(null);
+                        }
+                    });
+                }
+                // also stop waiting once every delivery has finished, even if fewer than N succeeded.
+                waitFor = CompletableFuture.anyOf(enoughDelivered,
+                        CompletableFuture.allOf(deliveries.values().toArray(new CompletableFuture<?>[0])))
+                        .thenApply(done -> null);
+            }
+
+            try {
+                waitFor.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                // timed out, report what got through so far.
+            }
+
+            int succeeded = 0;
+            for (CompletableFuture<Boolean> delivery : deliveries.values()) {
+                if (delivery.isDone() && !delivery.isCompletedExceptionally() && delivery.join()) {
+                    succeeded++;
+                }
+            }
+            if (policy.mode.equals(AckPolicy.ALL) && succeeded == total) {
+                return "Event successfully published to all subscribers";
+            }
+            if (policy.mode.equals(AckPolicy.ALL)) {
+                return "Event delivered to " + succeeded + " of " + total + " online subscribers, the rest were added to pending notifications";
+            }
+            return "Event delivered to " + succeeded + " of " + total + " online subscribers"
+                    + (succeeded < required ? ", fewer than the " + policy.count + " requested" : "");
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * DuplexChannel is the EventManager's end of a push channel: a long-lived connection that a publisher or subscriber
+ * opened to the EM at login, over which the EM sends it receiveTopic/receiveEvent(s)/receivePendingNotifications
+ * requests. Every message is one frame, a 4 byte length followed by that many bytes of JSON, or of a BinaryProtocol
+ * message if the client asked for it when it attached. Requests get their own
+ * ID on the channel, so many of them can be in flight at once and their responses are matched back by ID in
+ * whatever order they arrive.
+ */
+package edu.rit.cs;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+import com.thetransactioncompany.jsonrpc2.client.JSONRPC2SessionException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+class DuplexChannel {
+
+    // larger frames are treated as a broken stream rather than allocated.
+    static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    private final String clientID;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final boolean binary;
+    private final Map<Long, CompletableFuture<JSONRPC2Response>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong nextID = new AtomicLong();
+    private volatile boolean open = true;
+    // the last login address the channel's remote address was checked against and matched.
+    private volatile String matchedAddress;
+
+    DuplexChannel(String clientID, Socket socket, DataInputStream in, DataOutputStream out, boolean binary) {
+        this.clientID = clientID;
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.binary = binary;
+    }
+
+    /*
+     * reads one frame. Returns null if the stream ended cleanly before the frame started.
+     */
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    // writes one frame, the caller flushes and makes sure frames from different threads don't interleave.
+    static void writeFrame(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    /*
+     * Sends the request to the client under a channel ID of its own and waits up to timeoutMs (0 waits forever) for
+     * the response. Fails like a JSONRPC2Session would if the channel breaks or the client doesn't answer in time.
+     */
+    public JSONRPC2Response send(JSONRPC2Request request, long timeoutMs) throws JSONRPC2SessionException {
+        return send(EncodedRequest.of(request), timeoutMs);
+    }
+
+    // same as send, for a request encoded once for many clients. Its bytes go out as they are, with the channel's ID.
+    public JSONRPC2Response send(EncodedRequest request, long timeoutMs) throws JSONRPC2SessionException {
+        long id = nextID.incrementAndGet();
+        CompletableFuture<JSONRPC2Response> response = new CompletableFuture<>();
+        inFlight.put(id, response);
+        try {
+            if (!open) {
+                throw new IOException("Push channel of " + clientID + " is closed");
+            }
+            synchronized (out) {
+                if (binary) {
+                    out.writeInt(request.binaryLength(id));
+                    request.writeBinaryTo(out, id);
+                } else {
+                    out.writeInt(request.length(id));
+                    request.writeTo(out, id);
+                }
+                out.flush();
+            }
+            return timeoutMs > 0 ? response.get(timeoutMs, TimeUnit.MILLISECONDS) : response.get();
+        } catch (IOException | ExecutionException e) {
+            close();
+            throw new JSONRPC2SessionException("Push channel of " + clientID + " failed: " + e.getMessage(),
+                    JSONRPC2SessionException.NETWORK_EXCEPTION, e);
+        } catch (TimeoutException e) {
+            throw new JSONRPC2SessionException(clientID + " didn't answer within " + timeoutMs + "ms",
+                    JSONRPC2SessionException.NETWORK_EXCEPTION, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JSONRPC2SessionException("Interrupted", JSONRPC2SessionException.NETWORK_EXCEPTION, e);
+        } finally {
+            inFlight.remove(id);
+        }
+    }
+
+    /*
+     * reads the client's responses and hands each one to the request waiting for it, until the channel closes.
+     */
+    void readResponses() {
+        try {
+            byte[] frame;
+            while ((frame = readFrame(in)) != null) {
+                JSONRPC2Response response;
+                try {
+                    response = binary ? BinaryProtocol.decodeResponse(frame) : JsonCodec.parseResponse(frame);
+                } catch (JSONRPC2ParseException e) {
+                    System.out.println("Ignoring unreadable response on the push channel of " + clientID);
+                    continue;
+                }
+                if (response.getID() instanceof Number) {
+                    long id = ((Number) response.getID()).longValue();
+                    CompletableFuture<JSONRPC2Response> waiting = inFlight.remove(id);
+                    if (waiting != null) {
+                        waiting.complete(response);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (open) {
+                System.out.println("Push channel of " + clientID + " broke: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public String getClientID() {
+        return clientID;
+    }
+
+    // whether the channel comes from the host the client logged in from.
+    public boolean isFrom(String ipAddress) {
+        if (ipAddress == null) {
+            return false;
+        }
+        if (ipAddress.equals(matchedAddress)) {
+            return true;
+        }
+        if (isSameHost(socket.getInetAddress(), ipAddress)) {
+            matchedAddress = ipAddress;
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * Whether a connection from remote comes from the host at loginAddress. A client on the EventManager's own
+     * machine logs in with one of the machine's addresses but may connect over loopback, so that counts too.
+     */
+    static boolean isSameHost(InetAddress remote, String loginAddress) {
+        try {
+            InetAddress login = InetAddress.getByName(loginAddress);
+            if (login.equals(remote)) {
+                return true;
+            }
+            return remote.isLoopbackAddress() && (login.isLoopbackAddress() || login.isAnyLocalAddress()
+                    || NetworkInterface.getByInetAddress(login) != null);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // closes the connection and fails every request still waiting for a response.
+    public void close() {
+        open = false;
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+        for (CompletableFuture<JSONRPC2Response> waiting : inFlight.values()) {
+            waiting.completeExceptionally(new IOException("Push channel of " + clientID + " closed"));
+        }
+    }
+}
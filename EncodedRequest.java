@@ -0,0 +1,93 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * EncodedRequest is a JSON-RPC request whose method and params were encoded once, to be sent to many clients. Only
+ * the ID differs from one client's connection to the next, so every send writes the same immutable bytes followed by
+ * its own ID, and fanning an event out to more subscribers costs more writes but no more encoding. The same goes for
+ * clients on the BinaryProtocol, whose encoding of the request is made the first time one of them gets it.
+ */
+package edu.rit.cs;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+class EncodedRequest {
+
+    private final String method;
+    private final Map<String, Object> params;
+    // the request up to and including "id":, shared by every send.
+    private final byte[] prefix;
+    // the binary request up to its ID, made on first use.
+    private volatile byte[] binaryPrefix;
+
+    private EncodedRequest(String method, Map<String, Object> params, byte[] prefix) {
+        this.method = method;
+        this.params = params;
+        this.prefix = prefix;
+    }
+
+    /*
+     * encodes the method and named params. Raw values in the params are copied in as they are, see JsonCodec.Raw.
+     */
+    public static EncodedRequest of(String method, Map<String, Object> params) {
+        Map<String, Object> message = new HashMap<>();
+        message.put("jsonrpc", "2.0");
+        message.put("method", method);
+        if (params != null) {
+            message.put("params", params);
+        }
+        byte[] json = JsonCodec.encodeValue(message);
+        byte[] idField = ",\"id\":".getBytes(StandardCharsets.US_ASCII);
+        // drop the closing brace, the ID and the brace are written by every send.
+        byte[] prefix = new byte[json.length - 1 + idField.length];
+        System.arraycopy(json, 0, prefix, 0, json.length - 1);
+        System.arraycopy(idField, 0, prefix, json.length - 1, idField.length);
+        return new EncodedRequest(method, params, prefix);
+    }
+
+    public static EncodedRequest of(JSONRPC2Request request) {
+        return of(request.getMethod(), request.getNamedParams());
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    // number of bytes writeTo writes for this ID.
+    public int length(long id) {
+        return prefix.length + suffix(id).length;
+    }
+
+    public void writeTo(OutputStream out, long id) throws IOException {
+        out.write(prefix);
+        out.write(suffix(id));
+    }
+
+    // number of bytes writeBinaryTo writes for this ID.
+    public int binaryLength(long id) {
+        return binaryPrefix().length + BinaryProtocol.encodeID(id).length;
+    }
+
+    public void writeBinaryTo(OutputStream out, long id) throws IOException {
+        out.write(binaryPrefix());
+        out.write(BinaryProtocol.encodeID(id));
+    }
+
+    private byte[] binaryPrefix() {
+        byte[] encoded = binaryPrefix;
+        if (encoded == null) {
+            encoded = BinaryProtocol.encodeRequestStart(method, params);
+            binaryPrefix = encoded;
+        }
+        return encoded;
+    }
+
+    private static byte[] suffix(long id) {
+        return (id + "}").getBytes(StandardCharsets.US_ASCII);
+    }
+}
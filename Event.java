@@ -2,40 +2,63 @@
  * @author-name: Rishab Katta
  *
  * Event class for instantiating event object. An event can be thought of as a message that publisher sends to all topic
- * subscribers.
+ * subscribers. An event refers to its topic by the topic's ID only, which is all that goes on the wire and into the
+ * EventManager's log; the EventManager resolves the ID against its topic catalog. It also carries optional headers and
+ * the time it was created at.
  */
 package edu.rit.cs;
 
+import net.minidev.json.JSONStreamAwareEx;
+import net.minidev.json.JSONStyle;
+
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /*
 Event class just consists of constructors and getters/setters.
  */
-public class Event implements Serializable {
+public class Event implements Serializable, JSONStreamAwareEx {
 	private String id;
-	private Topic topic;
+	private String topicId;
 	private String title;
 	private String content;
-	private static int counter = 0;
+	// null if the event has no headers.
+	private Map<String, String> headers;
+	private long timestamp;
+	// the topic the ID refers to, once it is known. Never sent along, only the ID is.
+	private transient Topic topic;
 
 	public Event(String id, Topic topic, String title, String content){
-		this.id = id;
-		this.topic = topic;
-		this.title = title;
-		this.content = content;
-		incrementCounter();
+		this(id, topic, title, content, null);
 	}
 
+	// an event with a new ID, unique over all publishers. See IdGenerator.
 	public Event(Topic topic, String title, String content) {
-		this.id = "e" + counter;
+		this(IdGenerator.nextId(), topic, title, content, null);
+	}
+
+	public Event(Topic topic, String title, String content, Map<String, String> headers) {
+		this(IdGenerator.nextId(), topic, title, content, headers);
+	}
+
+	public Event(String id, Topic topic, String title, String content, Map<String, String> headers) {
+		this(id, topic == null ? null : topic.getId(), title, content, headers, System.currentTimeMillis());
 		this.topic = topic;
-		this.title = title;
-		this.content = content;
-		incrementCounter();
 	}
 
-	private void incrementCounter(){
-		counter += 1;
+	/*
+	 * an event as it was sent, whose topic is only known by its ID until it is resolved with setTopic.
+	 */
+	public Event(String id, String topicId, String title, String content, Map<String, String> headers, long timestamp) {
+		this.id = id;
+		this.topicId = topicId;
+		this.title = title;
+		this.content = content;
+		this.headers = headers == null || headers.isEmpty() ? null : new HashMap<>(headers);
+		this.timestamp = timestamp;
 	}
 
 
@@ -43,10 +66,20 @@ public class Event implements Serializable {
 		return id;
 	}
 
+	public String getTopicId() {
+		return topicId;
+	}
+
+	// the topic, null if the event was received and its ID hasn't been resolved.
 	public Topic getTopic() {
 		return topic;
 	}
 
+	public void setTopic(Topic topic) {
+		this.topic = topic;
+		this.topicId = topic.getId();
+	}
+
 	public String getTitle() {
 		return title;
 	}
@@ -54,4 +87,29 @@ public class Event implements Serializable {
 	public String getContent() {
 		return content;
 	}
+
+	public Map<String, String> getHeaders() {
+		return headers == null ? Collections.emptyMap() : Collections.unmodifiableMap(headers);
+	}
+
+	// the header's value, null if the event doesn't have it.
+	public String getHeader(String name) {
+		return headers == null ? null : headers.get(name);
+	}
+
+	// milliseconds since the epoch the event was created at, 0 if it came from an agent that doesn't send it.
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/*
+	 * writes the event when it is put in a JSON-RPC message, see JsonCodec.
+	 */
+	public void writeJSONString(Appendable out) throws IOException {
+		JsonCodec.write(this, out);
+	}
+
+	public void writeJSONString(Appendable out, JSONStyle style) throws IOException {
+		JsonCodec.write(this, out);
+	}
 }
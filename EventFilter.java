@@ -0,0 +1,299 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * EventFilter is a content based subscription filter. A subscriber can pass one with subscribeTopic, and the
+ * EventManager then only delivers the topic's events the filter accepts, instead of sending everything and letting
+ * the subscriber throw most of it away.
+ *
+ * A filter is an expression over the event's fields, e.g.
+ *     title contains 'IBM' and not (content startsWith "draft" or topic == 'markets.test')
+ * The fields are title, content, topic (the topic's name) and header.<name>, the event's header of that name, e.g.
+ * header.region == 'eu'. A missing header compares like an empty string. Comparisons are ==, !=, contains, startsWith,
+ * endsWith and matches (a java regex over the whole field). They combine with and/&&, or/|| and not/!, with parentheses.
+ *
+ * An expression is compiled once into a tree of predicates, and subscribers with the same expression share the
+ * compiled filter.
+ */
+package edu.rit.cs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+class EventFilter {
+
+    // accepts every event, the filter of a subscription without one.
+    public static final EventFilter ALL = new EventFilter("", event -> true);
+
+    // compiled filters by expression. Bounded by clearing it, filters in use stay referenced by their subscriptions.
+    private static final int MAX_SHARED_FILTERS = 10000;
+    private static final Map<String, EventFilter> compiled = new ConcurrentHashMap<>();
+
+    private final String expression;
+    private final Predicate<Event> predicate;
+
+    private EventFilter(String expression, Predicate<Event> predicate) {
+        this.expression = expression;
+        this.predicate = predicate;
+    }
+
+    /*
+     * Returns the compiled filter of the expression, ALL if it's empty. Throws IllegalArgumentException if the
+     * expression isn't valid.
+     */
+    public static EventFilter compile(String expression) {
+        if (expression == null || expression.trim().isEmpty()) {
+            return ALL;
+        }
+        String key = expression.trim();
+        EventFilter filter = compiled.get(key);
+        if (filter == null) {
+            filter = new EventFilter(key, new Parser(key).parse());
+            if (compiled.size() >= MAX_SHARED_FILTERS) {
+                compiled.clear();
+            }
+            EventFilter raced = compiled.putIfAbsent(key, filter);
+            if (raced != null) {
+                filter = raced;
+            }
+        }
+        return filter;
+    }
+
+    /*
+     * a filter accepting the events any of the filters accepts, for a subscriber with several subscriptions matching
+     * the same topic.
+     */
+    public static EventFilter anyOf(Collection<EventFilter> filters) {
+        if (filters.size() == 1) {
+            return filters.iterator().next();
+        }
+        if (filters.contains(ALL)) {
+            return ALL;
+        }
+        List<EventFilter> alternatives = new ArrayList<>(filters);
+        return new EventFilter("any of " + alternatives, event -> {
+            for (EventFilter filter : alternatives) {
+                if (filter.test(event)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    public boolean test(Event event) {
+        return predicate.test(event);
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    // recursive descent parser of filter expressions into predicates.
+    private static class Parser {
+        private final String text;
+        private int position = 0;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Predicate<Event> parse() {
+            Predicate<Event> predicate = parseOr();
+            skipSpaces();
+            if (position < text.length()) {
+                throw error("unexpected '" + text.substring(position) + "'");
+            }
+            return predicate;
+        }
+
+        private Predicate<Event> parseOr() {
+            Predicate<Event> predicate = parseAnd();
+            while (accept("||") || acceptWord("or")) {
+                predicate = predicate.or(parseAnd());
+            }
+            return predicate;
+        }
+
+        private Predicate<Event> parseAnd() {
+            Predicate<Event> predicate = parseNot();
+            while (accept("&&") || acceptWord("and")) {
+                predicate = predicate.and(parseNot());
+            }
+            return predicate;
+        }
+
+        private Predicate<Event> parseNot() {
+            if (acceptWord("not") || (!peek("!=") && accept("!"))) {
+                return parseNot().negate();
+            }
+            if (accept("(")) {
+                Predicate<Event> predicate = parseOr();
+                if (!accept(")")) {
+                    throw error("missing ')'");
+                }
+                return predicate;
+            }
+            return parseComparison();
+        }
+
+        private Predicate<Event> parseComparison() {
+            String name = word();
+            Function<Event, String> field = name.equalsIgnoreCase("header") && accept(".") ? header(headerName()) : field(name);
+            String operator = operator();
+            String value = string();
+            switch (operator) {
+                case "==":
+                    return event -> field.apply(event).equals(value);
+                case "!=":
+                    return event -> !field.apply(event).equals(value);
+                case "contains":
+                    return event -> field.apply(event).contains(value);
+                case "startswith":
+                    return event -> field.apply(event).startsWith(value);
+                case "endswith":
+                    return event -> field.apply(event).endsWith(value);
+                default:
+                    try {
+                        Pattern pattern = Pattern.compile(value);
+                        return event -> pattern.matcher(field.apply(event)).matches();
+                    } catch (PatternSyntaxException e) {
+                        throw error("bad regex '" + value + "'");
+                    }
+            }
+        }
+
+        private Function<Event, String> field(String name) {
+            switch (name.toLowerCase()) {
+                case "title":
+                    return event -> orEmpty(event.getTitle());
+                case "content":
+                    return event -> orEmpty(event.getContent());
+                case "topic":
+                    return event -> event.getTopic() == null ? "" : orEmpty(event.getTopic().getName());
+                default:
+                    throw error("unknown field '" + name + "'");
+            }
+        }
+
+        private Function<Event, String> header(String name) {
+            return event -> orEmpty(event.getHeader(name));
+        }
+
+        // a header's name: letters, digits, '-' and '_', matched case sensitively.
+        private String headerName() {
+            int start = position;
+            while (position < text.length() && (Character.isLetterOrDigit(text.charAt(position))
+                    || text.charAt(position) == '-' || text.charAt(position) == '_')) {
+                position++;
+            }
+            if (start == position) {
+                throw error("expected a header name after 'header.'");
+            }
+            return text.substring(start, position);
+        }
+
+        private String operator() {
+            if (accept("==")) {
+                return "==";
+            }
+            if (accept("!=")) {
+                return "!=";
+            }
+            String operator = word().toLowerCase();
+            switch (operator) {
+                case "contains":
+                case "startswith":
+                case "endswith":
+                case "matches":
+                    return operator;
+                default:
+                    throw error("unknown comparison '" + operator + "'");
+            }
+        }
+
+        // a single or double quoted string, with \ escaping the next character.
+        private String string() {
+            skipSpaces();
+            if (position >= text.length() || (text.charAt(position) != '\'' && text.charAt(position) != '"')) {
+                throw error("expected a quoted string");
+            }
+            char quote = text.charAt(position++);
+            StringBuilder value = new StringBuilder();
+            while (position < text.length() && text.charAt(position) != quote) {
+                char c = text.charAt(position++);
+                if (c == '\\' && position < text.length()) {
+                    c = text.charAt(position++);
+                }
+                value.append(c);
+            }
+            if (position >= text.length()) {
+                throw error("unterminated string");
+            }
+            position++;
+            return value.toString();
+        }
+
+        private String word() {
+            skipSpaces();
+            int start = position;
+            while (position < text.length() && Character.isLetter(text.charAt(position))) {
+                position++;
+            }
+            if (start == position) {
+                throw error("expected a field or comparison");
+            }
+            return text.substring(start, position);
+        }
+
+        private boolean acceptWord(String word) {
+            skipSpaces();
+            int end = position + word.length();
+            if (text.regionMatches(true, position, word, 0, word.length())
+                    && (end == text.length() || !Character.isLetter(text.charAt(end)))) {
+                position = end;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean accept(String symbol) {
+            if (peek(symbol)) {
+                position += symbol.length();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean peek(String symbol) {
+            skipSpaces();
+            return text.startsWith(symbol, position);
+        }
+
+        private void skipSpaces() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Bad filter at " + position + ": " + message);
+        }
+
+        private static String orEmpty(String value) {
+            return value == null ? "" : value;
+        }
+    }
+}
@@ -0,0 +1,552 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * EventLog is the EventManager's durable store of published events. Every topic has its own append-only log in its
+ * own directory, split into segments of at most segmentBytes. A segment file is named after the offset of its first
+ * event, and every record in it is [length][crc32][event json]. Events are on disk instead of on the heap, they
+ * survive a restart, and they can be read back by offset. Pull subscribers fetch from here, waiting for new events
+ * with a long poll. A waiting poll doesn't hold a thread: it is parked on its topic's log and completed by the log's
+ * poller thread once an event arrives or its wait is over.
+ *
+ * How often the log is forced to disk is the fsync policy: "always" after every append, "interval" every
+ * fsyncIntervalMs, or "os" leaves it to the operating system.
+ *
+ * Appends to a topic take its log's lock, reads only take it to look up where the log ends and which segments to
+ * read, and read the files outside it, so a subscriber catching up on old segments never holds up publishing. Every
+ * topic keeps the file of its active segment open, so the EventManager needs a file descriptor per topic that was
+ * ever published to. Whenever a topic's log starts a new segment, its oldest segments are deleted until the older
+ * ones take no more than retentionBytes, so the log of a topic takes at most about retentionBytes + segmentBytes of
+ * disk; 0 keeps every event forever. Reads of deleted offsets start at the oldest event left.
+ */
+package edu.rit.cs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+class EventLog {
+
+    public static final String FSYNC_ALWAYS = "always";
+    public static final String FSYNC_INTERVAL = "interval";
+    public static final String FSYNC_OS = "os";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_BYTES = 8;
+    private static final long INDEX_INTERVAL_BYTES = 64 * 1024;
+
+    // A record read back from the log, with its offset in the topic.
+    static class Record {
+        private final long offset;
+        private final byte[] payload;
+
+        Record(long offset, byte[] payload) {
+            this.offset = offset;
+            this.payload = payload;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        // the event's json, as it was appended.
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private final File directory;
+    private final long segmentBytes;
+    private final long retentionBytes;
+    private final String fsyncPolicy;
+    private final Map<String, TopicLog> topics = new ConcurrentHashMap<>();
+    // times out the waiting long polls and completes them, so neither happens on a publisher's thread.
+    private final ScheduledThreadPoolExecutor poller;
+
+    public EventLog(File directory, long segmentBytes, long retentionBytes, String fsyncPolicy, long fsyncIntervalMs) {
+        this.directory = directory;
+        this.segmentBytes = Math.max(1024, segmentBytes);
+        this.retentionBytes = Math.max(0, retentionBytes);
+        this.fsyncPolicy = fsyncPolicy;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.out.println("Couldn't create event log directory " + directory);
+        }
+        this.poller = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "event-log-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // polls that got their event are taken off the queue instead of waiting there until their timeout.
+        poller.setRemoveOnCancelPolicy(true);
+
+        if (fsyncPolicy.equals(FSYNC_INTERVAL)) {
+            ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "event-log-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(1, fsyncIntervalMs);
+            flusher.scheduleWithFixedDelay(this::flush, period, period, TimeUnit.MILLISECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "event-log-shutdown"));
+    }
+
+    /*
+     * builds the event log from the pubsub.log.* startup options.
+     */
+    public static EventLog fromConfig() {
+        String fsync = PubSubConfig.getString(PubSubConfig.LOG_FSYNC, FSYNC_INTERVAL);
+        if (!fsync.equals(FSYNC_ALWAYS) && !fsync.equals(FSYNC_INTERVAL) && !fsync.equals(FSYNC_OS)) {
+            System.out.println("Unknown fsync policy " + fsync + ", using " + FSYNC_INTERVAL);
+            fsync = FSYNC_INTERVAL;
+        }
+        return new EventLog(new File(PubSubConfig.getString(PubSubConfig.LOG_DIR, "eventlog")),
+                PubSubConfig.getInt(PubSubConfig.LOG_SEGMENT_BYTES, 64 * 1024 * 1024),
+                PubSubConfig.getLong(PubSubConfig.LOG_RETENTION_BYTES, 1024L * 1024 * 1024),
+                fsync,
+                PubSubConfig.getInt(PubSubConfig.LOG_FSYNC_INTERVAL_MS, 1000));
+    }
+
+    /*
+     * appends an event, as UTF-8 json, to its topic's log and returns its offset in the topic.
+     */
+    public long append(String topicName, byte[] eventJson) throws IOException {
+        return topicLog(topicName).append(eventJson);
+    }
+
+    /*
+     * reads up to maxRecords events of a topic, starting at the given offset.
+     */
+    public List<Record> read(String topicName, long fromOffset, int maxRecords) throws IOException {
+        return topicLog(topicName).read(fromOffset, maxRecords);
+    }
+
+    /*
+     * Long poll for pull subscribers: waits up to maxWaitMs for an event at or after fromOffset, then reads up to
+     * maxRecords events from there. The future completes with an empty list if nothing was published in time. If
+     * there are events already the read happens right away on the calling thread, otherwise the poll waits without
+     * holding it and the read happens on the poller thread.
+     */
+    public CompletableFuture<List<Record>> fetch(String topicName, long fromOffset, int maxRecords, long maxWaitMs)
+            throws IOException {
+        TopicLog log = topicLog(topicName);
+        CompletableFuture<List<Record>> records = new CompletableFuture<>();
+        log.awaitEnd(fromOffset, maxWaitMs, () -> {
+            try {
+                records.complete(log.read(fromOffset, maxRecords));
+            } catch (IOException | RuntimeException e) {
+                records.completeExceptionally(e);
+            }
+        });
+        return records;
+    }
+
+    // offset the next event of the topic will get, i.e. the number of events in its log.
+    public long endOffset(String topicName) throws IOException {
+        return topicLog(topicName).endOffset();
+    }
+
+    // forces everything appended so far to disk.
+    public void flush() {
+        for (TopicLog log : topics.values()) {
+            try {
+                log.flush();
+            } catch (IOException e) {
+                System.out.println("Couldn't flush event log of " + log.dir.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private TopicLog topicLog(String topicName) throws IOException {
+        TopicLog log = topics.get(topicName);
+        if (log != null) {
+            return log;
+        }
+        synchronized (topics) {
+            log = topics.get(topicName);
+            if (log == null) {
+                log = new TopicLog(new File(directory, directoryName(topicName)));
+                topics.put(topicName, log);
+            }
+            return log;
+        }
+    }
+
+    // topic names are chosen by users, so keep only characters that are safe in a file name.
+    private static String directoryName(String topicName) {
+        StringBuilder name = new StringBuilder();
+        for (char c : topicName.toCharArray()) {
+            name.append(Character.isLetterOrDigit(c) || c == '-' || c == '_' ? c : '_');
+        }
+        return name.append('-').append(Integer.toHexString(topicName.hashCode())).toString();
+    }
+
+    /*
+     * A segment file and a sparse index from offsets to file positions, one entry every INDEX_INTERVAL_BYTES, so a
+     * read doesn't have to scan the segment from its start. The index of the active segment is guarded by the
+     * TopicLog's lock, the index of an old segment is only built when it is read, under the segment's own lock.
+     */
+    private static class Segment {
+        private final File file;
+        private final long baseOffset;
+        private TreeMap<Long, Long> index;
+        private long lastIndexedPosition = -INDEX_INTERVAL_BYTES;
+
+        Segment(File file, long baseOffset) {
+            this.file = file;
+            this.baseOffset = baseOffset;
+        }
+
+        void indexRecord(long offset, long position) {
+            if (position - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+                index.put(offset, position);
+                lastIndexedPosition = position;
+            }
+        }
+    }
+
+    // A long poll parked on a topic's log, waiting for an event at or after offset.
+    private static class Waiter {
+        private final long offset;
+        private final Runnable then;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private volatile ScheduledFuture<?> timeout;
+
+        Waiter(long offset, Runnable then) {
+            this.offset = offset;
+            this.then = then;
+        }
+
+        // runs then once, whether the event or the timeout comes first.
+        void complete() {
+            if (done.compareAndSet(false, true)) {
+                ScheduledFuture<?> pending = timeout;
+                if (pending != null) {
+                    pending.cancel(false);
+                }
+                then.run();
+            }
+        }
+    }
+
+    /*
+     * The log of one topic: its segments by base offset, of which only the last one is written to.
+     */
+    private class TopicLog {
+        private final File dir;
+        private final TreeMap<Long, Segment> segments = new TreeMap<>();
+        private Segment activeSegment;
+        private FileChannel active;
+        private long nextOffset;
+        private boolean dirty = false;
+        private final List<Waiter> waiters = new ArrayList<>();
+
+        TopicLog(File dir) throws IOException {
+            this.dir = dir;
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Couldn't create " + dir);
+            }
+            File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+            if (files != null) {
+                for (File file : files) {
+                    String base = file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length());
+                    try {
+                        long baseOffset = Long.parseLong(base);
+                        segments.put(baseOffset, new Segment(file, baseOffset));
+                    } catch (NumberFormatException e) {
+                        System.out.println("Ignoring unknown file " + file + " in the event log.");
+                    }
+                }
+            }
+            if (segments.isEmpty()) {
+                openSegment(0);
+            } else {
+                recover();
+            }
+        }
+
+        // reopens the last segment, indexing its records and cutting off a record that was only partly written.
+        private void recover() throws IOException {
+            activeSegment = segments.lastEntry().getValue();
+            active = FileChannel.open(activeSegment.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = active.size();
+            long position = scan(active, activeSegment, size, true);
+            if (position < size) {
+                System.out.println("Truncating " + (size - position) + " bytes of a partly written event in " + activeSegment.file);
+                active.truncate(position);
+            }
+            active.position(position);
+        }
+
+        /*
+         * walks the records of a segment up to end and builds its index. Returns the position after the last whole
+         * record. For the active segment, which is only scanned under the lock, a record with a bad checksum counts
+         * as the end, and nextOffset is set.
+         */
+        private long scan(FileChannel channel, Segment segment, long end, boolean isActive) throws IOException {
+            segment.index = new TreeMap<>();
+            segment.lastIndexedPosition = -INDEX_INTERVAL_BYTES;
+            long position = 0;
+            long offset = segment.baseOffset;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (position + HEADER_BYTES <= end) {
+                header.clear();
+                readFully(channel, header, position);
+                header.flip();
+                int length = header.getInt();
+                long crc = header.getInt() & 0xffffffffL;
+                if (length < 0 || position + HEADER_BYTES + length > end) {
+                    break;
+                }
+                if (isActive) {
+                    ByteBuffer payload = ByteBuffer.allocate(length);
+                    readFully(channel, payload, position + HEADER_BYTES);
+                    if (checksum(payload.array()) != crc) {
+                        break;
+                    }
+                }
+                segment.indexRecord(offset, position);
+                position += HEADER_BYTES + length;
+                offset++;
+            }
+            if (isActive) {
+                nextOffset = offset;
+            }
+            return position;
+        }
+
+        private void openSegment(long baseOffset) throws IOException {
+            if (active != null) {
+                active.force(false);
+                active.close();
+                // the old segment's index is rebuilt if it is ever read again.
+                synchronized (activeSegment) {
+                    activeSegment.index = null;
+                }
+            }
+            File file = new File(dir, String.format("%020d%s", baseOffset, SEGMENT_SUFFIX));
+            active = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            activeSegment = new Segment(file, baseOffset);
+            segments.put(baseOffset, activeSegment);
+            scan(active, activeSegment, active.size(), true);
+            active.position(active.size());
+            deleteOldSegments();
+        }
+
+        // deletes the oldest segments until the ones before the active segment take no more than retentionBytes.
+        private void deleteOldSegments() {
+            if (retentionBytes == 0) {
+                return;
+            }
+            long retained = 0;
+            for (Segment segment : segments.values()) {
+                if (segment != activeSegment) {
+                    retained += segment.file.length();
+                }
+            }
+            while (retained > retentionBytes && segments.firstEntry().getValue() != activeSegment) {
+                Segment oldest = segments.pollFirstEntry().getValue();
+                retained -= oldest.file.length();
+                if (!oldest.file.delete()) {
+                    System.out.println("Couldn't delete old event log segment " + oldest.file);
+                }
+            }
+        }
+
+        long append(byte[] payload) throws IOException {
+            long offset;
+            List<Waiter> ready = null;
+            synchronized (this) {
+                if (active.position() > 0 && active.position() + HEADER_BYTES + payload.length > segmentBytes) {
+                    openSegment(nextOffset);
+                }
+                ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+                record.putInt(payload.length);
+                record.putInt((int) checksum(payload));
+                record.put(payload);
+                record.flip();
+                activeSegment.indexRecord(nextOffset, active.position());
+                while (record.hasRemaining()) {
+                    active.write(record);
+                }
+                if (fsyncPolicy.equals(FSYNC_ALWAYS)) {
+                    active.force(false);
+                } else {
+                    dirty = true;
+                }
+                offset = nextOffset++;
+                if (!waiters.isEmpty()) {
+                    ready = new ArrayList<>();
+                    for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+                        Waiter waiter = it.next();
+                        if (waiter.offset <= offset) {
+                            it.remove();
+                            ready.add(waiter);
+                        }
+                    }
+                }
+            }
+            // the long polls waiting for this event are completed on the poller, not on the publisher's thread.
+            if (ready != null) {
+                for (Waiter waiter : ready) {
+                    poller.execute(waiter::complete);
+                }
+            }
+            return offset;
+        }
+
+        /*
+         * Runs then once there is an event at or after offset, or once maxWaitMs have passed. Right away on the
+         * calling thread if there is one already, otherwise the waiter is parked and then runs on the poller thread.
+         */
+        void awaitEnd(long offset, long maxWaitMs, Runnable then) {
+            Waiter waiter = new Waiter(offset, then);
+            synchronized (this) {
+                if (nextOffset <= offset && maxWaitMs > 0) {
+                    waiters.add(waiter);
+                } else {
+                    waiter = null;
+                }
+            }
+            if (waiter == null) {
+                then.run();
+                return;
+            }
+            Waiter parked = waiter;
+            parked.timeout = poller.schedule(() -> {
+                synchronized (this) {
+                    waiters.remove(parked);
+                }
+                parked.complete();
+            }, maxWaitMs, TimeUnit.MILLISECONDS);
+        }
+
+        /*
+         * Reads up to maxRecords records from fromOffset on. Which segments to read and where the active one ends are
+         * looked up under the lock, the files themselves are read outside it.
+         */
+        List<Record> read(long fromOffset, int maxRecords) throws IOException {
+            List<Record> records = new ArrayList<>();
+            List<Segment> toRead;
+            long offset;
+            Segment current;
+            FileChannel currentChannel;
+            long currentEnd;
+            Map.Entry<Long, Long> currentStart;
+            synchronized (this) {
+                offset = Math.max(fromOffset, segments.firstKey());
+                if (offset >= nextOffset) {
+                    return records;
+                }
+                toRead = new ArrayList<>(segments.tailMap(segments.floorKey(offset), true).values());
+                current = activeSegment;
+                currentChannel = active;
+                currentEnd = active.position();
+                currentStart = activeSegment.index.floorEntry(offset);
+            }
+            for (Segment segment : toRead) {
+                if (records.size() >= maxRecords) {
+                    break;
+                }
+                long from = Math.max(offset, segment.baseOffset);
+                if (segment == current) {
+                    int before = records.size();
+                    try {
+                        readSegment(currentChannel, segment, from == offset ? currentStart : null, currentEnd, from,
+                                maxRecords, records);
+                    } catch (ClosedChannelException e) {
+                        // the log moved on to a new segment meanwhile, this one is an old segment now.
+                        records.subList(before, records.size()).clear();
+                        readOldSegment(segment, currentEnd, from, maxRecords, records);
+                    }
+                } else if (!readOldSegment(segment, Long.MAX_VALUE, from, maxRecords, records) && !records.isEmpty()) {
+                    // deleted for retention meanwhile, return the records up to it rather than skip its events.
+                    break;
+                }
+            }
+            return records;
+        }
+
+        // returns false if the segment was deleted for retention meanwhile.
+        private boolean readOldSegment(Segment segment, long end, long fromOffset, int maxRecords,
+                                       List<Record> records) throws IOException {
+            try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+                Map.Entry<Long, Long> start;
+                synchronized (segment) {
+                    if (segment.index == null) {
+                        scan(channel, segment, channel.size(), false);
+                    }
+                    start = segment.index.floorEntry(fromOffset);
+                }
+                readSegment(channel, segment, start, Math.min(end, channel.size()), fromOffset, maxRecords, records);
+                return true;
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+        }
+
+        // reads records from offset on, starting at start, the closest indexed position at or before it, if known.
+        private void readSegment(FileChannel channel, Segment segment, Map.Entry<Long, Long> start, long end,
+                                 long fromOffset, int maxRecords, List<Record> records) throws IOException {
+            long offset = start == null ? segment.baseOffset : start.getKey();
+            long position = start == null ? 0 : start.getValue();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (position + HEADER_BYTES <= end && records.size() < maxRecords) {
+                header.clear();
+                readFully(channel, header, position);
+                header.flip();
+                int length = header.getInt();
+                if (offset >= fromOffset) {
+                    ByteBuffer payload = ByteBuffer.allocate(length);
+                    readFully(channel, payload, position + HEADER_BYTES);
+                    records.add(new Record(offset, payload.array()));
+                }
+                position += HEADER_BYTES + length;
+                offset++;
+            }
+        }
+
+        synchronized long endOffset() {
+            return nextOffset;
+        }
+
+        synchronized void flush() throws IOException {
+            if (dirty) {
+                active.force(false);
+                dirty = false;
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of event log segment");
+            }
+        }
+    }
+
+    private static long checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return crc.getValue();
+    }
+}
@@ -6,22 +6,22 @@
 package edu.rit.cs;
 
 
-import com.google.gson.Gson;
 import com.thetransactioncompany.jsonrpc2.*;
-import com.thetransactioncompany.jsonrpc2.client.JSONRPC2Session;
 import com.thetransactioncompany.jsonrpc2.client.JSONRPC2SessionException;
 import com.thetransactioncompany.jsonrpc2.server.*;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.util.*;
 import java.net.*;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /*
  * EventManagerHandler is the wrapper class for all the Handler classes that handle different type of requests from
@@ -48,25 +48,13 @@ class EventManagerHandler {
                     String publisherID = (String) myParams.get("publisherID");
                     String ipAddress = (String) myParams.get("ipAddress");
                     String response;
-                    boolean isPublisherInInfoMap = EventManager.PublisherInfo.containsKey(publisherID);
-                    for(Map.Entry<String, String> entry : EventManager.PublisherInfo.entrySet()){
-                        String pub = entry.getKey();
-                        String ipa = entry.getValue();
-                        if (ipa.equals(ipAddress)){
-                            synchronized (EventManager.PublisherInfo){
-                                EventManager.PublisherInfo.replace(pub, "0");
-                            }
-                        }
-                    }
-                    synchronized (EventManager.PublisherInfo) {
-                        if (isPublisherInInfoMap) {
-                            EventManager.PublisherInfo.replace(publisherID, ipAddress);
-                            response = "Logged in " + publisherID + ". Welcome back!";
-                        } else {
-                            EventManager.PublisherInfo.put(publisherID, ipAddress);
-                            response = "Registered and logged in " + publisherID;
-                        }
+                    //logs off whichever publisher was on that IP before.
+                    if (EventManager.PublisherInfo.login(publisherID, ipAddress)) {
+                        response = "Logged in " + publisherID + ". Welcome back!";
+                    } else {
+                        response = "Registered and logged in " + publisherID;
                     }
+                    EventManager.Deliveries.clientLoggedIn(publisherID, ipAddress);
                     return new JSONRPC2Response(response, req.getID());
                 }
                 case "subscriberLogin": {
@@ -76,25 +64,15 @@ class EventManagerHandler {
                     String subscriberID = (String) myParams.get("subscriberID");
                     String ipAddress = (String) myParams.get("ipAddress");
                     String response;
-                    boolean isSubscriberInInfoMap = EventManager.SubscriberInfo.containsKey(subscriberID);
-                    for(Map.Entry<String, String> entry : EventManager.SubscriberInfo.entrySet()){
-                        String pub = entry.getKey();
-                        String ipa = entry.getValue();
-                        if (ipa.equals(ipAddress)){
-                            synchronized (EventManager.SubscriberInfo){
-                                EventManager.SubscriberInfo.replace(pub, "0");
-                            }
-                        }
-                    }
-                    synchronized (EventManager.SubscriberInfo) {
-                        if (isSubscriberInInfoMap) {
-                            EventManager.SubscriberInfo.replace(subscriberID, ipAddress);
-                            response = "Logged in " + subscriberID + ". Welcome back!";
-                        } else {
-                            EventManager.SubscriberInfo.put(subscriberID, ipAddress);
-                            response = "Registered and logged in " + subscriberID;
-                        }
+                    //logs off whichever subscriber was on that IP before.
+                    if (EventManager.SubscriberInfo.login(subscriberID, ipAddress)) {
+                        response = "Logged in " + subscriberID + ". Welcome back!";
+                    } else {
+                        response = "Registered and logged in " + subscriberID;
                     }
+                    //pull subscribers fetch their events from the event log instead of getting them pushed.
+                    EventManager.SubscriberInfo.setPulling(subscriberID, "pull".equals(myParams.get("mode")));
+                    EventManager.Deliveries.clientLoggedIn(subscriberID, ipAddress);
                     return new JSONRPC2Response(response, req.getID());
                 }
                 case "publisherLogoff": {
@@ -102,14 +80,8 @@ class EventManagerHandler {
                     // Obtain publisherID and publisher's IPAddress from the request sent by the publisher.
                     Map<String, Object> myParams = req.getNamedParams();
                     String hostname = (String) myParams.get("publisherID");
-                    boolean isPublisherInInfoMap = EventManager.PublisherInfo.containsKey(hostname);
-                    synchronized (EventManager.PublisherInfo) {
-                        if (isPublisherInInfoMap) {
-                            EventManager.PublisherInfo.replace(hostname, "0");
-                        } else {
-                            EventManager.PublisherInfo.put(hostname, "0");
-                        }
-                    }
+                    EventManager.PublisherInfo.logoff(hostname);
+                    EventManager.ClientConnections.remove(hostname);
                     return new JSONRPC2Response(hostname + " logged off.", req.getID());
                 }
                 case "subscriberLogoff": {
@@ -117,14 +89,8 @@ class EventManagerHandler {
                     // Obtain subscriberID and IPAddress from the request sent by the subscriber.
                     Map<String, Object> myParams = req.getNamedParams();
                     String hostname = (String) myParams.get("subscriberID");
-                    boolean isSubscriberInInfoMap = EventManager.SubscriberInfo.containsKey(hostname);
-                    synchronized (EventManager.SubscriberInfo) {
-                        if (isSubscriberInInfoMap) {
-                            EventManager.SubscriberInfo.replace(hostname, "0");
-                        } else {
-                            EventManager.SubscriberInfo.put(hostname, "0");
-                        }
-                    }
+                    EventManager.SubscriberInfo.logoff(hostname);
+                    EventManager.ClientConnections.remove(hostname);
 
                     return new JSONRPC2Response(hostname + " logged off.", req.getID());
                 }
@@ -138,95 +104,193 @@ class EventManagerHandler {
     public static class PublishHandler implements RequestHandler {
 
         // Reports the method names of the handled requests
-        public String[] handledRequests() {return new String[]{"publishEvent"};}
+        public String[] handledRequests() {return new String[]{"publishEvent", "publishEvents"};}
 
         // Processes the requests
         public JSONRPC2Response process(JSONRPC2Request req, MessageContext ctx) {
 
             if (req.getMethod().equals("publishEvent")) {
                 Map<String, Object> myParams = req.getNamedParams();
-                Gson gson = new Gson();
-                Event newEvent = gson.fromJson(myParams.get("event").toString(), Event.class);
+                Event newEvent = JsonCodec.event(myParams.get("event"));
                 String qos = (String) myParams.get("qos");
                 long retrails = (long) myParams.get("retrails");
-                synchronized (EventManager.EventInfo) {
-                    EventManager.EventInfo.add(newEvent);
+                Topic eventTopic = EventManager.resolveTopic(newEvent);
+                if (eventTopic == null) {
+                    //in a cluster it may be another node's topic this one never had.
+                    return EventManager.Nodes.isEnabled()
+                            ? new JSONRPC2Response(EventManager.Nodes.unknownTopic(newEvent.getTopicId()), req.getID())
+                            : new JSONRPC2Response("Topic doesn't exist yet.", req.getID());
+                }
+                if (!EventManager.Nodes.owns(eventTopic.getName())) {
+                    return new JSONRPC2Response(EventManager.Nodes.notOwner(eventTopic.getName()), req.getID());
                 }
-                Topic eventTopic = newEvent.getTopic();
                 if (!EventManager.TopicInfo.containsKey(eventTopic.getName())) {
                     return new JSONRPC2Response("Topic doesn't exist yet.", req.getID());
                 }
+                //encode the event once, with only its topic's ID. The same bytes are stored in the log and sent to
+                //every subscriber.
+                JsonCodec.Raw payload = new JsonCodec.Raw(JsonCodec.encodeValue(newEvent));
+                //store the event in its topic's log before sending it anywhere.
+                try {
+                    EventManager.Events.append(eventTopic.getName(), payload.getBytes());
+                } catch (IOException e) {
+                    System.out.println("Couldn't store event " + newEvent.getTitle() + ": " + e.getMessage());
+                    return new JSONRPC2Response("Event couldn't be stored, it was not published.", req.getID());
+                }
 
-                //get all the online subscribers. If subscribers are not online put events in a pending notifications map.
-                List<String> subscribersToSendEventTo = EventManager.TopicSubscribers.get(eventTopic.getName());
+                //get all the online subscribers of the topic's name and of wildcard patterns matching it whose filter
+                //accepts the event. If subscribers are not online put events in a pending notifications map. Pull
+                //subscribers read the event from the log themselves.
+                SubscriptionTrie.Match subscribersToSendEventTo = EventManager.Subscriptions.match(eventTopic.getName());
+                ClientRegistry.Receivers receivers = EventManager.SubscriberInfo.receivers(subscribersToSendEventTo.getSubscribers());
                 HashMap<String, String> onlineSubscribersToSendEventTo = new HashMap<>();
-                if (subscribersToSendEventTo != null) {
-                    for (String subscriber : subscribersToSendEventTo) {
-                        if (!EventManager.SubscriberInfo.get(subscriber).equals("0")) {
-                            onlineSubscribersToSendEventTo.put(subscriber, EventManager.SubscriberInfo.get(subscriber));
+                for (int id : receivers.getOnline().toArray()) {
+                    if (subscribersToSendEventTo.filterOf(id).test(newEvent)) {
+                        String subscriber = EventManager.ClientIds.nameOf(id);
+                        String subscriberIP = EventManager.SubscriberInfo.addressOf(subscriber);
+                        if (subscriberIP != null) {
+                            onlineSubscribersToSendEventTo.put(subscriber, subscriberIP);
                         } else {
-                            System.out.println("Event couldn't be sent to " + subscriber + ". Added to pending notifications.");
-                            if (EventManager.PendingNotifications.containsKey(subscriber)) {
-                                synchronized (EventManager.PendingNotifications) {
-                                    EventManager.PendingNotifications.get(subscriber).add(newEvent);
-                                }
-                            } else {
-                                synchronized (EventManager.PendingNotifications) {
-                                    EventManager.PendingNotifications.put(subscriber, new ArrayList<>(Arrays.asList(newEvent)));
-                                }
-                            }
+                            //logged off since.
+                            EventManager.addPendingNotification(subscriber, newEvent);
                         }
                     }
                 }
-                //for all online subscribers, send that event. If a subscriber is not online and we try to send
-                // it goes to catch block and we add it to pending notifications.
+                for (int id : receivers.getOffline().toArray()) {
+                    if (subscribersToSendEventTo.filterOf(id).test(newEvent)) {
+                        String subscriber = EventManager.ClientIds.nameOf(id);
+                        System.out.println("Event couldn't be sent to " + subscriber + ". Added to pending notifications.");
+                        EventManager.addPendingNotification(subscriber, newEvent);
+                    }
+                }
+                //send the event to all online subscribers at once on the delivery threads. If a subscriber can't be
+                //reached its delivery adds the event to pending notifications.
+                //the receiveEvent request is encoded once too, every subscriber's connection only adds its own ID.
+                DeliveryService.Tracker tracker = new DeliveryService.Tracker();
+                Map<String, Object> eventParams = new HashMap<>();
+                eventParams.put("event", payload);
+                EncodedRequest request = EncodedRequest.of("receiveEvent", eventParams);
                 for (Map.Entry<String, String> entry : onlineSubscribersToSendEventTo.entrySet()) {
                     String subscriber = entry.getKey();
                     String subscriberIP = entry.getValue();
-                    URL serverURL = null;
-                    try {
-                        serverURL = new URL("http://" + subscriberIP + ":" + 6969);
+                    tracker.track(subscriber, EventManager.Deliveries.deliver(subscriber, subscriberIP, request, payload, newEvent, qos, retrails));
+                }
+
+                DeliveryService.AckPolicy ackPolicy = DeliveryService.AckPolicy.parse(myParams.get("ack"));
+                long ackTimeout = PubSubConfig.getInt(PubSubConfig.ACK_TIMEOUT_MS, 30000);
+                return new JSONRPC2Response(tracker.await(ackPolicy, ackTimeout), req.getID());
 
-                    } catch (MalformedURLException e) {
-                        System.out.println("Subscriber not up.");
+            } else if (req.getMethod().equals("publishEvents")) {
+                Map<String, Object> myParams = req.getNamedParams();
+                @SuppressWarnings("unchecked")
+                List<Object> rawEvents = (List<Object>) myParams.get("events");
+                String qos = (String) myParams.get("qos");
+                long retrails = (long) myParams.get("retrails");
+                List<Event> events = JsonCodec.events(rawEvents);
+                String[] results = new String[rawEvents.size()];
+                JsonCodec.Raw[] payloads = new JsonCodec.Raw[rawEvents.size()];
+                //the agent splits a batch by owner, so one with another node's topic was routed with an old ring,
+                //like one with a topic this node never had. Nothing of it is stored then, the agent sends it again
+                //to the right nodes.
+                for (Event newEvent : events) {
+                    Topic eventTopic = EventManager.resolveTopic(newEvent);
+                    if (eventTopic == null && EventManager.Nodes.isEnabled()) {
+                        return new JSONRPC2Response(EventManager.Nodes.unknownTopic(newEvent.getTopicId()), req.getID());
                     }
-                    JSONRPC2Session mySession = new JSONRPC2Session(serverURL);
-                    EventManager.requestID += 1;
-                    JSONRPC2Request request = new JSONRPC2Request("receiveEvent", EventManager.requestID);
-                    Map<String, Object> advertiseParams = new HashMap<>();
-                    advertiseParams.put("event", newEvent);
-                    request.setNamedParams(myParams);
-                    JSONRPC2Response response = null;
+                    if (eventTopic != null && !EventManager.Nodes.owns(eventTopic.getName())) {
+                        return new JSONRPC2Response(EventManager.Nodes.notOwner(eventTopic.getName()), req.getID());
+                    }
+                }
+
+                //group the batch by topic, so the subscribers of every topic are looked up only once.
+                Map<String, List<Integer>> eventsByTopic = new LinkedHashMap<>();
+                for (int i = 0; i < rawEvents.size(); i++) {
+                    Event newEvent = events.get(i);
+                    String topicName = newEvent.getTopic() == null ? null : newEvent.getTopic().getName();
+                    if (topicName == null || !EventManager.TopicInfo.containsKey(topicName)) {
+                        results[i] = "Topic doesn't exist yet.";
+                        continue;
+                    }
+                    //encoded once, for the log and every subscriber's batch.
+                    payloads[i] = new JsonCodec.Raw(JsonCodec.encodeValue(newEvent));
                     try {
-                        response = mySession.send(request);
-                    } catch (JSONRPC2SessionException e) {
-                        if (qos.equals("1") || qos.equals("2")){
-                            for (int i=0; i<=retrails; i++){
-                                if (response == null){
-                                    try {
-                                        response = mySession.send(request);
-                                    } catch (JSONRPC2SessionException ignored) {}
-                                }
-                            }
-                        }
+                        EventManager.Events.append(topicName, payloads[i].getBytes());
+                    } catch (IOException e) {
+                        System.out.println("Couldn't store event " + newEvent.getTitle() + ": " + e.getMessage());
+                        results[i] = "Event couldn't be stored, it was not published.";
+                        continue;
                     }
-                    if (response != null && response.indicatesSuccess())
-                        System.out.println("Event successfully sent to " + subscriber);
-                    else {
-                        if (EventManager.PendingNotifications.containsKey(subscriber)) {
-                            synchronized (EventManager.PendingNotifications) {
-                                EventManager.PendingNotifications.get(subscriber).add(newEvent);
+                    eventsByTopic.computeIfAbsent(topicName, k -> new ArrayList<>()).add(i);
+                }
+
+                //collect the events of every online subscriber over all the topics it subscribed to, so it gets the
+                //whole batch in one receiveEvents request. Offline subscribers get them as pending notifications, pull
+                //subscribers read them from the log themselves.
+                Map<String, List<Integer>> eventsBySubscriber = new LinkedHashMap<>();
+                Map<String, String> subscriberIPs = new HashMap<>();
+                for (Map.Entry<String, List<Integer>> entry : eventsByTopic.entrySet()) {
+                    SubscriptionTrie.Match matched = EventManager.Subscriptions.match(entry.getKey());
+                    ClientRegistry.Receivers receivers = EventManager.SubscriberInfo.receivers(matched.getSubscribers());
+                    for (int id : receivers.getOnline().or(receivers.getOffline()).toArray()) {
+                        //only the events the subscriber's filter accepts.
+                        EventFilter filter = matched.filterOf(id);
+                        List<Integer> accepted = new ArrayList<>();
+                        for (int i : entry.getValue()) {
+                            if (filter.test(events.get(i))) {
+                                accepted.add(i);
                             }
+                        }
+                        if (accepted.isEmpty()) {
+                            continue;
+                        }
+                        String subscriber = EventManager.ClientIds.nameOf(id);
+                        String subscriberIP = receivers.getOnline().contains(id) ? EventManager.SubscriberInfo.addressOf(subscriber) : null;
+                        if (subscriberIP != null) {
+                            subscriberIPs.put(subscriber, subscriberIP);
+                            eventsBySubscriber.computeIfAbsent(subscriber, k -> new ArrayList<>()).addAll(accepted);
                         } else {
-                            synchronized (EventManager.PendingNotifications) {
-                                EventManager.PendingNotifications.put(subscriber, new ArrayList<>(Arrays.asList(newEvent)));
+                            System.out.println(accepted.size() + " events couldn't be sent to " + subscriber + ". Added to pending notifications.");
+                            for (int i : accepted) {
+                                EventManager.addPendingNotification(subscriber, events.get(i));
                             }
                         }
-                        System.out.println("Event couldn't be sent to " + subscriber + ". Added to pending notifications.");
                     }
                 }
 
-                return new JSONRPC2Response("Event successfully published to all subscribers", req.getID());
+                //one tracker per event, following the combined deliveries that carry it.
+                DeliveryService.Tracker[] trackers = new DeliveryService.Tracker[results.length];
+                for (int i = 0; i < results.length; i++) {
+                    trackers[i] = new DeliveryService.Tracker();
+                }
+                for (Map.Entry<String, List<Integer>> entry : eventsBySubscriber.entrySet()) {
+                    String subscriber = entry.getKey();
+                    //keep the publisher's order, events of different topics were added topic by topic.
+                    Collections.sort(entry.getValue());
+                    List<JsonCodec.Raw> eventsToSend = new ArrayList<>();
+                    List<Event> notifications = new ArrayList<>();
+                    for (int i : entry.getValue()) {
+                        eventsToSend.add(payloads[i]);
+                        notifications.add(events.get(i));
+                    }
+                    Map<String, Object> eventParams = new HashMap<>();
+                    eventParams.put("events", eventsToSend);
+                    CompletableFuture<Boolean> delivery = EventManager.Deliveries.deliverAll(subscriber,
+                            subscriberIPs.get(subscriber), EncodedRequest.of("receiveEvents", eventParams),
+                            eventsToSend, notifications, qos, retrails);
+                    for (int i : entry.getValue()) {
+                        trackers[i].track(subscriber, delivery);
+                    }
+                }
+
+                //the ack timeout covers the whole batch, not every event on its own.
+                DeliveryService.AckPolicy ackPolicy = DeliveryService.AckPolicy.parse(myParams.get("ack"));
+                long deadline = System.currentTimeMillis() + PubSubConfig.getInt(PubSubConfig.ACK_TIMEOUT_MS, 30000);
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] == null) {
+                        results[i] = trackers[i].await(ackPolicy, Math.max(0, deadline - System.currentTimeMillis()));
+                    }
+                }
+                return new JSONRPC2Response(Arrays.asList(results), req.getID());
 
             } else {return new JSONRPC2Response(JSONRPC2Error.METHOD_NOT_FOUND, req.getID());}
         }
@@ -244,45 +308,36 @@ class EventManagerHandler {
 
             if (req.getMethod().equals("advertiseTopic")) {
                 Map<String, Object> myParams = req.getNamedParams();
-                Gson gson = new Gson();
-                Topic newTopic = gson.fromJson(myParams.get("topic").toString(), Topic.class);
+                Topic newTopic = JsonCodec.topic(myParams.get("topic"));
 
-                synchronized (EventManager.TopicInfo) {
-                    EventManager.TopicInfo.put(newTopic.getName(), newTopic);
+                if (SubscriptionTrie.isPattern(newTopic.getName())) {
+                    return new JSONRPC2Response("Topic names can't have * or # levels, those are for subscribing.", req.getID());
+                }
+                if (!EventManager.Nodes.owns(newTopic.getName())) {
+                    return new JSONRPC2Response(EventManager.Nodes.notOwner(newTopic.getName()), req.getID());
                 }
+                //the catalog's topic is the one sent to the clients and back to the advertiser, so they all publish
+                //with the ID it has here, which differs from the advertised one if another topic had that ID.
+                newTopic = EventManager.catalogTopic(newTopic);
+                EventManager.TopicInfo.put(newTopic.getName(), newTopic);
+                EventManager.TopicKeywords.add(newTopic);
 
                 //get all online subscribers, if not online, put that topic in a pending notifications map.
                 HashMap<String, String> onlineClientsToSendTopicTo = new HashMap<>();
-                for (String subscriber : EventManager.SubscriberInfo.keySet()) {
-                    if (!EventManager.SubscriberInfo.get(subscriber).equals("0")) {
-                        onlineClientsToSendTopicTo.put(subscriber, EventManager.SubscriberInfo.get(subscriber));
+                for (Map.Entry<String, String> entry : EventManager.SubscriberInfo.snapshot().entrySet()) {
+                    if (!entry.getValue().equals(ClientRegistry.OFFLINE)) {
+                        onlineClientsToSendTopicTo.put(entry.getKey(), entry.getValue());
                     } else {
-                        if (EventManager.PendingNotifications.containsKey(subscriber)) {
-                            synchronized (EventManager.PendingNotifications) {
-                                EventManager.PendingNotifications.get(subscriber).add(newTopic);
-                            }
-                        } else {
-                            synchronized (EventManager.PendingNotifications) {
-                                EventManager.PendingNotifications.put(subscriber, new ArrayList<>(Arrays.asList(newTopic)));
-                            }
-                        }
+                        EventManager.addPendingNotification(entry.getKey(), newTopic);
                     }
                 }
 
                 //get all online publishers, if not online, put that topic in a pending notifications map.
-                for (String publisher : EventManager.PublisherInfo.keySet()) {
-                    if (!EventManager.PublisherInfo.get(publisher).equals("0")) {
-                        onlineClientsToSendTopicTo.put(publisher, EventManager.PublisherInfo.get(publisher));
+                for (Map.Entry<String, String> entry : EventManager.PublisherInfo.snapshot().entrySet()) {
+                    if (!entry.getValue().equals(ClientRegistry.OFFLINE)) {
+                        onlineClientsToSendTopicTo.put(entry.getKey(), entry.getValue());
                     } else {
-                        if (EventManager.PendingNotifications.containsKey(publisher)) {
-                            synchronized (EventManager.PendingNotifications) {
-                                EventManager.PendingNotifications.get(publisher).add(newTopic);
-                            }
-                        } else {
-                            synchronized (EventManager.PendingNotifications) {
-                                EventManager.PendingNotifications.put(publisher, new ArrayList<>(Arrays.asList(newTopic)));
-                            }
-                        }
+                        EventManager.addPendingNotification(entry.getKey(), newTopic);
                     }
                 }
 
@@ -291,39 +346,23 @@ class EventManagerHandler {
                 for (Map.Entry<String, String> entry : onlineClientsToSendTopicTo.entrySet()) {
                     String clientIP = entry.getValue();
                     String client = entry.getKey();
-                    URL serverURL = null;
-                    try {
-                        serverURL = new URL("http://" + clientIP + ":" + 6969);
-
-                    } catch (MalformedURLException e) {
-                        System.out.println("client not up.");
-                    }
-                    JSONRPC2Session mySession = new JSONRPC2Session(serverURL);
                     EventManager.requestID += 1;
                     JSONRPC2Request request = new JSONRPC2Request("receiveTopic", EventManager.requestID);
                     Map<String, Object> advertiseParams = new HashMap<>();
                     advertiseParams.put("topic", newTopic);
-                    request.setNamedParams(myParams);
+                    request.setNamedParams(advertiseParams);
                     JSONRPC2Response response = null;
                     try {
-                        response = mySession.send(request);
+                        response = EventManager.ClientConnections.send(client, clientIP, request);
                     } catch (JSONRPC2SessionException e) {
-                        if (EventManager.PendingNotifications.containsKey(client)) {
-                            synchronized (EventManager.PendingNotifications) {
-                                EventManager.PendingNotifications.get(client).add(newTopic);
-                            }
-                        } else {
-                            synchronized (EventManager.PendingNotifications) {
-                                EventManager.PendingNotifications.put(client, new ArrayList<>(Arrays.asList(newTopic)));
-                            }
-                        }
+                        EventManager.addPendingNotification(client, newTopic);
                     }
                     if (response != null && response.indicatesSuccess())
                         System.out.println("Topic successfully advertised to " + client);
                     else
                         System.out.println("topic couldn't be sent to " + client + ". added to pending notifications");
                 }
-                return new JSONRPC2Response(" Topic successfully advertised to all clients.", req.getID());
+                return new JSONRPC2Response(newTopic, req.getID());
             } else {
                 return new JSONRPC2Response(JSONRPC2Error.METHOD_NOT_FOUND, req.getID());
             }
@@ -334,31 +373,55 @@ class EventManagerHandler {
     public static class SubscribeHandler implements RequestHandler {
 
         // Reports the method names of the handled requests
-        public String[] handledRequests() {return new String[]{"subscribeTopic"};}
+        public String[] handledRequests() {return new String[]{"subscribeTopic", "getSubscriptions"};}
 
         // Processes the requests
         public JSONRPC2Response process(JSONRPC2Request req, MessageContext ctx) {
 
             if (req.getMethod().equals("subscribeTopic")) {
                 Map<String, Object> myParams = req.getNamedParams();
-                Gson gson = new Gson();
-                Topic newTopic = gson.fromJson(myParams.get("topic").toString(), Topic.class);
+                Topic newTopic = JsonCodec.topic(myParams.get("topic"));
                 String newTopicName = newTopic.getName();
                 String subscriberID = (String) myParams.get("subscriberID");
-                boolean isTopicNameInTopicSubscribers = EventManager.TopicSubscribers.containsKey(newTopicName);
-                ArrayList<String> subscribersList;
-                synchronized (EventManager.TopicSubscribers) {
-                    if (isTopicNameInTopicSubscribers) {
-                        subscribersList = EventManager.TopicSubscribers.get(newTopicName);
-                        subscribersList.add(subscriberID);
-                    } else {
-                        subscribersList = new ArrayList<>();
-                        subscribersList.add(subscriberID);
+                //the name can be a pattern like markets.equities.* or markets.#, see SubscriptionTrie. The optional
+                //filter selects the events the subscriber gets, see EventFilter. Patterns are kept on every node of a
+                //cluster, names only on the topic's owner.
+                if (!SubscriptionTrie.isPattern(newTopicName) && !EventManager.Nodes.owns(newTopicName)) {
+                    return new JSONRPC2Response(EventManager.Nodes.notOwner(newTopicName), req.getID());
+                }
+                //pull subscribers read the logs of the topics they name, a pattern has no log of its own.
+                if (SubscriptionTrie.isPattern(newTopicName) && EventManager.SubscriberInfo.isPulling(subscriberID)) {
+                    JSONRPC2Error error = JSONRPC2Error.INVALID_PARAMS.appendMessage(
+                            ": pull subscribers can't subscribe to patterns, subscribe to the topics by name");
+                    return new JSONRPC2Response(error, req.getID());
+                }
+                EventFilter filter;
+                try {
+                    filter = EventFilter.compile((String) myParams.get("filter"));
+                } catch (IllegalArgumentException e) {
+                    return new JSONRPC2Response(JSONRPC2Error.INVALID_PARAMS.appendMessage(": " + e.getMessage()), req.getID());
+                }
+                //subscriptions are a set, subscribing again only replaces the filter.
+                boolean subscribed = EventManager.Subscriptions.subscribe(newTopicName, subscriberID, filter);
+                //a pull subscriber starts at the events published from now on.
+                if (EventManager.SubscriberInfo.isPulling(subscriberID) && EventManager.TopicInfo.containsKey(newTopicName)) {
+                    try {
+                        EventManager.Offsets.commitIfAbsent(subscriberID, newTopicName, EventManager.Events.endOffset(newTopicName));
+                    } catch (IOException e) {
+                        System.out.println("Couldn't open the event log of " + newTopicName + ": " + e.getMessage());
                     }
-                    EventManager.TopicSubscribers.put(newTopicName, subscribersList);
                 }
 
+                if (!subscribed) {
+                    return new JSONRPC2Response(subscriberID + " was already subscribed to " + newTopicName, req.getID());
+                }
                 return new JSONRPC2Response(subscriberID + "successfully subscribed to " + newTopicName, req.getID());
+
+            } else if (req.getMethod().equals("getSubscriptions")) {
+                //answered from the subscriber's own subscriptions, not by looking through every topic.
+                Map<String, Object> myParams = req.getNamedParams();
+                String subscriberID = (String) myParams.get("subscriberID");
+                return new JSONRPC2Response(EventManager.Subscriptions.subscriptionsOf(subscriberID), req.getID());
             } else {
                 return new JSONRPC2Response(JSONRPC2Error.METHOD_NOT_FOUND, req.getID());
             }
@@ -377,27 +440,21 @@ class EventManagerHandler {
 
             if (req.getMethod().equals("unsubscribeTopic")) {
                 Map<String, Object> myParams = req.getNamedParams();
-                Gson gson = new Gson();
-                Topic newTopic = gson.fromJson(myParams.get("topic").toString(), Topic.class);
+                Topic newTopic = JsonCodec.topic(myParams.get("topic"));
                 String newTopicName = newTopic.getName();
                 String subscriberID = (String) myParams.get("subscriberID");
-                boolean isTopicNameInTopicSubscribers = EventManager.TopicSubscribers.containsKey(newTopicName);
-                synchronized (EventManager.TopicSubscribers) {
-                    if (isTopicNameInTopicSubscribers) {
-                        EventManager.TopicSubscribers.get(newTopicName).remove(subscriberID);
-                    }
+                if (!SubscriptionTrie.isPattern(newTopicName) && !EventManager.Nodes.owns(newTopicName)) {
+                    return new JSONRPC2Response(EventManager.Nodes.notOwner(newTopicName), req.getID());
                 }
+                EventManager.Subscriptions.unsubscribe(newTopicName, subscriberID);
+                EventManager.Offsets.remove(subscriberID, newTopicName);
                 return new JSONRPC2Response(subscriberID + "successfully unsubscribed from " + newTopicName, req.getID());
 
             } else if (req.getMethod().equals("unsubscribeAll")) {
                 Map<String, Object> myParams = req.getNamedParams();
                 String subscriberID = (String) myParams.get("subscriberID");
-                if (!EventManager.TopicSubscribers.isEmpty()) {
-                    synchronized (EventManager.TopicSubscribers) {
-                        for (Map.Entry<String, ArrayList<String>> entry : EventManager.TopicSubscribers.entrySet()) {
-                            entry.getValue().remove(subscriberID);
-                        }
-                    }
+                for (String topicName : EventManager.Subscriptions.unsubscribeAll(subscriberID)) {
+                    EventManager.Offsets.remove(subscriberID, topicName);
                 }
 
                 return new JSONRPC2Response(subscriberID + "successfully unsubscribed from all topics", req.getID());
@@ -407,40 +464,146 @@ class EventManagerHandler {
 
     }
 
+    //Implements a Handler for pull subscribers fetching events from the event log and committing their offsets.
+    public static class FetchHandler implements RequestHandler {
+
+        // Reports the method names of the handled requests
+        public String[] handledRequests() {return new String[]{"fetchEvents", "commitOffset"};}
+
+        // Processes the requests
+        public JSONRPC2Response process(JSONRPC2Request req, MessageContext ctx) {
+
+            if (req.getMethod().equals("fetchEvents")) {
+                //long poll: wait up to maxWaitMs for events at or after fromOffset. Without a fromOffset the fetch
+                //starts at the subscriber's committed offset.
+                Map<String, Object> myParams = req.getNamedParams();
+                String subscriberID = (String) myParams.get("subscriberID");
+                String topicName = (String) myParams.get("topic");
+                if (topicName != null && !EventManager.Nodes.owns(topicName)) {
+                    return new JSONRPC2Response(EventManager.Nodes.notOwner(topicName), req.getID());
+                }
+                if (topicName == null || !EventManager.TopicInfo.containsKey(topicName)) {
+                    return new JSONRPC2Response(JSONRPC2Error.INVALID_PARAMS, req.getID());
+                }
+                int maxEvents = Math.max(1, Math.min(EventManager.MAX_FETCH_EVENTS,
+                        JsonCodec.numberParam(myParams, "maxEvents", 100).intValue()));
+                long maxWaitMs = Math.max(0, Math.min(EventManager.MAX_FETCH_WAIT_MS,
+                        JsonCodec.numberParam(myParams, "maxWaitMs", 0).longValue()));
+                long fromOffset = JsonCodec.numberParam(myParams, "fromOffset", -1).longValue();
+                if (fromOffset < 0 && subscriberID != null) {
+                    fromOffset = EventManager.Offsets.committed(subscriberID, topicName);
+                }
+                fromOffset = Math.max(0, fromOffset);
+
+                //a poll that has to wait is answered once events arrive, without holding this thread meanwhile.
+                long start = fromOffset;
+                CompletableFuture<List<EventLog.Record>> fetched;
+                try {
+                    fetched = EventManager.Events.fetch(topicName, fromOffset, maxEvents, maxWaitMs);
+                } catch (IOException e) {
+                    System.out.println("Couldn't read the event log of " + topicName + ": " + e.getMessage());
+                    return new JSONRPC2Response(JSONRPC2Error.INTERNAL_ERROR, req.getID());
+                }
+                return DeferredResponse.of(fetched.handle((records, e) -> {
+                    if (e != null) {
+                        System.out.println("Couldn't read the event log of " + topicName + ": " + e.getMessage());
+                        return new JSONRPC2Response(JSONRPC2Error.INTERNAL_ERROR, req.getID());
+                    }
+                    List<Object> events = new ArrayList<>();
+                    long nextOffset = start;
+                    for (EventLog.Record record : records) {
+                        events.add(new JsonCodec.Raw(record.getPayload()));
+                        nextOffset = record.getOffset() + 1;
+                    }
+                    Map<String, Object> result = new HashMap<>();
+                    result.put("events", events);
+                    result.put("nextOffset", nextOffset);
+                    return new JSONRPC2Response(result, req.getID());
+                }), req.getID());
+
+            } else if (req.getMethod().equals("commitOffset")) {
+                Map<String, Object> myParams = req.getNamedParams();
+                String subscriberID = (String) myParams.get("subscriberID");
+                String topicName = (String) myParams.get("topic");
+                long offset = JsonCodec.numberParam(myParams, "offset", -1).longValue();
+                if (subscriberID == null || topicName == null || offset < 0) {
+                    return new JSONRPC2Response(JSONRPC2Error.INVALID_PARAMS, req.getID());
+                }
+                if (!EventManager.Nodes.owns(topicName)) {
+                    return new JSONRPC2Response(EventManager.Nodes.notOwner(topicName), req.getID());
+                }
+                EventManager.Offsets.commit(subscriberID, topicName, offset);
+                return new JSONRPC2Response(offset, req.getID());
+
+            } else {return new JSONRPC2Response(JSONRPC2Error.METHOD_NOT_FOUND, req.getID());}
+        }
+    }
+
     //Implements a Handler for Handling retrieving topic object from topic name
     public static class getTopicFromNameHandler implements RequestHandler {
 
+        // the most topics one searchTopics page returns.
+        private static final int MAX_SEARCH_RESULTS = 1000;
+
         // Reports the method names of the handled requests
         public String[] handledRequests() {
-            return new String[]{"getTopicFromTopicName", "getTopicFromKeyword", "getAllTopics"};
+            return new String[]{"getTopicFromTopicName", "getTopicFromKeyword", "searchTopics", "getAllTopics"};
         }
 
         // Processes the requests
         public JSONRPC2Response process(JSONRPC2Request req, MessageContext ctx) {
             Map<String, Topic> matchedTopics = new HashMap<>();
-            Gson gson = new Gson();
             if (req.getMethod().equals("getTopicFromTopicName")) {
                 Map<String, Object> myParams = req.getNamedParams();
                 String newTopicName = (String) myParams.get("topicName");
+                if (!EventManager.Nodes.owns(newTopicName)) {
+                    return new JSONRPC2Response(EventManager.Nodes.notOwner(newTopicName), req.getID());
+                }
 
-                return new JSONRPC2Response(gson.toJson(EventManager.TopicInfo.get(newTopicName)), req.getID());
+                return new JSONRPC2Response(EventManager.TopicInfo.get(newTopicName), req.getID());
 
             } else if (req.getMethod().equals("getTopicFromKeyword")) {
                 Map<String, Object> myParams = req.getNamedParams();
                 String keyword = (String) myParams.get("keyword");
-                for (Map.Entry<String, Topic> entry : EventManager.TopicInfo.entrySet()) {
-                    String topicName = entry.getKey();
-                    Topic topic = entry.getValue();
-                    if (topic.getKeywords().contains(keyword)) {
-                        matchedTopics.put(topicName, topic);
-                    }
+                KeywordIndex.Page page = EventManager.TopicKeywords.search(Collections.singletonList(keyword), true, false, 0, Integer.MAX_VALUE);
+                for (String topicName : page.getTopicNames()) {
+                    matchedTopics.put(topicName, EventManager.TopicInfo.get(topicName));
                 }
 
                 return new JSONRPC2Response(matchedTopics, req.getID());
 
+            } else if (req.getMethod().equals("searchTopics")) {
+                // keywords: the keywords to look for, mode: "and" (default) or "or", prefix: match keywords starting
+                // with them, offset and limit: the page of topics (sorted by name) to return.
+                Map<String, Object> myParams = req.getNamedParams();
+                if (!(myParams.get("keywords") instanceof List)) {
+                    return new JSONRPC2Response(JSONRPC2Error.INVALID_PARAMS, req.getID());
+                }
+                List<String> keywords = new ArrayList<>();
+                for (Object keyword : (List<?>) myParams.get("keywords")) {
+                    keywords.add(String.valueOf(keyword));
+                }
+                boolean matchAll = !"or".equalsIgnoreCase(String.valueOf(myParams.get("mode")));
+                boolean prefix = Boolean.TRUE.equals(myParams.get("prefix"));
+                int offset = Math.max(0, JsonCodec.numberParam(myParams, "offset", 0).intValue());
+                int limit = Math.max(1, Math.min(MAX_SEARCH_RESULTS,
+                        JsonCodec.numberParam(myParams, "limit", MAX_SEARCH_RESULTS).intValue()));
+
+                KeywordIndex.Page page = EventManager.TopicKeywords.search(keywords, matchAll, prefix, offset, limit);
+                Map<String, Topic> pageTopics = new LinkedHashMap<>();
+                for (String topicName : page.getTopicNames()) {
+                    pageTopics.put(topicName, EventManager.TopicInfo.get(topicName));
+                }
+                Map<String, Object> result = new HashMap<>();
+                result.put("topics", pageTopics);
+                result.put("total", page.getTotal());
+                // -1 once there are no more pages.
+                result.put("nextOffset", offset + pageTopics.size() < page.getTotal() ? offset + pageTopics.size() : -1);
+                return new JSONRPC2Response(result, req.getID());
+
             } else if (req.getMethod().equals("getAllTopics")) {
 
-                return new JSONRPC2Response(EventManager.TopicInfo, req.getID());
+                return new JSONRPC2Response(new HashMap<>(EventManager.TopicInfo), req.getID());
 
             } else {return new JSONRPC2Response(JSONRPC2Error.METHOD_NOT_FOUND, req.getID());}
         }
@@ -459,40 +622,38 @@ class EventManagerHandler {
             if (req.getMethod().equals("checkForPendingNotifications")) {
                 Map<String, Object> myParams = req.getNamedParams();
                 String machineID = (String) myParams.get("machineID");
-                if (EventManager.PendingNotifications.containsKey(machineID) && EventManager.PendingNotifications.get(machineID).size() > 0) {
+                //take the client's notifications, anything added from now on waits for its next check.
+                List<Object> pendingNotifications = EventManager.PendingNotifications.remove(machineID);
+                if (pendingNotifications != null && pendingNotifications.size() > 0) {
                     thereArePendingNotifications = true;
-                    String ipAddress = null;
-                    if (EventManager.PublisherInfo.containsKey(machineID) && !EventManager.PublisherInfo.get(machineID).equals("0")) {
-                        ipAddress = EventManager.PublisherInfo.get(machineID);
-                    } else if (EventManager.SubscriberInfo.containsKey(machineID) && !EventManager.SubscriberInfo.get(machineID).equals("0")) {
-                        ipAddress = EventManager.SubscriberInfo.get(machineID);
+                    String ipAddress = EventManager.PublisherInfo.addressOf(machineID);
+                    if (ipAddress == null) {
+                        ipAddress = EventManager.SubscriberInfo.addressOf(machineID);
                     }
-                    URL serverURL = null;
-                    try {
-                        serverURL = new URL("http://" + ipAddress + ":6969");
-
-                    } catch (MalformedURLException e) {
-                        System.out.println("client not up.");
-                    }
-                    JSONRPC2Session mySession = new JSONRPC2Session(serverURL);
                     EventManager.requestID += 1;
                     JSONRPC2Request request = new JSONRPC2Request("receivePendingNotifications", EventManager.requestID);
                     Map<String, Object> advertiseParams = new HashMap<>();
-                    advertiseParams.put("pendingNotifications", EventManager.PendingNotifications.get(machineID));
+                    advertiseParams.put("pendingNotifications", pendingNotifications);
                     request.setNamedParams(advertiseParams);
                     JSONRPC2Response response = null;
                     try {
-                        response = mySession.send(request);
+                        response = EventManager.ClientConnections.send(machineID, ipAddress, request);
                     } catch (JSONRPC2SessionException e) {
                         System.err.println(e.getMessage());
                     }
-                    if (response.indicatesSuccess()) {
+                    if (response != null && response.indicatesSuccess()) {
                         System.out.println(response.getResult());
-                        synchronized (EventManager.PendingNotifications) {
-                            EventManager.PendingNotifications.get(machineID).clear();
-                        }
-                    } else
-                        System.out.println(response.getError().getMessage());
+                    } else {
+                        if (response != null)
+                            System.out.println(response.getError().getMessage());
+                        //not delivered, put them back ahead of any that came in meanwhile.
+                        EventManager.PendingNotifications.compute(machineID, (client, newer) -> {
+                            if (newer != null) {
+                                pendingNotifications.addAll(newer);
+                            }
+                            return pendingNotifications;
+                        });
+                    }
                 }
                 String resp;
                 if (thereArePendingNotifications) {
@@ -506,6 +667,119 @@ class EventManagerHandler {
             }
         }
     }
+
+    //Implements a Handler for the other EventManagers of a cluster and for agents looking up the cluster's nodes.
+    public static class ClusterHandler implements RequestHandler {
+
+        // Reports the method names of the handled requests
+        public String[] handledRequests() {return new String[]{"getClusterNodes", "addClusterNode", "adoptTopic", "syncClusterNode"};}
+
+        // Processes the requests
+        public JSONRPC2Response process(JSONRPC2Request req, MessageContext ctx) {
+
+            if (req.getMethod().equals("getClusterNodes")) {
+                //agents build the same HashRing from these, no nodes means this EM runs on its own.
+                return new JSONRPC2Response(nodes(), req.getID());
+
+            } else if (req.getMethod().equals("addClusterNode")) {
+                //a node that started up. Answered with the nodes this one knows, so it learns about the others too.
+                Map<String, Object> myParams = req.getNamedParams();
+                String node = (String) myParams.get("node");
+                if (node == null || node.lastIndexOf(':') < 0 || !EventManager.Nodes.isEnabled()) {
+                    return new JSONRPC2Response(JSONRPC2Error.INVALID_PARAMS, req.getID());
+                }
+                EventManager.Nodes.addNode(node);
+                return new JSONRPC2Response(nodes(), req.getID());
+
+            } else if (req.getMethod().equals("adoptTopic")) {
+                //a topic handed over by its previous owner after a node joined, with its subscriptions by name.
+                Map<String, Object> myParams = req.getNamedParams();
+                String topicName = (String) myParams.get("topicName");
+                if (topicName == null || !(myParams.get("subscriptions") instanceof List)) {
+                    return new JSONRPC2Response(JSONRPC2Error.INVALID_PARAMS, req.getID());
+                }
+                if (myParams.get("topic") != null) {
+                    Topic topic = EventManager.catalogTopic(JsonCodec.topic(myParams.get("topic")));
+                    EventManager.TopicInfo.put(topicName, topic);
+                    EventManager.TopicKeywords.add(topic);
+                }
+                subscribe(topicName, (List<?>) myParams.get("subscriptions"));
+                System.out.println("Took over topic " + topicName + " from another node.");
+                return new JSONRPC2Response(topicName + " adopted by " + EventManager.Nodes.getSelf(), req.getID());
+
+            } else if (req.getMethod().equals("syncClusterNode")) {
+                //the clients and wildcard subscriptions of the cluster, sent to this node after it joined. Clients
+                //this node knows already are left as they are.
+                Map<String, Object> myParams = req.getNamedParams();
+                if (!(myParams.get("publishers") instanceof Map) || !(myParams.get("subscribers") instanceof List)
+                        || !(myParams.get("patterns") instanceof List)) {
+                    return new JSONRPC2Response(JSONRPC2Error.INVALID_PARAMS, req.getID());
+                }
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) myParams.get("publishers")).entrySet()) {
+                    register(EventManager.PublisherInfo, (String) entry.getKey(), (String) entry.getValue());
+                }
+                for (Object o : (List<?>) myParams.get("subscribers")) {
+                    Map<?, ?> subscriber = (Map<?, ?>) o;
+                    String subscriberID = (String) subscriber.get("subscriberID");
+                    if (register(EventManager.SubscriberInfo, subscriberID, (String) subscriber.get("ipAddress"))) {
+                        EventManager.SubscriberInfo.setPulling(subscriberID, Boolean.TRUE.equals(subscriber.get("pulling")));
+                    }
+                }
+                for (Object o : (List<?>) myParams.get("patterns")) {
+                    Map<?, ?> pattern = (Map<?, ?>) o;
+                    subscribe((String) pattern.get("pattern"), (List<?>) pattern.get("subscriptions"));
+                }
+                return new JSONRPC2Response("Clients and wildcard subscriptions taken by " + EventManager.Nodes.getSelf(), req.getID());
+
+            } else {return new JSONRPC2Response(JSONRPC2Error.METHOD_NOT_FOUND, req.getID());}
+        }
+
+        // subscribes the subscribers as adoptTopic and syncClusterNode send them.
+        private static void subscribe(String topicName, List<?> subscriptions) {
+            for (Object o : subscriptions) {
+                Map<?, ?> subscription = (Map<?, ?>) o;
+                String subscriberID = (String) subscription.get("subscriberID");
+                EventFilter filter;
+                try {
+                    filter = EventFilter.compile((String) subscription.get("filter"));
+                } catch (IllegalArgumentException e) {
+                    filter = EventFilter.ALL;
+                }
+                EventManager.Subscriptions.subscribe(topicName, subscriberID, filter);
+                //this node's log of the topic doesn't have the old events, pull subscribers go on with its next one.
+                if (Boolean.TRUE.equals(subscription.get("pulling")) && !SubscriptionTrie.isPattern(topicName)) {
+                    EventManager.SubscriberInfo.setPulling(subscriberID, true);
+                    if (EventManager.TopicInfo.containsKey(topicName)) {
+                        try {
+                            EventManager.Offsets.commitIfAbsent(subscriberID, topicName, EventManager.Events.endOffset(topicName));
+                        } catch (IOException e) {
+                            System.out.println("Couldn't open the event log of " + topicName + ": " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        }
+
+        // registers a client another node knows, logged in or off, unless this node knows it. Returns false if it did.
+        private static boolean register(ClientRegistry registry, String clientID, String ipAddress) {
+            if (clientID == null || registry.contains(clientID)) {
+                return false;
+            }
+            if (ipAddress == null || ipAddress.equals(ClientRegistry.OFFLINE)) {
+                registry.logoff(clientID);
+            } else {
+                registry.login(clientID, ipAddress);
+            }
+            return true;
+        }
+
+        private static Map<String, Object> nodes() {
+            Map<String, Object> result = new HashMap<>();
+            result.put("nodes", EventManager.Nodes.getNodes());
+            result.put("virtualNodes", EventManager.Nodes.getVirtualNodes());
+            return result;
+        }
+    }
 }
 
 /*
@@ -513,22 +787,114 @@ class EventManagerHandler {
  */
 public class EventManager {
 
-    private static final int EM_MAIN_PORT = 9091;
-    public static HashMap<String, String> PublisherInfo = new HashMap<>();
-    public static HashMap<String, String> SubscriberInfo = new HashMap<>();
-    public static HashSet<Event> EventInfo = new HashSet<>();
-    public static HashMap<String, List<Object>> PendingNotifications = new HashMap<>();
-    public static HashMap<String, Topic> TopicInfo = new HashMap<>();
-    public static HashMap<String, ArrayList<String>> TopicSubscribers = new HashMap<>();
+    private static final int EM_MAIN_PORT = PubSubConfig.getInt(PubSubConfig.EM_PORT, 9091);
+    private static final int CLIENT_PORT = 6969;
+    public static IdInterner ClientIds = new IdInterner();
+    public static ClientRegistry PublisherInfo = new ClientRegistry(ClientIds);
+    public static ClientRegistry SubscriberInfo = new ClientRegistry(ClientIds);
+    public static EventLog Events = EventLog.fromConfig();
+    public static ConsumerOffsets Offsets = ConsumerOffsets.fromConfig();
+    static final int MAX_FETCH_EVENTS = PubSubConfig.getInt(PubSubConfig.FETCH_MAX_EVENTS, 1000);
+    static final long MAX_FETCH_WAIT_MS = PubSubConfig.getInt(PubSubConfig.FETCH_MAX_WAIT_MS, 30000);
+    public static ConcurrentHashMap<String, List<Object>> PendingNotifications = new ConcurrentHashMap<>();
+    public static ConcurrentHashMap<String, Topic> TopicInfo = new ConcurrentHashMap<>();
+    //topics by ID, to resolve the topic IDs events carry. Topics handed over to another node stay in it, so their
+    //events are answered with the new owner.
+    public static ConcurrentHashMap<String, Topic> TopicIds = new ConcurrentHashMap<>();
+    public static KeywordIndex TopicKeywords = new KeywordIndex();
+    public static SubscriptionTrie Subscriptions = SubscriptionTrie.fromConfig(ClientIds);
+    public static Cluster Nodes = Cluster.fromConfig(EM_MAIN_PORT);
     public static int requestID = 0;
+    public static PushChannelServer PushChannels = PushChannelServer.fromConfig();
+    public static ConnectionPool ClientConnections = ConnectionPool.fromConfig(CLIENT_PORT, PushChannels);
+    public static DeliveryService Deliveries = DeliveryService.fromConfig();
+    private static HandlerExecutor handlerExecutor;
+
+
+    /*
+     * Puts a topic that was advertised or handed over in the catalog and returns the topic to keep. If another topic
+     * has its ID already, e.g. one an older agent numbered itself, it is kept under a new ID of its own.
+     */
+    static Topic catalogTopic(Topic topic) {
+        if (topic.getId() == null) {
+            topic = new Topic(topic.getName(), topic.getKeywords(), topic.getName());
+        }
+        Topic holder = TopicIds.putIfAbsent(topic.getId(), topic);
+        if (holder != null && holder.getName().equals(topic.getName())) {
+            //advertised again, keep the new keywords.
+            TopicIds.put(topic.getId(), topic);
+        } else if (holder != null) {
+            int suffix = 1;
+            while (TopicIds.putIfAbsent(topic.getId() + "." + suffix, topic) != null) {
+                suffix++;
+            }
+            topic = new Topic(topic.getId() + "." + suffix, topic.getKeywords(), topic.getName());
+            TopicIds.put(topic.getId(), topic);
+        }
+        return topic;
+    }
 
+    /*
+     * Resolves the event's topic against the catalog and returns it, null if this node doesn't know it. Events of
+     * older agents carry the whole topic, those are resolved by name.
+     */
+    static Topic resolveTopic(Event event) {
+        Topic topic;
+        if (event.getTopic() != null) {
+            topic = TopicInfo.get(event.getTopic().getName());
+            if (topic == null) {
+                topic = event.getTopic();
+            }
+        } else {
+            topic = event.getTopicId() == null ? null : TopicIds.get(event.getTopicId());
+        }
+        if (topic != null) {
+            event.setTopic(topic);
+        }
+        return topic;
+    }
+
+    /*
+     * adds a topic or an event to the notifications a client gets the next time it checks for pending notifications.
+     */
+    static void addPendingNotification(String clientID, Object notification) {
+        //only locks this client's entry, the list is never changed outside of compute.
+        EventManager.PendingNotifications.compute(clientID, (client, notifications) -> {
+            List<Object> pending = notifications == null ? new ArrayList<>() : notifications;
+            pending.add(notification);
+            return pending;
+        });
+    }
 
-    private static class Handler extends Thread {
+    /*
+     * Creates a new JSON-RPC 2.0 request dispatcher and registers all the Handlers with it. The handlers keep no state
+     * of their own, so the NIO front end shares one dispatcher between all its workers.
+     */
+    static Dispatcher createDispatcher() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.register(new EventManagerHandler.LoginHandler());
+        dispatcher.register(new EventManagerHandler.PublishHandler());
+        dispatcher.register(new EventManagerHandler.AdvertiseHandler());
+        dispatcher.register(new EventManagerHandler.getTopicFromNameHandler());
+        dispatcher.register(new EventManagerHandler.SubscribeHandler());
+        dispatcher.register(new EventManagerHandler.UnsubscribeHandler());
+        dispatcher.register(new EventManagerHandler.checkForAnyPendingNotificationsHandler());
+        dispatcher.register(new EventManagerHandler.FetchHandler());
+        dispatcher.register(new EventManagerHandler.ClusterHandler());
+        return dispatcher;
+    }
+
+    private static class Handler implements Runnable {
         private String name;
         private Socket socket;
-        private BufferedReader in;
-        private PrintWriter out;
+        private InputStream in;
+        private OutputStream out;
         private Dispatcher dispatcher;
+        private int keepAliveTimeoutMs;
+        private boolean binary = false;
+        // a deferred response that became ready while the handler wasn't running, written first when it runs again.
+        private JSONRPC2Response resumeWith;
+        private boolean resumeKeepAlive;
 
         /**
          * Constructs a handler thread, squirreling away the socket.
@@ -537,91 +903,153 @@ public class EventManager {
         public Handler(Socket socket) {
             this.socket = socket;
 
-            // Create a new JSON-RPC 2.0 request dispatcher
-            this.dispatcher = new Dispatcher();
-
-            // Register all the Handlers with the dispatcher.
-            dispatcher.register(new EventManagerHandler.LoginHandler());
-            dispatcher.register(new EventManagerHandler.PublishHandler());
-            dispatcher.register(new EventManagerHandler.AdvertiseHandler());
-            dispatcher.register(new EventManagerHandler.getTopicFromNameHandler());
-            dispatcher.register(new EventManagerHandler.SubscribeHandler());
-            dispatcher.register(new EventManagerHandler.UnsubscribeHandler());
-            dispatcher.register(new EventManagerHandler.checkForAnyPendingNotificationsHandler());
-
+            this.dispatcher = createDispatcher();
         }
 
         /**
-         * Services this thread's client by repeatedly requesting a
-         * screen name until a unique one has been submitted, then
-         * acknowledges the name and registers the output stream for
-         * the client in a global set, then repeatedly gets inputs and
-         * broadcasts them.
+         * Serves the requests a client sends over this connection. Clients keep their connection to the EM open, so
+         * requests are answered one after the other until the client closes it, asks us to close it, or leaves it
+         * idle for longer than the keep-alive timeout, or than a moment once other connections wait for a handler.
+         * Pipelined requests are read from the buffer in order, and their responses are flushed together once no
+         * more requests are waiting. A connection that starts with the BinaryProtocol handshake is served in that
+         * protocol instead. A request answered with a DeferredResponse gives the thread up while it waits, and the
+         * handler runs again on the executor to write the response and carry on.
          */
         public void run() {
+            boolean deferred = false;
             try {
-                // Create character streams for the socket.
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-
-                // read request
-                String line;
-                line = in.readLine();
-                //System.out.println(line);
-                StringBuilder raw = new StringBuilder();
-                raw.append("" + line);
-                boolean isPost = line.startsWith("POST");
-                int contentLength = 0;
-                while (!(line = in.readLine()).equals("")) {
-                    //System.out.println(line);
-                    raw.append('\n' + line);
-                    if (isPost) {
-                        final String contentHeader = "Content-Length: ";
-                        if (line.startsWith(contentHeader)) {
-                            contentLength = Integer.parseInt(line.substring(contentHeader.length()));
+                if (in == null) {
+                    keepAliveTimeoutMs = PubSubConfig.getInt(PubSubConfig.KEEP_ALIVE_TIMEOUT_MS, 60000);
+                    in = new BufferedInputStream(socket.getInputStream());
+                    out = new BufferedOutputStream(socket.getOutputStream());
+
+                    if (!handlerExecutor.awaitRequest(socket, in, keepAliveTimeoutMs)) {
+                        return;
+                    }
+                    in.mark(1);
+                    int first = in.read();
+                    in.reset();
+                    if (first == BinaryProtocol.MAGIC) {
+                        binary = true;
+                        int version = BinaryProtocol.negotiate(BinaryProtocol.readHello(in));
+                        out.write(BinaryProtocol.hello(version));
+                        out.flush();
+                        if (version == 0) {
+                            return;
                         }
                     }
+                } else if (!respond(resumeWith, resumeKeepAlive)) {
+                    return;
                 }
-                StringBuilder body = new StringBuilder();
-                if (isPost) {
-                    int c = 0;
-                    for (int i = 0; i < contentLength; i++) {
-                        c = in.read();
-                        body.append((char) c);
+                deferred = serve();
+            } catch (SocketTimeoutException e) {
+                // the connection sat idle past the keep-alive timeout, just close it.
+            } catch (IOException e) {
+                System.out.println(e);
+            } catch (JSONRPC2ParseException e) {
+                e.printStackTrace();
+            } finally {
+                if (!deferred) {
+                    close();
+                }
+            }
+        }
+
+        // answers requests until the connection is done with. Returns true instead if a response was deferred.
+        private boolean serve() throws IOException, JSONRPC2ParseException {
+            while (handlerExecutor.awaitRequest(socket, in, keepAliveTimeoutMs)) {
+                JSONRPC2Response resp;
+                boolean keepAlive;
+                if (binary) {
+                    byte[] body = BinaryProtocol.read(in);
+                    if (body == null) {
+                        break;
                     }
+                    resp = BinaryProtocol.process(body, dispatcher);
+                    keepAlive = true;
+                } else {
+                    HttpFrame frame = HttpFrame.read(in);
+                    if (frame == null) {
+                        break;
+                    }
+                    resp = dispatcher.process(JsonCodec.parseRequest(frame.getBody()), null);
+                    keepAlive = frame.isKeepAlive();
                 }
 
-                JSONRPC2Request request = JSONRPC2Request.parse(body.toString());
-                JSONRPC2Response resp = dispatcher.process(request, null);
+                if (DeferredResponse.isDeferred(resp)) {
+                    // send what is answered so far, and stop reading until this one is ready.
+                    out.flush();
+                    DeferredResponse.whenReady(resp).thenAccept(ready -> resume(ready, keepAlive));
+                    return true;
+                }
+                if (!respond(resp, keepAlive)) {
+                    return false;
+                }
+            }
+            out.flush();
+            return false;
+        }
 
-                // send response
-                out.write("HTTP/1.1 200 OK\r\n");
-                out.write("Content-Type: application/json\r\n");
-                out.write("\r\n");
-                out.write(resp.toJSONString());
+        // writes a response, flushing it unless more requests are waiting. Returns false if the connection is done.
+        private boolean respond(JSONRPC2Response resp, boolean keepAlive) throws IOException {
+            out.write(binary ? BinaryProtocol.frame(BinaryProtocol.encode(resp)) : HttpFrame.response(resp, keepAlive));
+            if (!keepAlive) {
                 out.flush();
-                out.close();
+                return false;
+            }
+            if (in.available() == 0) {
+                out.flush();
+            }
+            return true;
+        }
+
+        // runs the handler again to write a deferred response that is ready now.
+        private void resume(JSONRPC2Response resp, boolean keepAlive) {
+            resumeWith = resp;
+            resumeKeepAlive = keepAlive;
+            if (!handlerExecutor.execute(this)) {
+                System.out.println("Too many connections in flight, closing one with a deferred response.");
+                close();
+            }
+        }
+
+        private void close() {
+            try {
                 socket.close();
             } catch (IOException e) {
-                System.out.println(e);
-            } catch (JSONRPC2ParseException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                }
             }
         }
     }
 
 
-    //Start a listener which listens to request from the clients.
+    //Start a listener which listens to request from the clients. The listener type is picked with the
+    //pubsub.em.serverMode startup option: "thread" (default) or "nio". Handlers run on the HandlerExecutor picked
+    //with the pubsub.executionMode option.
     private void startService() throws IOException {
+        PushChannels.start();
+        String serverMode = PubSubConfig.getString(PubSubConfig.EM_SERVER_MODE, "thread");
+        if (serverMode.equals("nio")) {
+            int ioThreads = PubSubConfig.getInt(PubSubConfig.EM_IO_THREADS, 1);
+            handlerExecutor = HandlerExecutor.fromConfig("em-worker", "bounded");
+            System.out.println("Starting NIO listener with " + ioThreads + " IO loop(s), " + handlerExecutor.getMode() + " workers.");
+            NioServer server = new NioServer(EM_MAIN_PORT, createDispatcher(), ioThreads, handlerExecutor);
+            //start never returns, so the node joins the cluster once it is bound and before it starts accepting.
+            server.bind();
+            Nodes.join();
+            server.start();
+            return;
+        }
+
+        handlerExecutor = HandlerExecutor.fromConfig("em-handler", "thread");
         ServerSocket listener = new ServerSocket(EM_MAIN_PORT);
+        Nodes.join();
         try {
             while (true) {
-                new Handler(listener.accept()).start();
+                Socket socket = listener.accept();
+                if (!handlerExecutor.execute(new Handler(socket))) {
+                    System.out.println("Too many connections in flight, closing connection from " + socket.getInetAddress());
+                    socket.close();
+                }
             }
         } finally {
             listener.close();
@@ -631,9 +1059,13 @@ public class EventManager {
 
     //list all subscribers subscribed to a topic for EM CLI.
     private void listAllSubscribersForTopic(String topicName) {
-        if (EventManager.TopicSubscribers.containsKey(topicName)) {
+        List<String> subscribers = new ArrayList<>();
+        for (int id : EventManager.Subscriptions.match(topicName).getSubscribers().toArray()) {
+            subscribers.add(EventManager.ClientIds.nameOf(id));
+        }
+        if (!subscribers.isEmpty()) {
             System.out.println("list of all the subscribers for that topic: ");
-            System.out.print(EventManager.TopicSubscribers.get(topicName));
+            System.out.print(subscribers);
         } else {
             System.out.println("No subscribers for that topic yet.");
         }
@@ -654,11 +1086,20 @@ public class EventManager {
         if (EventManager.SubscriberInfo.size() == 0) {
             System.out.println("No Subscribers yet.");
         }
-        for (Map.Entry<String, String> entry : EventManager.SubscriberInfo.entrySet()) {
+        for (Map.Entry<String, String> entry : EventManager.SubscriberInfo.snapshot().entrySet()) {
             System.out.println(entry.getKey() + "-->" + entry.getValue());
         }
     }
 
+    //print the number of active handlers and queued connections for EM CLI.
+    private void showHandlerStatistics() {
+        if (handlerExecutor == null) {
+            System.out.println("Listener hasn't started yet.");
+        } else {
+            System.out.println(handlerExecutor);
+        }
+    }
+
     //main is used handle CLI, instantiate EM and start threads listening to requests from clients in the background.
     public static void main(String[] args) throws IOException {
         EventManager em = new EventManager();
@@ -671,14 +1112,18 @@ public class EventManager {
         }).start();
         Scanner sc = new Scanner(System.in);
         System.out.println("\nEvent Manager is up and running on: " + InetAddress.getLocalHost().getHostAddress() + ":" + EventManager.EM_MAIN_PORT + "\n");
+        if (Nodes.isEnabled()) {
+            System.out.println("Cluster node " + Nodes.getSelf() + " of " + Nodes.getNodes() + "\n");
+        }
         while (true) {
             System.out.println("====================================================");
             System.out.println("\nWhat do you want to do? \n 1. List all available topics " +
-                    "\n 2. List all Subscribers for a particular Topic \n 3. List all Subscribers \nPlease choose one option.\n");
+                    "\n 2. List all Subscribers for a particular Topic \n 3. List all Subscribers \n 4. Show handler statistics " +
+                    "\nPlease choose one option.\n");
             System.out.println("====================================================");
             String userChoice = sc.nextLine();
-            while (!userChoice.equals("1") && !userChoice.equals("2") && !userChoice.equals("3")) {
-                System.out.println("Please enter 1 to list all topics / 2 to list all subscribers for a topic / 3 to list all subscribers ");
+            while (!userChoice.equals("1") && !userChoice.equals("2") && !userChoice.equals("3") && !userChoice.equals("4")) {
+                System.out.println("Please enter 1 to list all topics / 2 to list all subscribers for a topic / 3 to list all subscribers / 4 to show handler statistics ");
                 userChoice = sc.nextLine();
             }
             if (userChoice.equals("1")) {
@@ -687,8 +1132,10 @@ public class EventManager {
                 System.out.println("Please enter topic name");
                 String topicName = sc.nextLine();
                 em.listAllSubscribersForTopic(topicName);
-            } else {
+            } else if (userChoice.equals("3")) {
                 em.listAllSubscribers();
+            } else {
+                em.showHandlerStatistics();
             }
         }
 
@@ -0,0 +1,180 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * HandlerExecutor runs the per connection handlers (EventManager.Handler, PHandler, SHandler and the NIO workers).
+ * The execution mode is picked at startup:
+ *  - "thread"  : a new platform thread per connection (the original behaviour).
+ *  - "bounded" : a fixed pool of platform threads with a bounded queue of waiting connections.
+ *  - "virtual" : a virtual thread per connection, so blocking sends only park the virtual thread. Needs JDK 21+, on
+ *                older JDKs it falls back to "bounded".
+ * In every mode the number of active handlers and queued connections is counted, and connections beyond
+ * maxHandlers + maxQueuedConnections are turned away instead of piling up threads. Handlers of kept-alive connections
+ * wait for the next request with awaitRequest, which gives the thread up early once other connections need one.
+ */
+package edu.rit.cs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class HandlerExecutor {
+
+    // how often a handler waiting on an idle kept-alive connection checks whether its thread is needed elsewhere.
+    private static final int IDLE_CHECK_INTERVAL_MS = 250;
+
+    private final String name;
+    private final String mode;
+    private final ExecutorService executor;
+    private final int maxHandlers;
+    private final int maxInFlight;
+    private final AtomicInteger activeHandlers = new AtomicInteger();
+    private final AtomicInteger queuedConnections = new AtomicInteger();
+    private final AtomicInteger rejectedConnections = new AtomicInteger();
+    private final AtomicInteger threadCounter = new AtomicInteger();
+
+    public HandlerExecutor(String name, String mode, int maxHandlers, int maxQueuedConnections) {
+        this.name = name;
+        this.maxHandlers = maxHandlers;
+        this.maxInFlight = maxHandlers + maxQueuedConnections;
+
+        ExecutorService chosen = null;
+        String chosenMode = mode;
+        if (mode.equals("virtual")) {
+            chosen = newVirtualThreadExecutor();
+            if (chosen == null) {
+                System.out.println("Virtual threads are not available on this JDK, using bounded mode for " + name);
+                chosenMode = "bounded";
+            }
+        }
+        if (chosenMode.equals("bounded")) {
+            chosen = new ThreadPoolExecutor(maxHandlers, maxHandlers, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(maxQueuedConnections),
+                    r -> new Thread(r, name + "-" + threadCounter.incrementAndGet()));
+        }
+        this.mode = chosenMode;
+        this.executor = chosen;
+    }
+
+    /*
+     * builds an executor for one of our listeners from the pubsub.executionMode, pubsub.maxHandlers and
+     * pubsub.maxQueuedConnections startup options.
+     */
+    public static HandlerExecutor fromConfig(String name, String defaultMode) {
+        String mode = PubSubConfig.getString(PubSubConfig.EXECUTION_MODE, defaultMode);
+        if (!mode.equals("thread") && !mode.equals("bounded") && !mode.equals("virtual")) {
+            System.out.println("Unknown execution mode " + mode + ", using " + defaultMode);
+            mode = defaultMode;
+        }
+        int maxHandlers = Math.max(1, PubSubConfig.getInt(PubSubConfig.MAX_HANDLERS, 64));
+        int maxQueued = Math.max(1, PubSubConfig.getInt(PubSubConfig.MAX_QUEUED_CONNECTIONS, 1024));
+        return new HandlerExecutor(name, mode, maxHandlers, maxQueued);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively so the code still builds on JDK 11.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Runs the handler in the configured mode. Returns false if the handler was turned away because too many
+     * connections are already being handled or waiting, the caller should then close the connection.
+     */
+    public boolean execute(Runnable handler) {
+        if (activeHandlers.get() + queuedConnections.get() >= maxInFlight) {
+            rejectedConnections.incrementAndGet();
+            return false;
+        }
+        queuedConnections.incrementAndGet();
+        Runnable counted = () -> {
+            queuedConnections.decrementAndGet();
+            activeHandlers.incrementAndGet();
+            try {
+                handler.run();
+            } finally {
+                activeHandlers.decrementAndGet();
+            }
+        };
+        try {
+            if (executor == null) {
+                new Thread(counted, name + "-" + threadCounter.incrementAndGet()).start();
+            } else {
+                executor.execute(counted);
+            }
+            return true;
+        } catch (RejectedExecutionException e) {
+            queuedConnections.decrementAndGet();
+            rejectedConnections.incrementAndGet();
+            return false;
+        }
+    }
+
+    /*
+     * Waits on a handler's thread for the first byte of the next request on a kept-alive connection. Returns false
+     * if the client closed the connection, once it has been idle for keepAliveTimeoutMs (0 for no limit), or as soon
+     * as more connections are in flight than there are handlers, so that an idle connection doesn't hold a thread
+     * that a waiting connection has work for; its client just opens a new connection for its next request. The
+     * stream must support mark, and the socket is left with keepAliveTimeoutMs as the timeout for reading the rest
+     * of the request.
+     */
+    public boolean awaitRequest(Socket socket, InputStream in, int keepAliveTimeoutMs) throws IOException {
+        long idleSince = System.currentTimeMillis();
+        socket.setSoTimeout(keepAliveTimeoutMs > 0 ? Math.min(IDLE_CHECK_INTERVAL_MS, keepAliveTimeoutMs) : IDLE_CHECK_INTERVAL_MS);
+        try {
+            while (true) {
+                try {
+                    in.mark(1);
+                    int first = in.read();
+                    in.reset();
+                    return first >= 0;
+                } catch (SocketTimeoutException e) {
+                    long idle = System.currentTimeMillis() - idleSince;
+                    if (isSaturated() || (keepAliveTimeoutMs > 0 && idle >= keepAliveTimeoutMs)) {
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            socket.setSoTimeout(keepAliveTimeoutMs);
+        }
+    }
+
+    // more connections are being handled or waiting than there are handlers to run them at once.
+    public boolean isSaturated() {
+        return activeHandlers.get() + queuedConnections.get() > maxHandlers;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public int getActiveHandlers() {
+        return activeHandlers.get();
+    }
+
+    public int getQueuedConnections() {
+        return queuedConnections.get();
+    }
+
+    public int getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+
+    public String toString() {
+        return name + " [" + mode + "] active handlers: " + getActiveHandlers() + ", queued connections: "
+                + getQueuedConnections() + ", rejected connections: " + getRejectedConnections();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * HashRing is the consistent hash ring that decides which EventManager of a cluster owns a topic. Every node is put on
+ * the ring at a number of points ("virtual nodes"), and a topic belongs to the node at the first point at or after the
+ * hash of its name. Adding a node only moves the topics that land on its points, about 1/n of them, instead of
+ * reshuffling every topic like hashing modulo the number of nodes would.
+ *
+ * The EventManagers and the agents build the same ring from the same node list, so an agent can send a topic's
+ * requests straight to its owner. The ring is replaced, not changed in place, so lookups don't lock.
+ */
+package edu.rit.cs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+class HashRing {
+
+    private final int virtualNodes;
+    // guarded by this for writing. Both are replaced together on every change.
+    private volatile TreeMap<Long, String> points = new TreeMap<>();
+    private volatile List<String> nodes = Collections.emptyList();
+
+    public HashRing(int virtualNodes) {
+        this.virtualNodes = Math.max(1, virtualNodes);
+    }
+
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        this(virtualNodes);
+        for (String node : nodes) {
+            add(node);
+        }
+    }
+
+    /*
+     * puts the node on the ring. Returns false if it was on it already.
+     */
+    public synchronized boolean add(String node) {
+        if (nodes.contains(node)) {
+            return false;
+        }
+        TreeMap<Long, String> newPoints = new TreeMap<>(points);
+        for (int i = 0; i < virtualNodes; i++) {
+            newPoints.put(hash(node + "#" + i), node);
+        }
+        List<String> newNodes = new ArrayList<>(nodes);
+        newNodes.add(node);
+        Collections.sort(newNodes);
+        points = newPoints;
+        nodes = Collections.unmodifiableList(newNodes);
+        return true;
+    }
+
+    public synchronized boolean remove(String node) {
+        if (!nodes.contains(node)) {
+            return false;
+        }
+        TreeMap<Long, String> newPoints = new TreeMap<>(points);
+        newPoints.values().removeIf(node::equals);
+        List<String> newNodes = new ArrayList<>(nodes);
+        newNodes.remove(node);
+        points = newPoints;
+        nodes = Collections.unmodifiableList(newNodes);
+        return true;
+    }
+
+    // the node owning the key, null if the ring is empty.
+    public String ownerOf(String key) {
+        TreeMap<Long, String> current = points;
+        if (current.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = current.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : current.firstEntry().getValue();
+    }
+
+    // the nodes on the ring, sorted.
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public boolean contains(String node) {
+        return nodes.contains(node);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    // the first 8 bytes of the MD5 of the key. Spreads similar names evenly, which String.hashCode doesn't.
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has MD5.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * HttpFrame is a single HTTP/1.1 message (a request on our listeners or a response on our client connections). It
+ * knows how to cut a complete message (start line, headers and a Content-Length body) out of a byte buffer or a
+ * stream, and how to build the JSON-RPC request and response bytes we put on the wire. The JSON itself is parsed and
+ * encoded by JsonCodec.
+ */
+package edu.rit.cs;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+class HttpFrame {
+
+    private static final String CONTENT_LENGTH = "content-length";
+    private static final String CONNECTION = "connection";
+
+    private final String startLine;
+    private final Map<String, String> headers;
+    private final byte[] body;
+
+    private HttpFrame(String startLine, Map<String, String> headers, byte[] body) {
+        this.startLine = startLine;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /*
+     * Tries to read one complete request from the buffer, which must be in read mode. If the whole request (headers
+     * and body) is available it is consumed from the buffer and returned, otherwise the buffer is left untouched and
+     * null is returned so the caller can wait for more bytes.
+     */
+    public static HttpFrame parse(ByteBuffer buffer) {
+        int start = buffer.position();
+        int headerEnd = -1;
+        int bodyStart = -1;
+        for (int i = start; i < buffer.limit(); i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            if (i + 1 < buffer.limit() && buffer.get(i + 1) == '\n') {
+                headerEnd = i;
+                bodyStart = i + 2;
+                break;
+            }
+            if (i + 2 < buffer.limit() && buffer.get(i + 1) == '\r' && buffer.get(i + 2) == '\n') {
+                headerEnd = i;
+                bodyStart = i + 3;
+                break;
+            }
+        }
+        if (headerEnd < 0) {
+            return null;
+        }
+
+        byte[] headBytes = new byte[headerEnd - start];
+        for (int i = 0; i < headBytes.length; i++) {
+            headBytes[i] = buffer.get(start + i);
+        }
+        String[] lines = new String(headBytes, StandardCharsets.ISO_8859_1).split("\r?\n");
+        Map<String, String> headers = parseHeaders(lines);
+        int contentLength = contentLength(headers);
+        if (buffer.limit() - bodyStart < contentLength) {
+            return null;
+        }
+
+        byte[] body = new byte[contentLength];
+        buffer.position(bodyStart);
+        buffer.get(body);
+        return new HttpFrame(lines[0], headers, body);
+    }
+
+    /*
+     * Reads one complete message from a blocking stream. Returns null if the stream ended before the message started,
+     * which is how a keep-alive peer tells us it is done with the connection. A response without a Content-Length
+     * header is read until the peer closes the connection.
+     */
+    public static HttpFrame read(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int newlines = 0;
+        int c;
+        while (newlines < 2) {
+            c = in.read();
+            if (c < 0) {
+                if (head.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("Connection closed in the middle of a message.");
+            }
+            if (c == '\n') {
+                newlines++;
+            } else if (c != '\r') {
+                newlines = 0;
+            }
+            head.write(c);
+        }
+
+        String[] lines = head.toString(StandardCharsets.ISO_8859_1.name()).trim().split("\r?\n");
+        Map<String, String> headers = parseHeaders(lines);
+        byte[] body;
+        if (headers.containsKey(CONTENT_LENGTH)) {
+            int contentLength = contentLength(headers);
+            body = in.readNBytes(contentLength);
+            if (body.length < contentLength) {
+                throw new EOFException("Connection closed in the middle of a message.");
+            }
+        } else if (lines[0].startsWith("HTTP/")) {
+            body = in.readAllBytes();
+        } else {
+            body = new byte[0];
+        }
+        return new HttpFrame(lines[0], headers, body);
+    }
+
+    private static Map<String, String> parseHeaders(String[] lines) {
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static int contentLength(Map<String, String> headers) {
+        String value = headers.get(CONTENT_LENGTH);
+        return value == null ? 0 : Integer.parseInt(value);
+    }
+
+    /*
+     * builds the bytes of a "200 OK" response carrying a JSON-RPC response. The Content-Length is always sent so the
+     * client doesn't have to rely on the connection being closed to find the end of the body.
+     */
+    public static byte[] response(JSONRPC2Response response, boolean keepAlive) {
+        String head = "HTTP/1.1 200 OK\r\n" +
+                "Content-Type: application/json\r\n";
+        return frame(head, JsonCodec.encode(response), keepAlive);
+    }
+
+    /*
+     * builds the bytes of a JSON-RPC POST request, used by our persistent client connections.
+     */
+    public static byte[] request(String host, JSONRPC2Request request, boolean keepAlive) {
+        return frame(requestStart(host), JsonCodec.encode(request), keepAlive);
+    }
+
+    /*
+     * builds only the head of a JSON-RPC POST request, for a body that is written separately, e.g. an EncodedRequest.
+     */
+    public static byte[] requestHead(String host, int contentLength, boolean keepAlive) {
+        return head(requestStart(host), contentLength, keepAlive);
+    }
+
+    private static String requestStart(String host) {
+        return "POST / HTTP/1.1\r\n" +
+                "Host: " + host + "\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Accept: application/json\r\n";
+    }
+
+    private static byte[] head(String head, int contentLength, boolean keepAlive) {
+        String fullHead = head +
+                "Content-Length: " + contentLength + "\r\n" +
+                "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n" +
+                "\r\n";
+        return fullHead.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] frame(String head, byte[] body, boolean keepAlive) {
+        byte[] headBytes = head(head, body.length, keepAlive);
+        byte[] frame = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, frame, 0, headBytes.length);
+        System.arraycopy(body, 0, frame, headBytes.length, body.length);
+        return frame;
+    }
+
+    /*
+     * HTTP/1.1 connections stay open unless the peer asks to close them, HTTP/1.0 ones only if asked to stay open.
+     */
+    public boolean isKeepAlive() {
+        String connection = getHeader(CONNECTION);
+        if (startLine.contains("HTTP/1.0")) {
+            return connection != null && connection.equalsIgnoreCase("keep-alive");
+        }
+        return connection == null || !connection.equalsIgnoreCase("close");
+    }
+
+    public String getStartLine() {
+        return startLine;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    // the body as it came off the wire, for JsonCodec to parse in place.
+    public byte[] getBody() {
+        return body;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * IdGenerator hands out the IDs of Events and Topics: 64 bit numbers unique over every publisher and EventManager,
+ * made without a lock. An ID packs, from the highest bits down,
+ *   41 bits  milliseconds since 2020-01-01 UTC (good until 2089)
+ *   10 bits  the node, from pubsub.id.node or else a hash of the host's address and the process ID
+ *   12 bits  a sequence within the millisecond
+ * so IDs of one node only ever grow and IDs of different nodes sort by time. Up to 4096 IDs a millisecond are made
+ * without waiting; beyond that the sequence runs into the next millisecond ahead of the clock, which catches up. A
+ * clock that goes backwards is treated the same way, the IDs keep growing.
+ *
+ * The string form is the number in 13 characters of lowercase Crockford base32, fixed width so that strings sort like
+ * the numbers. The binary form is the number's 8 big endian bytes.
+ */
+package edu.rit.cs;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicLong;
+
+class IdGenerator {
+
+    // 2020-01-01T00:00:00Z.
+    private static final long EPOCH_MS = 1577836800000L;
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_NODE = (1L << NODE_BITS) - 1;
+    private static final String ALPHABET = "0123456789abcdefghjkmnpqrstvwxyz";
+    private static final int STRING_LENGTH = 13;
+
+    private static final IdGenerator shared = new IdGenerator(nodeFromConfig());
+
+    private final long node;
+    // the millisecond and sequence of the last ID, as time << SEQUENCE_BITS | sequence.
+    private final AtomicLong last = new AtomicLong();
+
+    IdGenerator(long node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("Node " + node + " isn't between 0 and " + MAX_NODE);
+        }
+        this.node = node;
+    }
+
+    // the next ID of this process's generator, in its string form.
+    public static String nextId() {
+        return toString(shared.next());
+    }
+
+    public long next() {
+        long now = System.currentTimeMillis() - EPOCH_MS;
+        while (true) {
+            long previous = last.get();
+            // a new millisecond starts the sequence over, otherwise it goes on, into the next millisecond if it has to.
+            long next = now > previous >>> SEQUENCE_BITS ? now << SEQUENCE_BITS : previous + 1;
+            if (last.compareAndSet(previous, next)) {
+                long time = next >>> SEQUENCE_BITS;
+                long sequence = next & ((1L << SEQUENCE_BITS) - 1);
+                return time << (NODE_BITS + SEQUENCE_BITS) | node << SEQUENCE_BITS | sequence;
+            }
+        }
+    }
+
+    // milliseconds since the epoch the ID was made at.
+    public static long timeOf(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH_MS;
+    }
+
+    public static long nodeOf(long id) {
+        return (id >>> SEQUENCE_BITS) & MAX_NODE;
+    }
+
+    public static String toString(long id) {
+        char[] chars = new char[STRING_LENGTH];
+        for (int i = STRING_LENGTH - 1; i >= 0; i--) {
+            chars[i] = ALPHABET.charAt((int) (id & 31));
+            id >>>= 5;
+        }
+        return new String(chars);
+    }
+
+    // whether the string is an ID in its string form, so that parse and toString turn one into the other exactly.
+    public static boolean isId(String string) {
+        if (string == null || string.length() != STRING_LENGTH || ALPHABET.indexOf(string.charAt(0)) > 7) {
+            return false;
+        }
+        for (int i = 0; i < STRING_LENGTH; i++) {
+            if (ALPHABET.indexOf(string.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the ID a string form stands for. Throws IllegalArgumentException if it isn't one.
+    public static long parse(String string) {
+        if (!isId(string)) {
+            throw new IllegalArgumentException("Not an ID: " + string);
+        }
+        long id = 0;
+        for (int i = 0; i < STRING_LENGTH; i++) {
+            id = id << 5 | ALPHABET.indexOf(string.charAt(i));
+        }
+        return id;
+    }
+
+    public static byte[] toBytes(long id) {
+        byte[] bytes = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) id;
+            id >>>= 8;
+        }
+        return bytes;
+    }
+
+    public static long fromBytes(byte[] bytes, int offset) {
+        long id = 0;
+        for (int i = 0; i < 8; i++) {
+            id = id << 8 | (bytes[offset + i] & 0xFF);
+        }
+        return id;
+    }
+
+    /*
+     * The node from pubsub.id.node. Without it, or if it's out of range, a hash of the host's address and the process
+     * ID. That is only 10 bits, so two of a few dozen processes likely get the same node; set the option to be sure.
+     */
+    private static long nodeFromConfig() {
+        int configured = PubSubConfig.getInt(PubSubConfig.ID_NODE, -1);
+        if (configured > MAX_NODE || configured < -1) {
+            System.out.println("Ignoring " + PubSubConfig.ID_NODE + " " + configured + ", it isn't between 0 and "
+                    + MAX_NODE);
+        } else if (configured >= 0) {
+            return configured;
+        }
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        long hash = (host + "/" + ProcessHandle.current().pid()).hashCode() * 0x9E3779B97F4A7C15L;
+        return (hash >>> (64 - NODE_BITS)) & MAX_NODE;
+    }
+}
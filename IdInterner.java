@@ -0,0 +1,58 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * IdInterner gives every client ID a dense int, 0, 1, 2, ... in the order they are first seen, and maps the ints back
+ * to the IDs. The EventManager keeps its sets of clients, e.g. the subscribers of a topic or the clients that are
+ * online, as IntBitmaps of these ints instead of sets of strings. IDs are never forgotten, a client that comes back
+ * gets its old int.
+ */
+package edu.rit.cs;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+class IdInterner {
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    // names[id] is the ID interned as id. Replaced, never changed in place, when it grows.
+    private volatile String[] names = new String[64];
+    private int count = 0;
+
+    // returns the int of the ID, giving it the next one if it's new.
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(name);
+            if (id != null) {
+                return id;
+            }
+            String[] current = names;
+            if (count == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[count] = name;
+            // publish the name before the id, so whoever sees the id can look up its name.
+            names = current;
+            ids.put(name, count);
+            return count++;
+        }
+    }
+
+    // returns the int of the ID, -1 if it was never interned.
+    public int idOf(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public String nameOf(int id) {
+        return names[id];
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
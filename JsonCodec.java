@@ -0,0 +1,500 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * JsonCodec turns the bytes of a JSON-RPC message into a request or response and back, and Events and Topics into
+ * JSON and back. Messages are parsed straight from the body bytes in one pass and encoded straight into bytes, without
+ * a String of the whole message in between. The events and topics in a parsed request's params are built from the
+ * parsed maps instead of being turned back into JSON and parsed a second time.
+ *
+ * Event and Topic have hand-written streaming type adapters, built once and shared, so neither reading nor writing
+ * them goes through reflection. The shared GSON instance has them registered for whatever still comes in as a JSON
+ * string, like results of older EventManagers. A value that was encoded once already, like a published event, is
+ * carried as a Raw and its bytes are copied into every message it goes out in. Clients on the BinaryProtocol get it
+ * re-encoded once for all of them.
+ */
+package edu.rit.cs;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Message;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+import net.minidev.json.JSONStreamAwareEx;
+import net.minidev.json.JSONStyle;
+import net.minidev.json.JSONValue;
+import net.minidev.json.parser.JSONParser;
+import net.minidev.json.parser.ParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+class JsonCodec {
+
+    private static final TypeAdapter<Topic> TOPIC_ADAPTER = new TopicAdapter();
+    private static final TypeAdapter<Event> EVENT_ADAPTER = new EventAdapter();
+
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(Topic.class, TOPIC_ADAPTER)
+            .registerTypeAdapter(Event.class, EVENT_ADAPTER)
+            .create();
+
+    // the same mode JSONRPC2Parser uses, so numbers come out as Long and Double like before.
+    private static final ThreadLocal<JSONParser> PARSER = ThreadLocal.withInitial(() -> new JSONParser(JSONParser.MODE_JSON_SIMPLE));
+    private static final ThreadLocal<Encoder> ENCODER = ThreadLocal.withInitial(Encoder::new);
+
+    /*
+     * parses a JSON-RPC request straight from the body bytes.
+     */
+    public static JSONRPC2Request parseRequest(byte[] json) throws JSONRPC2ParseException {
+        Map<?, ?> message = parseMessage(json);
+        Object method = message.get("method");
+        if (!(method instanceof String)) {
+            throw new JSONRPC2ParseException("Method name missing or not a string", JSONRPC2ParseException.PROTOCOL, null);
+        }
+        Object params = message.get("params");
+        Object id = message.get("id");
+        if (params == null) {
+            return new JSONRPC2Request((String) method, id);
+        }
+        if (params instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> namedParams = (Map<String, Object>) params;
+            return new JSONRPC2Request((String) method, namedParams, id);
+        }
+        if (params instanceof List) {
+            @SuppressWarnings("unchecked")
+            List<Object> positionalParams = (List<Object>) params;
+            return new JSONRPC2Request((String) method, positionalParams, id);
+        }
+        throw new JSONRPC2ParseException("The params must be an object or an array", JSONRPC2ParseException.PROTOCOL, null);
+    }
+
+    /*
+     * parses a JSON-RPC response straight from the body bytes.
+     */
+    public static JSONRPC2Response parseResponse(byte[] json) throws JSONRPC2ParseException {
+        Map<?, ?> message = parseMessage(json);
+        Object id = message.get("id");
+        if (message.containsKey("result") && !message.containsKey("error")) {
+            return new JSONRPC2Response(message.get("result"), id);
+        }
+        if (!(message.get("error") instanceof Map)) {
+            throw new JSONRPC2ParseException("A response must have either a result or an error", JSONRPC2ParseException.PROTOCOL, null);
+        }
+        Map<?, ?> error = (Map<?, ?>) message.get("error");
+        if (!(error.get("code") instanceof Number) || !(error.get("message") instanceof String)) {
+            throw new JSONRPC2ParseException("Invalid error object", JSONRPC2ParseException.PROTOCOL, null);
+        }
+        JSONRPC2Error rpcError = new JSONRPC2Error(((Number) error.get("code")).intValue(), (String) error.get("message"), error.get("data"));
+        return new JSONRPC2Response(rpcError, id);
+    }
+
+    private static Map<?, ?> parseMessage(byte[] json) throws JSONRPC2ParseException {
+        Object message = parseValue(json);
+        if (!(message instanceof Map)) {
+            throw new JSONRPC2ParseException("A JSON-RPC 2.0 message must be a JSON object", JSONRPC2ParseException.PROTOCOL, null);
+        }
+        if (!"2.0".equals(((Map<?, ?>) message).get("jsonrpc"))) {
+            throw new JSONRPC2ParseException("Missing or unsupported jsonrpc version", JSONRPC2ParseException.PROTOCOL, null);
+        }
+        return (Map<?, ?>) message;
+    }
+
+    // parses any JSON value from its UTF-8 bytes, e.g. one BinaryProtocol carries as JSON.
+    static Object parseValue(byte[] json) throws JSONRPC2ParseException {
+        try {
+            // json-smart reads a byte[] as Latin-1, so only bodies that are all ASCII are parsed from the bytes
+            // directly. The others are decoded as UTF-8 on the way in, still without a String of the whole body.
+            if (isAscii(json)) {
+                return PARSER.get().parse(json);
+            }
+            return PARSER.get().parse(new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8));
+        } catch (ParseException e) {
+            throw new JSONRPC2ParseException("Invalid JSON: " + e.getMessage(), JSONRPC2ParseException.JSON, null);
+        }
+    }
+
+    private static boolean isAscii(byte[] json) {
+        for (byte b : json) {
+            if (b < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * encodes a JSON-RPC request or response into UTF-8 bytes. Events and Topics in it are written by their adapters.
+     */
+    public static byte[] encode(JSONRPC2Message message) {
+        return ENCODER.get().encode(message.toJSONObject());
+    }
+
+    // encodes any JSON value, e.g. a request's params, into UTF-8 bytes.
+    public static byte[] encodeValue(Object json) {
+        return ENCODER.get().encode(json);
+    }
+
+    /*
+     * Returns the event a param or result holds: as parsed into a map, as a JSON string from older peers, or an Event
+     * already.
+     */
+    public static Event event(Object json) {
+        if (json == null || json instanceof Event) {
+            return (Event) json;
+        }
+        if (json instanceof Map) {
+            Map<?, ?> fields = (Map<?, ?>) json;
+            Event event = new Event(string(fields.get("id")), string(fields.get("topicId")), string(fields.get("title")),
+                    string(fields.get("content")), headers(fields.get("headers")), timestamp(fields.get("timestamp")));
+            // older agents send the whole topic instead of its ID.
+            if (fields.get("topic") != null) {
+                event.setTopic(topic(fields.get("topic")));
+            }
+            return event;
+        }
+        return GSON.fromJson(json.toString(), Event.class);
+    }
+
+    // the topic a param or result holds, like event().
+    public static Topic topic(Object json) {
+        if (json == null || json instanceof Topic) {
+            return (Topic) json;
+        }
+        if (json instanceof Map) {
+            Map<?, ?> fields = (Map<?, ?>) json;
+            return new Topic(string(fields.get("id")), keywords(fields.get("keywords")), string(fields.get("name")));
+        }
+        return GSON.fromJson(json.toString(), Topic.class);
+    }
+
+    public static List<Event> events(Object json) {
+        List<Event> events = new ArrayList<>();
+        for (Object event : (List<?>) json) {
+            events.add(event(event));
+        }
+        return events;
+    }
+
+    public static List<Topic> topics(Object json) {
+        List<Topic> topics = new ArrayList<>();
+        for (Object topic : (List<?>) json) {
+            topics.add(topic(topic));
+        }
+        return topics;
+    }
+
+    // topics by name, as getAllTopics, getTopicFromKeyword and searchTopics return them.
+    public static LinkedHashMap<String, Topic> topicsByName(Object json) {
+        LinkedHashMap<String, Topic> topics = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) json).entrySet()) {
+            topics.put(entry.getKey().toString(), topic(entry.getValue()));
+        }
+        return topics;
+    }
+
+    // pending notifications mix topics and events, a topic is the one without a topic of its own.
+    public static boolean isTopic(Object json) {
+        if (json instanceof Map) {
+            Map<?, ?> fields = (Map<?, ?>) json;
+            return !fields.containsKey("topicId") && !fields.containsKey("topic");
+        }
+        return json instanceof Topic;
+    }
+
+    // a numeric param of a request, the default if it's missing or not a number.
+    public static Number numberParam(Map<String, Object> params, String name, long defaultValue) {
+        Object value = params.get(name);
+        return value instanceof Number ? (Number) value : defaultValue;
+    }
+
+    // an event's headers, null if it has none.
+    static Map<String, String> headers(Object json) {
+        if (!(json instanceof Map)) {
+            return null;
+        }
+        Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) json).entrySet()) {
+            headers.put(entry.getKey().toString(), string(entry.getValue()));
+        }
+        return headers;
+    }
+
+    private static long timestamp(Object json) {
+        return json instanceof Number ? ((Number) json).longValue() : 0;
+    }
+
+    private static String string(Object value) {
+        return value == null ? null : value.toString();
+    }
+
+    private static List<String> keywords(Object value) {
+        if (!(value instanceof List)) {
+            return null;
+        }
+        List<String> keywords = new ArrayList<>();
+        for (Object keyword : (List<?>) value) {
+            keywords.add(string(keyword));
+        }
+        return keywords;
+    }
+
+    /*
+     * writes the event as JSON to out, for Event.writeJSONString.
+     */
+    static void write(Event event, Appendable out) throws IOException {
+        JsonWriter writer = jsonWriter(out);
+        EVENT_ADAPTER.write(writer, event);
+        writer.flush();
+    }
+
+    static void write(Topic topic, Appendable out) throws IOException {
+        JsonWriter writer = jsonWriter(out);
+        TOPIC_ADAPTER.write(writer, topic);
+        writer.flush();
+    }
+
+    // leaves out null fields, like Gson does.
+    private static JsonWriter jsonWriter(Appendable out) {
+        JsonWriter writer = new JsonWriter(out instanceof Writer ? (Writer) out : writerFor(out));
+        writer.setSerializeNulls(false);
+        return writer;
+    }
+
+    private static Writer writerFor(Appendable out) {
+        return new Writer() {
+            public void write(char[] chars, int offset, int length) throws IOException {
+                out.append(CharBuffer.wrap(chars, offset, length));
+            }
+
+            public void write(String string, int offset, int length) throws IOException {
+                out.append(string, offset, offset + length);
+            }
+
+            public void flush() {
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    // every thread encodes into its own buffer, which is reused for the next message.
+    private static class Encoder {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        private final RawWriter writer = new RawWriter(bytes);
+
+        byte[] encode(Object json) {
+            bytes.reset();
+            try {
+                JSONValue.writeJSONString(json, writer);
+                writer.flush();
+            } catch (IOException e) {
+                // writing into memory doesn't fail.
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    // the encoder's writer, which lets a Raw value copy its bytes straight into the output.
+    private static class RawWriter extends OutputStreamWriter {
+        private final ByteArrayOutputStream bytes;
+
+        RawWriter(ByteArrayOutputStream bytes) {
+            super(bytes, StandardCharsets.UTF_8);
+            this.bytes = bytes;
+        }
+
+        void writeRaw(byte[] json) throws IOException {
+            flush();
+            bytes.write(json);
+        }
+    }
+
+    /*
+     * Raw is a value that was encoded once already, like a published event, and is written into every message it is
+     * put in as it is, without being encoded again.
+     */
+    static class Raw implements JSONStreamAwareEx {
+        private final byte[] json;
+        // the same value in BinaryProtocol's encoding, made the first time it goes to a binary client.
+        private volatile byte[] binary;
+
+        Raw(byte[] json) {
+            this.json = json;
+        }
+
+        public byte[] getBytes() {
+            return json;
+        }
+
+        byte[] getBinary() {
+            byte[] encoded = binary;
+            if (encoded == null) {
+                encoded = BinaryProtocol.encodeJson(json);
+                binary = encoded;
+            }
+            return encoded;
+        }
+
+        public void writeJSONString(Appendable out) throws IOException {
+            if (out instanceof RawWriter) {
+                ((RawWriter) out).writeRaw(json);
+            } else {
+                out.append(new String(json, StandardCharsets.UTF_8));
+            }
+        }
+
+        public void writeJSONString(Appendable out, JSONStyle style) throws IOException {
+            writeJSONString(out);
+        }
+    }
+
+    private static class TopicAdapter extends TypeAdapter<Topic> {
+        public void write(JsonWriter out, Topic topic) throws IOException {
+            if (topic == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(topic.getId());
+            if (topic.getKeywords() != null) {
+                out.name("keywords").beginArray();
+                for (String keyword : topic.getKeywords()) {
+                    out.value(keyword);
+                }
+                out.endArray();
+            }
+            out.name("name").value(topic.getName());
+            out.endObject();
+        }
+
+        public Topic read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String id = null;
+            List<String> keywords = null;
+            String name = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String field = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if (field.equals("id")) {
+                    id = in.nextString();
+                } else if (field.equals("name")) {
+                    name = in.nextString();
+                } else if (field.equals("keywords")) {
+                    keywords = new ArrayList<>();
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        keywords.add(in.nextString());
+                    }
+                    in.endArray();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Topic(id, keywords, name);
+        }
+    }
+
+    private static class EventAdapter extends TypeAdapter<Event> {
+        public void write(JsonWriter out, Event event) throws IOException {
+            if (event == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(event.getId());
+            out.name("topicId").value(event.getTopicId());
+            out.name("title").value(event.getTitle());
+            out.name("content").value(event.getContent());
+            if (!event.getHeaders().isEmpty()) {
+                out.name("headers").beginObject();
+                for (Map.Entry<String, String> header : event.getHeaders().entrySet()) {
+                    out.name(header.getKey()).value(header.getValue());
+                }
+                out.endObject();
+            }
+            if (event.getTimestamp() != 0) {
+                out.name("timestamp").value(event.getTimestamp());
+            }
+            out.endObject();
+        }
+
+        public Event read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String id = null;
+            String topicId = null;
+            Topic topic = null;
+            String title = null;
+            String content = null;
+            Map<String, String> headers = null;
+            long timestamp = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                String field = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if (field.equals("id")) {
+                    id = in.nextString();
+                } else if (field.equals("topicId")) {
+                    topicId = in.nextString();
+                } else if (field.equals("topic")) {
+                    topic = TOPIC_ADAPTER.read(in);
+                } else if (field.equals("title")) {
+                    title = in.nextString();
+                } else if (field.equals("content")) {
+                    content = in.nextString();
+                } else if (field.equals("headers")) {
+                    headers = new HashMap<>();
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        String name = in.nextName();
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                        } else {
+                            headers.put(name, in.nextString());
+                        }
+                    }
+                    in.endObject();
+                } else if (field.equals("timestamp")) {
+                    timestamp = in.nextLong();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            Event event = new Event(id, topicId, title, content, headers, timestamp);
+            if (topic != null) {
+                event.setTopic(topic);
+            }
+            return event;
+        }
+    }
+}
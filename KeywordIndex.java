@@ -0,0 +1,162 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * KeywordIndex is an inverted index from topic keywords to the names of the topics advertised with them, kept up to
+ * date as topics are advertised. Keyword searches look up the keywords instead of scanning every topic. Keywords are
+ * sorted, so a prefix search is a range of the index. Searches can ask for topics with all the keywords (AND) or any
+ * of them (OR), and results come back sorted by topic name, one page at a time.
+ *
+ * Keywords are matched without surrounding spaces and ignoring case.
+ */
+package edu.rit.cs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class KeywordIndex {
+
+    // One page of search results and how many topics matched in total.
+    static class Page {
+        private final List<String> topicNames;
+        private final int total;
+
+        Page(List<String> topicNames, int total) {
+            this.topicNames = topicNames;
+            this.total = total;
+        }
+
+        public List<String> getTopicNames() {
+            return topicNames;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    private final TreeMap<String, Set<String>> topicsByKeyword = new TreeMap<>();
+    // the keywords each topic was indexed under, so a re-advertised topic can be taken out of its old keywords.
+    private final Map<String, Set<String>> keywordsByTopic = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /*
+     * indexes the topic under its keywords, replacing whatever it was indexed under before.
+     */
+    public void add(Topic topic) {
+        Set<String> keywords = new HashSet<>();
+        if (topic.getKeywords() != null) {
+            for (String keyword : topic.getKeywords()) {
+                String normalized = normalize(keyword);
+                if (!normalized.isEmpty()) {
+                    keywords.add(normalized);
+                }
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            removeLocked(topic.getName());
+            for (String keyword : keywords) {
+                topicsByKeyword.computeIfAbsent(keyword, k -> new HashSet<>()).add(topic.getName());
+            }
+            keywordsByTopic.put(topic.getName(), keywords);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String topicName) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(topicName);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Finds the topics matching all (matchAll) or any of the keywords, where with prefix a keyword matches every
+     * keyword starting with it. Returns limit topic names starting at offset, sorted by name.
+     */
+    public Page search(List<String> keywords, boolean matchAll, boolean prefix, int offset, int limit) {
+        List<Set<String>> matches = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (String keyword : keywords) {
+                String normalized = normalize(keyword);
+                if (normalized.isEmpty()) {
+                    continue;
+                }
+                matches.add(prefix ? prefixMatches(normalized) : topicsByKeyword.getOrDefault(normalized, Collections.emptySet()));
+            }
+
+            TreeSet<String> result = new TreeSet<>();
+            if (matchAll && !matches.isEmpty()) {
+                // intersect starting from the smallest set, so the work is bounded by the rarest keyword.
+                matches.sort((a, b) -> Integer.compare(a.size(), b.size()));
+                result.addAll(matches.get(0));
+                for (int i = 1; i < matches.size() && !result.isEmpty(); i++) {
+                    result.retainAll(matches.get(i));
+                }
+            } else {
+                for (Set<String> match : matches) {
+                    result.addAll(match);
+                }
+            }
+            return page(result, offset, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // all the topics of the keywords that start with the prefix. Called with the read lock held.
+    private Set<String> prefixMatches(String prefix) {
+        Set<String> topics = new HashSet<>();
+        for (Set<String> keywordTopics : topicsByKeyword.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+            topics.addAll(keywordTopics);
+        }
+        return topics;
+    }
+
+    private static Page page(TreeSet<String> result, int offset, int limit) {
+        List<String> names = new ArrayList<>();
+        int skipped = 0;
+        for (String name : result) {
+            if (names.size() >= limit) {
+                break;
+            }
+            if (skipped++ >= offset) {
+                names.add(name);
+            }
+        }
+        return new Page(names, result.size());
+    }
+
+    private void removeLocked(String topicName) {
+        Set<String> oldKeywords = keywordsByTopic.remove(topicName);
+        if (oldKeywords == null) {
+            return;
+        }
+        for (String keyword : oldKeywords) {
+            Set<String> topics = topicsByKeyword.get(keyword);
+            if (topics != null) {
+                topics.remove(topicName);
+                if (topics.isEmpty()) {
+                    topicsByKeyword.remove(keyword);
+                }
+            }
+        }
+    }
+
+    private static String normalize(String keyword) {
+        return keyword == null ? "" : keyword.trim().toLowerCase();
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * NioServer is the selector based front end of the EventManager. Instead of one thread per request, an acceptor hands
+ * new connections to a small number of IO loops which read the HTTP frames without blocking, and only the JSON-RPC
+ * processing of a complete request is handed to the worker HandlerExecutor. Connections are kept alive, and requests
+ * pipelined on one connection are answered in order. Connections that open with the BinaryProtocol handshake are
+ * answered in that protocol, the handshake itself on the IO loop. A request answered with a DeferredResponse, like a
+ * long poll, gives its worker back while it waits.
+ */
+package edu.rit.cs;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+import com.thetransactioncompany.jsonrpc2.server.Dispatcher;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+class NioServer {
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_REQUEST_SIZE = 16 * 1024 * 1024;
+    private static final long IDLE_SWEEP_INTERVAL_MS = 1000;
+
+    // what a connection speaks, known from its first byte.
+    private static final int UNKNOWN = 0;
+    private static final int HTTP = 1;
+    private static final int BINARY_HELLO = 2;
+    private static final int BINARY = 3;
+
+    private final int port;
+    private final Dispatcher dispatcher;
+    private final IoLoop[] ioLoops;
+    private final HandlerExecutor workers;
+    private final long keepAliveTimeoutMs;
+    private int nextLoop = 0;
+    private ServerSocketChannel listener;
+
+    public NioServer(int port, Dispatcher dispatcher, int ioThreads, HandlerExecutor workers) {
+        this.port = port;
+        this.dispatcher = dispatcher;
+        this.ioLoops = new IoLoop[Math.max(1, ioThreads)];
+        this.workers = workers;
+        this.keepAliveTimeoutMs = PubSubConfig.getInt(PubSubConfig.KEEP_ALIVE_TIMEOUT_MS, 60000);
+    }
+
+    /*
+     * Opens the listening channel and starts the IO loops, so connections are taken from here on. start calls it if
+     * it hasn't been called yet.
+     */
+    public void bind() throws IOException {
+        for (int i = 0; i < ioLoops.length; i++) {
+            ioLoops[i] = new IoLoop(Selector.open());
+            Thread loopThread = new Thread(ioLoops[i], "em-io-" + i);
+            loopThread.setDaemon(true);
+            loopThread.start();
+        }
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+    }
+
+    /*
+     * Keeps accepting connections on the calling thread, handing them to the IO loops round robin.
+     */
+    public void start() throws IOException {
+        if (listener == null) {
+            bind();
+        }
+        try {
+            while (true) {
+                SocketChannel channel = listener.accept();
+                channel.configureBlocking(false);
+                ioLoops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % ioLoops.length;
+            }
+        } finally {
+            listener.close();
+        }
+    }
+
+    // State kept for every open connection. Only ever touched by the IO loop that owns it.
+    private static class Connection {
+        private final SocketChannel channel;
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private ByteBuffer out;
+        private boolean busy = false;
+        private boolean keepAlive = true;
+        private int protocol = UNKNOWN;
+        private long lastActivity = System.currentTimeMillis();
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /*
+     * IoLoop owns a selector and all the connections registered with it. Other threads never touch the selector
+     * directly, they queue a task and wake the loop up.
+     */
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        private void register(SocketChannel channel) {
+            submit(() -> {
+                try {
+                    channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                } catch (IOException e) {
+                    System.out.println(e);
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        private void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (true) {
+                try {
+                    selector.select(IDLE_SWEEP_INTERVAL_MS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                read(key);
+                            } else if (key.isWritable()) {
+                                write(key);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            System.out.println(e);
+                            close(key);
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= IDLE_SWEEP_INTERVAL_MS) {
+                        closeIdleConnections(now);
+                        lastSweep = now;
+                    }
+                } catch (IOException e) {
+                    System.out.println("Exception in EventManager IO loop: " + e);
+                }
+            }
+        }
+
+        // read whatever is available and hand the next request to a worker once its whole frame has arrived.
+        private void read(SelectionKey key) throws IOException {
+            Connection conn = (Connection) key.attachment();
+            if (conn.channel.read(conn.in) < 0) {
+                close(key);
+                return;
+            }
+            conn.lastActivity = System.currentTimeMillis();
+            dispatchNext(key, conn);
+        }
+
+        /*
+         * Hands the next complete request in the connection's buffer to a worker. Requests on one connection are
+         * processed strictly one after the other, so pipelined requests get their responses in order.
+         */
+        private void dispatchNext(SelectionKey key, Connection conn) throws IOException {
+            Runnable task = null;
+            int version = -1;
+            conn.in.flip();
+            try {
+                if (conn.protocol == UNKNOWN && conn.in.hasRemaining()) {
+                    conn.protocol = (conn.in.get(conn.in.position()) & 0xFF) == BinaryProtocol.MAGIC ? BINARY_HELLO : HTTP;
+                }
+                if (conn.protocol == BINARY_HELLO) {
+                    version = BinaryProtocol.parseHello(conn.in);
+                } else if (conn.protocol == BINARY) {
+                    byte[] body = BinaryProtocol.parse(conn.in);
+                    if (body != null) {
+                        task = () -> processBinary(key, body);
+                    }
+                } else if (conn.protocol == HTTP) {
+                    HttpFrame frame = HttpFrame.parse(conn.in);
+                    if (frame != null) {
+                        task = () -> process(key, frame);
+                    }
+                }
+            } finally {
+                conn.in.compact();
+            }
+
+            if (version >= 0) {
+                // answer the handshake right here, and close the connection if there's no version both speak.
+                version = BinaryProtocol.negotiate(version);
+                conn.protocol = BINARY;
+                conn.busy = true;
+                key.interestOps(0);
+                respond(key, BinaryProtocol.hello(version), version > 0);
+            } else if (task != null) {
+                // stop reading until the response has been written out.
+                conn.busy = true;
+                key.interestOps(0);
+                if (!workers.execute(task)) {
+                    System.out.println("Too many requests in flight, closing connection.");
+                    close(key);
+                }
+            } else if (!conn.in.hasRemaining()) {
+                if (conn.in.capacity() >= MAX_REQUEST_SIZE) {
+                    System.out.println("Request too large, closing connection.");
+                    close(key);
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(conn.in.capacity() * 2);
+                conn.in.flip();
+                bigger.put(conn.in);
+                conn.in = bigger;
+            }
+        }
+
+        /*
+         * runs on a worker thread. Processes the JSON-RPC request and queues the response for the IO loop. A handler
+         * that throws is answered with an internal error, and if even that can't be encoded the connection is closed,
+         * so a connection never stays busy without a response on its way.
+         */
+        private void process(SelectionKey key, HttpFrame frame) {
+            try {
+                JSONRPC2Response resp;
+                try {
+                    resp = dispatch(JsonCodec.parseRequest(frame.getBody()));
+                } catch (JSONRPC2ParseException e) {
+                    resp = new JSONRPC2Response(JSONRPC2Error.PARSE_ERROR, null);
+                }
+                boolean keepAlive = frame.isKeepAlive();
+                answer(key, resp, ready -> HttpFrame.response(ready, keepAlive), keepAlive);
+            } catch (RuntimeException e) {
+                System.out.println("Exception answering request: " + e);
+                submit(() -> close(key));
+            }
+        }
+
+        // runs on a worker thread, like process, for a request of a binary connection. Those are always kept alive.
+        private void processBinary(SelectionKey key, byte[] body) {
+            answer(key, BinaryProtocol.process(body, dispatcher),
+                    ready -> BinaryProtocol.frame(BinaryProtocol.encode(ready)), true);
+        }
+
+        /*
+         * Encodes the response and queues it for the IO loop once it is ready. A DeferredResponse is encoded on
+         * whichever thread completes it, so the worker is free again right away; the connection stays busy until
+         * then, which keeps later pipelined requests waiting behind it.
+         */
+        private void answer(SelectionKey key, JSONRPC2Response resp, Function<JSONRPC2Response, byte[]> encoder,
+                            boolean keepAlive) {
+            DeferredResponse.whenReady(resp).thenAccept(ready -> {
+                try {
+                    byte[] response = encoder.apply(ready);
+                    submit(() -> respond(key, response, keepAlive));
+                } catch (RuntimeException e) {
+                    System.out.println("Exception answering request: " + e);
+                    submit(() -> close(key));
+                }
+            });
+        }
+
+        private JSONRPC2Response dispatch(JSONRPC2Request request) {
+            try {
+                return dispatcher.process(request, null);
+            } catch (RuntimeException e) {
+                System.out.println("Exception processing " + request.getMethod() + ": " + e);
+                return new JSONRPC2Response(JSONRPC2Error.INTERNAL_ERROR, request.getID());
+            }
+        }
+
+        // runs on the IO loop. Starts writing the response out, closing the connection after it unless keepAlive.
+        private void respond(SelectionKey key, byte[] response, boolean keepAlive) {
+            if (!key.isValid()) {
+                return;
+            }
+            Connection conn = (Connection) key.attachment();
+            conn.keepAlive = keepAlive;
+            conn.out = ByteBuffer.wrap(response);
+            try {
+                // most responses fit in the socket buffer, only wait for OP_WRITE if they don't.
+                write(key);
+                if (key.isValid() && conn.out != null) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                System.out.println(e);
+                close(key);
+            }
+        }
+
+        private void write(SelectionKey key) throws IOException {
+            Connection conn = (Connection) key.attachment();
+            conn.channel.write(conn.out);
+            if (conn.out.hasRemaining()) {
+                return;
+            }
+            conn.out = null;
+            conn.busy = false;
+            conn.lastActivity = System.currentTimeMillis();
+            if (!conn.keepAlive) {
+                close(key);
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            dispatchNext(key, conn);
+        }
+
+        // closes keep-alive connections that have had no request in flight for longer than the keep-alive timeout.
+        private void closeIdleConnections(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection conn = (Connection) key.attachment();
+                if (key.isValid() && conn != null && !conn.busy && now - conn.lastActivity > keepAliveTimeoutMs) {
+                    close(key);
+                }
+            }
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            closeQuietly(key.channel());
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * PubSubConfig holds the startup options shared by the EventManager, PublisherAgent and SubscriberAgent. Options are
+ * passed as system properties, e.g. "java -Dpubsub.em.serverMode=nio -cp target/project2-1.0.jar edu.rit.cs.EventManager"
+ */
+package edu.rit.cs;
+
+class PubSubConfig {
+
+    // "thread" keeps the original thread-per-request listener, "nio" uses the selector based event loop.
+    public static final String EM_SERVER_MODE = "pubsub.em.serverMode";
+    public static final String EM_IO_THREADS = "pubsub.em.ioThreads";
+    // Port the EventManager takes requests on. Its push channel port defaults to the next one.
+    public static final String EM_PORT = "pubsub.em.port";
+
+    // Push channels clients open to the EventManager. "channel" pushes over them, "listener" keeps the port 6969
+    // listener that the EM dials back to. See PushChannelServer.
+    public static final String EM_CHANNEL_PORT = "pubsub.em.channelPort";
+    public static final String CLIENT_PUSH_MODE = "pubsub.client.pushMode";
+    // What publishers and subscribers talk to the EventManager in: "json" for JSON-RPC over HTTP, or "binary" for the
+    // compact BinaryProtocol. The EM serves both.
+    public static final String CLIENT_PROTOCOL = "pubsub.client.protocol";
+
+    // Node number 0-1023 that goes into the Event and Topic IDs this process makes, see IdGenerator. The default
+    // hashes the host's address and process ID into those 10 bits, so with a few dozen processes two of them likely
+    // share a node and can make the same IDs. Give every publisher and EventManager its own to be sure they never do.
+    public static final String ID_NODE = "pubsub.id.node";
+
+    // How the per connection handlers run: "thread", "bounded" or "virtual". See HandlerExecutor.
+    public static final String EXECUTION_MODE = "pubsub.executionMode";
+    public static final String MAX_HANDLERS = "pubsub.maxHandlers";
+    public static final String MAX_QUEUED_CONNECTIONS = "pubsub.maxQueuedConnections";
+
+    // Persistent connections from the EventManager to publishers/subscribers. See ConnectionPool.
+    public static final String POOL_MAX_PER_CLIENT = "pubsub.pool.maxPerClient";
+    public static final String POOL_MAX_TOTAL = "pubsub.pool.maxTotal";
+    public static final String POOL_IDLE_TIMEOUT_MS = "pubsub.pool.idleTimeoutMs";
+    public static final String POOL_CONNECT_TIMEOUT_MS = "pubsub.pool.connectTimeoutMs";
+    public static final String POOL_READ_TIMEOUT_MS = "pubsub.pool.readTimeoutMs";
+
+    // How long a listener keeps an idle keep-alive connection open before closing it.
+    public static final String KEEP_ALIVE_TIMEOUT_MS = "pubsub.keepAliveTimeoutMs";
+
+    // Fan-out of published events. See DeliveryService.
+    public static final String DELIVERY_THREADS = "pubsub.delivery.threads";
+    public static final String DELIVERY_QUEUE_SIZE = "pubsub.delivery.queueSize";
+    public static final String ACK_TIMEOUT_MS = "pubsub.ackTimeoutMs";
+
+    // Per subscriber delivery lanes and their circuit breakers. See SubscriberLane.
+    public static final String LANE_QUEUE_SIZE = "pubsub.lane.queueSize";
+    public static final String BREAKER_FAILURE_THRESHOLD = "pubsub.breaker.failureThreshold";
+    public static final String BREAKER_PROBE_INTERVAL_MS = "pubsub.breaker.probeIntervalMs";
+    public static final String LANE_MAX_BATCH = "pubsub.lane.maxBatch";
+    public static final String LANE_MAX_BATCH_DELAY_MS = "pubsub.lane.maxBatchDelayMs";
+
+    // Retries of failed QoS 1/2 deliveries. See RetryScheduler.
+    public static final String RETRY_QOS1_INITIAL_DELAY_MS = "pubsub.retry.qos1.initialDelayMs";
+    public static final String RETRY_QOS1_MAX_DELAY_MS = "pubsub.retry.qos1.maxDelayMs";
+    public static final String RETRY_QOS2_INITIAL_DELAY_MS = "pubsub.retry.qos2.initialDelayMs";
+    public static final String RETRY_QOS2_MAX_DELAY_MS = "pubsub.retry.qos2.maxDelayMs";
+    public static final String RETRY_MULTIPLIER = "pubsub.retry.multiplier";
+    public static final String RETRY_JITTER = "pubsub.retry.jitter";
+    public static final String RETRY_MAX_IN_FLIGHT = "pubsub.retry.maxInFlight";
+    public static final String RETRY_TICK_MS = "pubsub.retry.tickMs";
+
+    // Durable per topic event log of the EventManager. See EventLog.
+    public static final String LOG_DIR = "pubsub.log.dir";
+    public static final String LOG_SEGMENT_BYTES = "pubsub.log.segmentBytes";
+    public static final String LOG_FSYNC = "pubsub.log.fsync";
+    public static final String LOG_FSYNC_INTERVAL_MS = "pubsub.log.fsyncIntervalMs";
+    public static final String LOG_RETENTION_BYTES = "pubsub.log.retentionBytes";
+
+    // Limits of a pull subscriber's fetchEvents long poll.
+    public static final String FETCH_MAX_EVENTS = "pubsub.fetch.maxEvents";
+    public static final String FETCH_MAX_WAIT_MS = "pubsub.fetch.maxWaitMs";
+
+    // Topics whose subscribers SubscriptionTrie keeps cached.
+    public static final String MATCH_CACHE_SIZE = "pubsub.match.cacheSize";
+
+    // EventManagers sharing the topics between them, as "host:port,host:port,...". See Cluster and HashRing.
+    public static final String CLUSTER_NODES = "pubsub.cluster.nodes";
+    public static final String CLUSTER_SELF = "pubsub.cluster.self";
+    public static final String CLUSTER_VIRTUAL_NODES = "pubsub.cluster.virtualNodes";
+    // How often agents fetch the cluster's nodes, to find EventManagers that joined.
+    public static final String CLUSTER_REFRESH_MS = "pubsub.cluster.refreshMs";
+
+    // "push" subscribers get events sent to their listener, "pull" subscribers fetch them. See PullConsumer.
+    public static final String SUBSCRIBER_MODE = "pubsub.subscriber.mode";
+
+    // Batching of events published with PublisherAgent.publishAsync. See PublishAccumulator.
+    public static final String PUBLISH_BATCH_SIZE = "pubsub.publish.batchSize";
+    public static final String PUBLISH_LINGER_MS = "pubsub.publish.lingerMs";
+    public static final String PUBLISH_BUFFER_EVENTS = "pubsub.publish.bufferEvents";
+    public static final String PUBLISH_BUFFER_FULL_POLICY = "pubsub.publish.bufferFullPolicy";
+    public static final String PUBLISH_MAX_BLOCK_MS = "pubsub.publish.maxBlockMs";
+    public static final String PUBLISH_ACK = "pubsub.publish.ack";
+
+    private PubSubConfig() {}
+
+    /*
+     * returns the value of a startup option or the default if it wasn't given.
+     */
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    /*
+     * returns a numeric startup option. Falls back to the default if the option is missing or not a number.
+     */
+    public static int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring non numeric value " + value + " for " + key);
+            return defaultValue;
+        }
+    }
+
+    /*
+     * returns a numeric startup option too large for an int, like a size in bytes. Falls back to the default if the
+     * option is missing or not a number.
+     */
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring non numeric value " + value + " for " + key);
+            return defaultValue;
+        }
+    }
+
+    /*
+     * returns a decimal startup option. Falls back to the default if the option is missing or not a number.
+     */
+    public static double getDouble(String key, double defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring non numeric value " + value + " for " + key);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * PublishAccumulator collects events published one at a time and sends them to the EventManager in batches. Events
+ * are buffered per topic (and QoS), and a topic's batch is sent as soon as it has batchSize events or its oldest event
+ * has waited lingerMs, whichever comes first. Every event gets a future that completes with the EM's result for it.
+ * The number of buffered events is capped; when the buffer is full publishAsync either waits for room or fails,
+ * depending on the configured policy.
+ */
+package edu.rit.cs;
+
+import com.thetransactioncompany.jsonrpc2.client.JSONRPC2SessionException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+class PublishAccumulator {
+
+    // Sends one batch to the EM and returns the EM's result for every event, in order.
+    interface BatchSender {
+        List<String> send(List<Event> events, String qos, int retrails, String ack) throws JSONRPC2SessionException;
+    }
+
+    public static final String BLOCK = "block";
+    public static final String FAIL = "fail";
+
+    // The events buffered for one topic and QoS, and the futures their callers are waiting on.
+    private static class Batch {
+        private final String qos;
+        private final int retrails;
+        private final List<Event> events = new ArrayList<>();
+        private final List<CompletableFuture<String>> results = new ArrayList<>();
+
+        private Batch(String qos, int retrails) {
+            this.qos = qos;
+            this.retrails = retrails;
+        }
+    }
+
+    private final BatchSender sender;
+    private final int batchSize;
+    private final long lingerMs;
+    private final String ack;
+    private final boolean blockWhenFull;
+    private final long maxBlockMs;
+    private final Semaphore bufferSpace;
+
+    // open batches by topic name and QoS. Guarded by this.
+    private final Map<String, Batch> batches = new HashMap<>();
+    private final ScheduledExecutorService linger;
+    // a single sender thread, so the batches of a topic reach the EM in the order they were filled.
+    private final ExecutorService sending;
+
+    public PublishAccumulator(BatchSender sender, int batchSize, long lingerMs, int maxBufferedEvents, String ack,
+                              String bufferFullPolicy, long maxBlockMs) {
+        this.sender = sender;
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerMs = Math.max(0, lingerMs);
+        this.ack = ack;
+        this.blockWhenFull = !bufferFullPolicy.equals(FAIL);
+        this.maxBlockMs = maxBlockMs;
+        this.bufferSpace = new Semaphore(Math.max(this.batchSize, maxBufferedEvents));
+        this.linger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "publish-linger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sending = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "publish-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+     * builds the accumulator from the pubsub.publish.* startup options.
+     */
+    public static PublishAccumulator fromConfig(BatchSender sender) {
+        return new PublishAccumulator(sender,
+                PubSubConfig.getInt(PubSubConfig.PUBLISH_BATCH_SIZE, 100),
+                PubSubConfig.getInt(PubSubConfig.PUBLISH_LINGER_MS, 5),
+                PubSubConfig.getInt(PubSubConfig.PUBLISH_BUFFER_EVENTS, 10000),
+                PubSubConfig.getString(PubSubConfig.PUBLISH_ACK, DeliveryService.AckPolicy.ALL),
+                PubSubConfig.getString(PubSubConfig.PUBLISH_BUFFER_FULL_POLICY, BLOCK),
+                PubSubConfig.getInt(PubSubConfig.PUBLISH_MAX_BLOCK_MS, 60000));
+    }
+
+    /*
+     * Buffers the event for its topic. The returned future completes with the EM's result for the event, or
+     * exceptionally if the buffer is full (and the policy is fail or the wait timed out) or the batch couldn't be sent.
+     */
+    public CompletableFuture<String> add(Event event, String qos, int retrails) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        if (!reserveSpace()) {
+            result.completeExceptionally(new IllegalStateException("Publish buffer is full, event " + event.getTitle() + " was not published."));
+            return result;
+        }
+
+        Batch full = null;
+        synchronized (this) {
+            String key = event.getTopic().getName() + "|" + qos + "|" + retrails;
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(qos, retrails);
+                batches.put(key, batch);
+                Batch lingering = batch;
+                linger.schedule(() -> flush(key, lingering), lingerMs, TimeUnit.MILLISECONDS);
+            }
+            batch.events.add(event);
+            batch.results.add(result);
+            if (batch.events.size() >= batchSize) {
+                batches.remove(key);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return result;
+    }
+
+    /*
+     * sends everything that is buffered right away, e.g. before the publisher logs off.
+     */
+    public void flush() {
+        List<Batch> open;
+        synchronized (this) {
+            open = new ArrayList<>(batches.values());
+            batches.clear();
+        }
+        for (Batch batch : open) {
+            send(batch);
+        }
+    }
+
+    /*
+     * flushes and waits until every batch has been answered by the EM.
+     */
+    public void close() {
+        flush();
+        CompletableFuture<Void> drained = new CompletableFuture<>();
+        sending.execute(() -> drained.complete(null));
+        drained.join();
+    }
+
+    private boolean reserveSpace() {
+        if (!blockWhenFull) {
+            return bufferSpace.tryAcquire();
+        }
+        try {
+            return bufferSpace.tryAcquire(maxBlockMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // called when the batch's linger time is up. Does nothing if it was already sent because it filled up.
+    private void flush(String key, Batch batch) {
+        synchronized (this) {
+            if (batches.get(key) != batch) {
+                return;
+            }
+            batches.remove(key);
+        }
+        send(batch);
+    }
+
+    private void send(Batch batch) {
+        sending.execute(() -> {
+            try {
+                List<String> results = sender.send(batch.events, batch.qos, batch.retrails, ack);
+                for (int i = 0; i < batch.results.size(); i++) {
+                    if (results != null && i < results.size()) {
+                        batch.results.get(i).complete(results.get(i));
+                    } else {
+                        batch.results.get(i).completeExceptionally(new IllegalStateException("No result from the EventManager."));
+                    }
+                }
+            } catch (JSONRPC2SessionException | RuntimeException e) {
+                for (CompletableFuture<String> result : batch.results) {
+                    result.completeExceptionally(e);
+                }
+            } finally {
+                bufferSpace.release(batch.events.size());
+            }
+        });
+    }
+}
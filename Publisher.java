@@ -1,10 +1,17 @@
 package edu.rit.cs;
 
+import java.util.List;
+
 public interface Publisher {
 	/*
 	 * publish an event of a specific topic with title and content
 	 */
 	public void publish(Event event, String qos, int retrails);
+
+	/*
+	 * publish several events, of one or more topics, in a single request to the event manager
+	 */
+	public void publishBatch(List<Event> events, String qos, int retrails);
 	
 	/*
 	 * advertise new topic
@@ -6,10 +6,6 @@
  */
 package edu.rit.cs;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.thetransactioncompany.jsonrpc2.client.*;
 import com.thetransactioncompany.jsonrpc2.*;
 import com.thetransactioncompany.jsonrpc2.server.Dispatcher;
@@ -19,8 +15,7 @@ import com.thetransactioncompany.jsonrpc2.server.RequestHandler;
 import java.net.*;
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.Type;
-import com.google.gson.reflect.TypeToken;
+import java.util.concurrent.CompletableFuture;
 
 /*
  * PublisherAgentHandler is a service that listens to (on Port 6969) requests from the EventManager. It's a wrapper
@@ -46,8 +41,7 @@ class PublisherAgentHandler {
 
                 // get the topic sent by EM from myParams and print it out.
                 Map<String, Object> myParams = req.getNamedParams();
-                Gson gson = new Gson();
-                Topic topic = gson.fromJson(myParams.get("topic").toString(), Topic.class);
+                Topic topic = JsonCodec.topic(myParams.get("topic"));
                 String topicName = topic.getName();
                 System.out.println("New Topic Received: " + topicName);
 
@@ -75,22 +69,11 @@ class PublisherAgentHandler {
 
                 // get pending notifications list from myParams sent by EventManager.
                 Map<String, Object> myParams = req.getNamedParams();
-                Gson gson = new Gson();
-                Type listType = new TypeToken<ArrayList<Object>>(){}.getType();
-                List<Object> pendingNotificationsList = gson.fromJson(myParams.get("pendingNotifications").toString(), listType);
+                List<?> pendingNotificationsList = (List<?>) myParams.get("pendingNotifications");
 
                 for (Object o: pendingNotificationsList ) {
-                    String topicOrEvent = o.toString();
-                    boolean isTopic = false;
-                    JsonParser parser = new JsonParser();
-                    JsonElement element = parser.parse(topicOrEvent);
-                    JsonObject obj = element.getAsJsonObject();
-                    Set<Map.Entry<String, JsonElement>> entries = obj.entrySet();
-                    if (entries.size()==3){
-                        isTopic = true;
-                    }
-                    if (isTopic){
-                        Topic pendingTopic = gson.fromJson(o.toString(), Topic.class);
+                    if (JsonCodec.isTopic(o)){
+                        Topic pendingTopic = JsonCodec.topic(o);
                         System.out.println("New topic Received : "+ pendingTopic.getName());
                     }
                 }
@@ -103,86 +86,65 @@ class PublisherAgentHandler {
 }
 
 /*
- * PHandler is the thread that takes the requests from EM and allocates it a different port
+ * PHandler is the handler that takes the requests from EM and allocates it a different port
  * and maintains a "registry" of all different types of handlers and assigns a handler to process in that thread.
  */
-class PHandler extends Thread {
+class PHandler implements Runnable {
     private String name;
     private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private InputStream in;
+    private OutputStream out;
     private Dispatcher dispatcher;
+    private HandlerExecutor handlerExecutor;
 
     /**
-     * Constructs a handler thread, squirreling away the socket.
+     * Constructs a handler thread, squirreling away the socket and the executor it runs on.
      * All the interesting work is done in the run method.
      */
-    public PHandler(Socket socket) {
+    public PHandler(Socket socket, HandlerExecutor handlerExecutor) {
         this.socket = socket;
+        this.handlerExecutor = handlerExecutor;
+        this.dispatcher = createDispatcher();
+    }
 
-        // Create a new JSON-RPC 2.0 request dispatcher
-        this.dispatcher = new Dispatcher();
+    // Creates a new JSON-RPC 2.0 request dispatcher for the requests the EM pushes, over the listener or the push channel.
+    static Dispatcher createDispatcher() {
+        Dispatcher dispatcher = new Dispatcher();
 
         // Register the "echo", "receiveTopic" and "receivePendingNotifications" handlers with it
         dispatcher.register(new PublisherAgentHandler.ReceiveTopicsHandler());
         dispatcher.register(new PublisherAgentHandler.ReceivePendingNotificationsHandler());
-
-
+        return dispatcher;
     }
 
     /**
-     * Services this thread's client by repeatedly requesting a
-     * screen name until a unique one has been submitted, then
-     * acknowledges the name and registers the output stream for
-     * the client in a global set, then repeatedly gets inputs and
-     * broadcasts them.
+     * Serves the requests the EM sends over this connection. The EM keeps its connections open between pushes,
+     * so requests are answered one after the other until the EM closes the connection, asks us to close it, or
+     * leaves it idle for longer than the keep-alive timeout, or than a moment once other connections wait for a
+     * handler.
      */
     public void run() {
         try {
-            // Create character streams for the socket.
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            // read request
-            String line;
-            line = in.readLine();
-            //System.out.println(line);
-            StringBuilder raw = new StringBuilder();
-            raw.append("" + line);
-            boolean isPost = line.startsWith("POST");
-            int contentLength = 0;
-            while (!(line = in.readLine()).equals("")) {
-                //System.out.println(line);
-                raw.append('\n' + line);
-                if (isPost) {
-                    final String contentHeader = "Content-Length: ";
-                    if (line.startsWith(contentHeader)) {
-                        contentLength = Integer.parseInt(line.substring(contentHeader.length()));
-                    }
+            int keepAliveTimeoutMs = PubSubConfig.getInt(PubSubConfig.KEEP_ALIVE_TIMEOUT_MS, 60000);
+            socket.setSoTimeout(keepAliveTimeoutMs);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+
+            HttpFrame frame;
+            while (handlerExecutor.awaitRequest(socket, in, keepAliveTimeoutMs) && (frame = HttpFrame.read(in)) != null) {
+                JSONRPC2Request request = JsonCodec.parseRequest(frame.getBody());
+                JSONRPC2Response resp = dispatcher.process(request, null);
+
+                // send response
+                boolean keepAlive = frame.isKeepAlive();
+                out.write(HttpFrame.response(resp, keepAlive));
+                out.flush();
+                if (!keepAlive) {
+                    break;
                 }
             }
-            StringBuilder body = new StringBuilder();
-            if (isPost) {
-                int c = 0;
-                for (int i = 0; i < contentLength; i++) {
-                    c = in.read();
-                    body.append((char) c);
-                }
-            }
-
-            JSONRPC2Request request = JSONRPC2Request.parse(body.toString());
-            JSONRPC2Response resp = dispatcher.process(request, null);
-
-
-            // send response
-            out.write("HTTP/1.1 200 OK\r\n");
-            out.write("Content-Type: application/json\r\n");
-            out.write("\r\n");
-            out.write(resp.toJSONString());
-            out.flush();
-            out.close();
-            socket.close();
-
+        } catch (SocketTimeoutException e) {
+            // the connection sat idle past the keep-alive timeout, just close it.
         } catch (IOException e) {
             System.out.println(e);
         } catch (JSONRPC2ParseException e) {
@@ -203,22 +165,21 @@ class PHandler extends Thread {
  */
 public class PublisherAgent implements Publisher{
 
-    public static JSONRPC2Session mySession = null;
+    public static ClusterSession mySession = null;
     public static int requestID = 0;
+    private static HandlerExecutor handlerExecutor = HandlerExecutor.fromConfig("publisher-handler", "thread");
+    private PublishAccumulator accumulator = null;
+    // "channel" gets pushes over a connection this publisher opens to the EM, "listener" on port 6969.
+    private static final boolean pushChannelMode = !PubSubConfig.getString(PubSubConfig.CLIENT_PUSH_MODE, "channel").equals("listener");
+    // one push channel to every EventManager of the cluster.
+    private final List<PushChannelClient> pushChannels = new ArrayList<>();
 
     /*
-     * create a session(with the EventManager) object and assign it to a static variable.
+     * create a session with the EventManager, or with every EventManager of its cluster, and assign it to a static
+     * variable. Every request to the EM reuses the session's persistent connections.
      */
     public void createEMConnection(String eventManagerHostname, int eventManagerPort){
-        URL serverURL = null;
-
-        try {
-            serverURL = new URL("http://"+eventManagerHostname+":"+eventManagerPort);
-        } catch (MalformedURLException e) {
-            System.out.println("EM not up.");
-        }
-
-        mySession = new JSONRPC2Session(serverURL);
+        mySession = ClusterSession.connect(eventManagerHostname, eventManagerPort, 0, 0);
     }
 
     /*
@@ -249,12 +210,60 @@ public class PublisherAgent implements Publisher{
             System.out.println();
             System.out.println("------" + response.getResult().toString() + " --------");
             System.out.println();
+            if (pushChannelMode) {
+                for (String node : mySession.getNodes()) {
+                    openPushChannel(publisherID, node);
+                }
+            }
+            // EventManagers joining the cluster from now on get a login of their own.
+            JSONRPC2Request loginRequest = request;
+            mySession.setNodeListener(node -> loginToNode(loginRequest, publisherID, node));
         }else {
             System.out.println("Couldn't login " + publisherID);
         }
 
     }
 
+    /*
+     * logs in on an EventManager that joined the cluster after this publisher logged in, so that node can push to it
+     * too, and picks up what it has pending there.
+     */
+    private void loginToNode(JSONRPC2Request loginRequest, String publisherID, String node) {
+        try {
+            JSONRPC2Response response = mySession.sendTo(node, loginRequest);
+            if (!response.indicatesSuccess()) {
+                System.out.println("Couldn't login " + publisherID + " on " + node);
+                return;
+            }
+            if (pushChannelMode) {
+                openPushChannel(publisherID, node);
+            }
+            Map<String, Object> myParams = new HashMap<>();
+            myParams.put("machineID", publisherID);
+            mySession.sendTo(node, new JSONRPC2Request("checkForPendingNotifications", myParams, loginRequest.getID()));
+        } catch (JSONRPC2SessionException e) {
+            System.out.println("Couldn't login " + publisherID + " on " + node + ": " + e.getMessage());
+        }
+    }
+
+    private void openPushChannel(String publisherID, String node) {
+        PushChannelClient channel = PushChannelClient.fromConfig(publisherID, Cluster.hostOf(node), Cluster.portOf(node),
+                PHandler.createDispatcher());
+        channel.open();
+        synchronized (pushChannels) {
+            pushChannels.add(channel);
+        }
+    }
+
+    private void closePushChannels() {
+        synchronized (pushChannels) {
+            for (PushChannelClient channel : pushChannels) {
+                channel.close();
+            }
+            pushChannels.clear();
+        }
+    }
+
     /*
      * checkForPendingNotifcations is called right after logging in to see if the publisher has any pending
      * notifications.
@@ -290,6 +299,12 @@ public class PublisherAgent implements Publisher{
      * take logoff from the user and send it to EM to mark publisher as logged off.
      */
     public void logoff(String publisherID) {
+        // send whatever publishAsync still has buffered before logging off.
+        synchronized (this) {
+            if (accumulator != null) {
+                accumulator.close();
+            }
+        }
         String method = "publisherLogoff";
         requestID += 1;
         JSONRPC2Request request = new JSONRPC2Request(method, requestID);
@@ -312,6 +327,8 @@ public class PublisherAgent implements Publisher{
             System.out.println();
             System.out.println("------" + response.getResult().toString() + " --------");
             System.out.println();
+            mySession.setNodeListener(node -> {});
+            closePushChannels();
         }
         else
             System.out.println("Couldn't logoff " + publisherID);
@@ -320,10 +337,18 @@ public class PublisherAgent implements Publisher{
 
     /*
      * take inputs from user and create an Event Object. Send that event object to EM, which then publishes that
-     * event to all it's topic subscribers.
+     * event to all it's topic subscribers. Waits until all online subscribers got it.
      */
     @Override
     public void publish(Event event, String qos, int retrails) {
+        publish(event, qos, retrails, "all");
+    }
+
+    /*
+     * same as publish, but the publisher chooses when the EM answers: "accepted" as soon as the EM has taken the
+     * event, "all" once all online subscribers got it, or a number N once N subscribers got it.
+     */
+    public void publish(Event event, String qos, int retrails, String ack) {
         String method = "publishEvent";
         requestID += 1;
         JSONRPC2Request request = new JSONRPC2Request(method, requestID);
@@ -332,6 +357,7 @@ public class PublisherAgent implements Publisher{
         myParams.put("event", event);
         myParams.put("qos", qos);
         myParams.put("retrails", retrails);
+        myParams.put("ack", ack);
         request.setNamedParams(myParams);
 
         // Send Event object to EM and populate response.
@@ -349,6 +375,84 @@ public class PublisherAgent implements Publisher{
         }
     }
 
+    /*
+     * sends a batch of events to the EM in one request instead of one round trip per event. The EM hands every
+     * subscriber all of its events from the batch at once, and answers with one result per event, in order.
+     */
+    @Override
+    public void publishBatch(List<Event> events, String qos, int retrails) {
+        publishBatch(events, qos, retrails, "all");
+    }
+
+    /*
+     * same as publishBatch, with the ack policy of publish(event, qos, retrails, ack) applied to every event.
+     */
+    public void publishBatch(List<Event> events, String qos, int retrails, String ack) {
+        List<String> results = null;
+        try {
+            results = sendBatch(events, qos, retrails, ack);
+        } catch (JSONRPC2SessionException e) {
+            System.err.println(e.getMessage());
+        }
+
+        // Print the result of every event
+        if (results != null) {
+            for (int i = 0; i < results.size() && i < events.size(); i++) {
+                System.out.println(events.get(i).getTitle() + ": " + results.get(i));
+            }
+        } else {
+            System.out.println("Couldn't publish the batch of " + events.size() + " events.");
+        }
+    }
+
+    /*
+     * Publishes the event without waiting for the EM. Events are buffered per topic and sent with publishEvents once
+     * enough of them are waiting or the linger time is up (see PublishAccumulator). The future completes with the
+     * EM's result for this event.
+     */
+    public CompletableFuture<String> publishAsync(Event event) {
+        return publishAsync(event, "0", 0);
+    }
+
+    public CompletableFuture<String> publishAsync(Event event, String qos, int retrails) {
+        synchronized (this) {
+            if (accumulator == null) {
+                accumulator = PublishAccumulator.fromConfig(this::sendBatch);
+            }
+        }
+        return accumulator.add(event, qos, retrails);
+    }
+
+    /*
+     * sends one publishEvents request and returns the EM's result for every event, or null if the EM refused it.
+     */
+    private List<String> sendBatch(List<Event> events, String qos, int retrails, String ack) throws JSONRPC2SessionException {
+        String method = "publishEvents";
+        JSONRPC2Request request;
+        synchronized (PublisherAgent.class) {
+            requestID += 1;
+            request = new JSONRPC2Request(method, requestID);
+        }
+
+        Map<String, Object> myParams = new HashMap<>();
+        myParams.put("events", events);
+        myParams.put("qos", qos);
+        myParams.put("retrails", retrails);
+        myParams.put("ack", ack);
+        request.setNamedParams(myParams);
+
+        // Send the events to EM and populate response.
+        JSONRPC2Response response = mySession.send(request);
+        if (!response.indicatesSuccess()) {
+            return null;
+        }
+        List<String> results = new ArrayList<>();
+        for (Object result : (List<?>) response.getResult()) {
+            results.add(String.valueOf(result));
+        }
+        return results;
+    }
+
     /*
      * This method helps to retrieve Topic object from the EventManager from topic name.
      */
@@ -372,8 +476,7 @@ public class PublisherAgent implements Publisher{
 
         // Print response result / error
         if (response != null && response.indicatesSuccess()){
-            Gson gson = new Gson();
-            return gson.fromJson(response.getResult().toString(), Topic.class);
+            return JsonCodec.topic(response.getResult());
         }
         else
             System.out.println("Couldn't get Topic object from name "+ topicName);
@@ -399,9 +502,7 @@ public class PublisherAgent implements Publisher{
 
         // Print response result / error
         if (response != null && response.indicatesSuccess()){
-            Gson gson = new Gson();
-            Type mapType = new TypeToken<HashMap<String, Topic>>(){}.getType();
-            return gson.fromJson(response.getResult().toString(), mapType);
+            return JsonCodec.topicsByName(response.getResult());
         }
         else
             System.out.println("Couldn't get all topics from EventManager.");
@@ -431,9 +532,18 @@ public class PublisherAgent implements Publisher{
             System.err.println(e.getMessage());
         }
 
-        // Print response result / error
-        if (response != null && response.indicatesSuccess()) {
-            System.out.println(newTopic.getName() + response.getResult());
+        // the result is the topic as the EM keeps it, under a new ID if another topic had this one already, or a
+        // message if the EM refused it, e.g. for a name with wildcard levels.
+        if (response != null && response.indicatesSuccess() && !JsonCodec.isTopic(response.getResult())) {
+            System.out.println(response.getResult());
+        } else if (response != null && response.indicatesSuccess()) {
+            Topic advertised = JsonCodec.topic(response.getResult());
+            if (advertised.getId().equals(newTopic.getId())) {
+                System.out.println(newTopic.getName() + " Topic successfully advertised to all clients.");
+            } else {
+                System.out.println(newTopic.getName() + " Topic successfully advertised to all clients, with ID "
+                        + advertised.getId() + " since " + newTopic.getId() + " was taken.");
+            }
         }
 
     }
@@ -445,7 +555,11 @@ public class PublisherAgent implements Publisher{
         ServerSocket listener = new ServerSocket(6969);
         try {
             while (true) {
-                new PHandler(listener.accept()).start();
+                Socket socket = listener.accept();
+                if (!handlerExecutor.execute(new PHandler(socket, handlerExecutor))) {
+                    System.out.println("Too many notifications in flight, closing connection from " + socket.getInetAddress());
+                    socket.close();
+                }
             }
         } finally {
             listener.close();
@@ -470,13 +584,15 @@ public class PublisherAgent implements Publisher{
      */
     public static void main(String[] args) throws UnknownHostException {
         PublisherAgent aPublisher = new PublisherAgent();
-        new Thread(() -> {
-            try {
-                aPublisher.listenToNotificationsFromEM(); //do we want one or multiple instances running?
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }).start();
+        if (!pushChannelMode) {
+            new Thread(() -> {
+                try {
+                    aPublisher.listenToNotificationsFromEM(); //do we want one or multiple instances running?
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }).start();
+        }
 
         Scanner sc = new Scanner(System.in);
         requestID = new Random().nextInt(5000);
@@ -545,7 +661,13 @@ public class PublisherAgent implements Publisher{
                         }
                         retrails = Integer.parseInt(ret);
                     }
-                    aPublisher.publish(newEvent, qos, retrails);
+                    System.out.println("When should the EM answer? accepted / all / number of subscribers (press enter for all)");
+                    String ack = sc.nextLine().trim();
+                    while (!ack.isEmpty() && !ack.equals("accepted") && !ack.equals("all") && !isNumeric(ack)){
+                        System.out.println("Please enter accepted, all or a number.");
+                        ack = sc.nextLine().trim();
+                    }
+                    aPublisher.publish(newEvent, qos, retrails, ack.isEmpty() ? "all" : ack);
                 }
 
             } else if (userChoice.equals("2")){
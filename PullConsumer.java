@@ -0,0 +1,142 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * PullConsumer is the subscriber side of pull mode. For every subscribed topic it runs a thread that long polls the
+ * EventManager with fetchEvents, processes the batch of events it gets back, and then commits the offset after the
+ * last one. The EM never has to connect to the subscriber, so this works behind NAT, and a slow subscriber just
+ * fetches less often. Since the offset is committed after processing, an event can be seen twice after a crash but
+ * is never skipped.
+ */
+package edu.rit.cs;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+import com.thetransactioncompany.jsonrpc2.client.JSONRPC2SessionException;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class PullConsumer {
+
+    private final String subscriberID;
+    // the subscriber's session, every topic's thread forks its own connections from it.
+    private final ClusterSession session;
+    private final int maxEvents;
+    private final long maxWaitMs;
+    private final Map<String, Thread> consumers = new ConcurrentHashMap<>();
+    private final AtomicInteger requestID = new AtomicInteger();
+
+    public PullConsumer(String subscriberID, ClusterSession session, int maxEvents, long maxWaitMs) {
+        this.subscriberID = subscriberID;
+        this.session = session;
+        this.maxEvents = maxEvents;
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    /*
+     * builds the consumer from the pubsub.fetch.* startup options.
+     */
+    public static PullConsumer fromConfig(String subscriberID, ClusterSession session) {
+        return new PullConsumer(subscriberID, session,
+                PubSubConfig.getInt(PubSubConfig.FETCH_MAX_EVENTS, 1000),
+                PubSubConfig.getInt(PubSubConfig.FETCH_MAX_WAIT_MS, 30000));
+    }
+
+    // starts consuming a topic from the subscriber's committed offset, if it isn't consumed already.
+    public void start(String topicName) {
+        consumers.computeIfAbsent(topicName, name -> {
+            Thread thread = new Thread(() -> consume(name), "pull-" + name);
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
+        });
+    }
+
+    public void stop(String topicName) {
+        Thread thread = consumers.remove(topicName);
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public void stopAll() {
+        for (String topicName : consumers.keySet()) {
+            stop(topicName);
+        }
+    }
+
+    private void consume(String topicName) {
+        // its own connections, so a long poll doesn't hold up the CLI's requests on SubscriberAgent.mySession. They go
+        // to the EventManager owning the topic.
+        ClusterSession connection = session.fork(3000, 0);
+        long offset = -1;
+        String owner = connection.ownerOf(topicName);
+        try {
+            while (consumers.get(topicName) == Thread.currentThread()) {
+                if (!owner.equals(connection.ownerOf(topicName))) {
+                    // the topic moved to another EventManager, whose log has offsets of its own. Go on from the
+                    // offset committed there.
+                    owner = connection.ownerOf(topicName);
+                    offset = -1;
+                }
+                Map<String, Object> params = new HashMap<>();
+                params.put("subscriberID", subscriberID);
+                params.put("topic", topicName);
+                params.put("maxEvents", maxEvents);
+                params.put("maxWaitMs", maxWaitMs);
+                if (offset >= 0) {
+                    params.put("fromOffset", offset);
+                }
+                JSONRPC2Response response;
+                try {
+                    response = connection.send(request("fetchEvents", params));
+                } catch (JSONRPC2SessionException e) {
+                    System.out.println("Couldn't fetch events of " + topicName + ", trying again: " + e.getMessage());
+                    Thread.sleep(1000);
+                    continue;
+                }
+                if (!response.indicatesSuccess()) {
+                    System.out.println("Stopped fetching events of " + topicName + ": " + response.getError().getMessage());
+                    return;
+                }
+
+                Map<?, ?> result = (Map<?, ?>) response.getResult();
+                List<?> events = (List<?>) result.get("events");
+                for (Object o : events) {
+                    Event event = JsonCodec.event(o);
+                    System.out.println("New Event Received: " + event.getTitle());
+                }
+                offset = ((Number) result.get("nextOffset")).longValue();
+                if (!events.isEmpty()) {
+                    commit(connection, topicName, offset);
+                }
+            }
+        } catch (InterruptedException e) {
+            // unsubscribed.
+        } finally {
+            connection.close();
+        }
+    }
+
+    private void commit(ClusterSession connection, String topicName, long offset) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("subscriberID", subscriberID);
+        params.put("topic", topicName);
+        params.put("offset", offset);
+        try {
+            connection.send(request("commitOffset", params));
+        } catch (JSONRPC2SessionException e) {
+            // the next commit covers this one, at worst these events are fetched again after a restart.
+            System.out.println("Couldn't commit offset " + offset + " of " + topicName + ": " + e.getMessage());
+        }
+    }
+
+    private JSONRPC2Request request(String method, Map<String, Object> params) {
+        JSONRPC2Request request = new JSONRPC2Request(method, requestID.incrementAndGet());
+        request.setNamedParams(params);
+        return request;
+    }
+}
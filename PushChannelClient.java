@@ -0,0 +1,168 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * PushChannelClient is the publisher's or subscriber's end of a push channel (see DuplexChannel). It connects to the
+ * EventManager at login, attaches the channel with its client ID, and then answers the requests the EM pushes over
+ * it with the agent's own Dispatcher, in the order they arrive. If the channel breaks it reconnects in the background
+ * until the agent logs off. A client on the BinaryProtocol asks for it when attaching, and gets and answers the pushes
+ * in it if the EM speaks a version of it.
+ */
+package edu.rit.cs;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+import com.thetransactioncompany.jsonrpc2.server.Dispatcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+class PushChannelClient {
+
+    private static final long MAX_RECONNECT_DELAY_MS = 30000;
+
+    private final String clientID;
+    private final String emHostname;
+    private final int port;
+    private final Dispatcher dispatcher;
+    private final boolean binary;
+    // the attached connection and its streams, null while reconnecting. Only changed by attach and serve.
+    private volatile Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    // whether the attached channel carries binary messages.
+    private boolean binaryChannel;
+    private volatile boolean closed = false;
+
+    public PushChannelClient(String clientID, String emHostname, int port, Dispatcher dispatcher) {
+        this(clientID, emHostname, port, dispatcher, false);
+    }
+
+    public PushChannelClient(String clientID, String emHostname, int port, Dispatcher dispatcher, boolean binary) {
+        this.clientID = clientID;
+        this.emHostname = emHostname;
+        this.port = port;
+        this.dispatcher = dispatcher;
+        this.binary = binary;
+    }
+
+    // the channel to the EventManager listening on emPort, whose channel port is the next one unless it's configured.
+    public static PushChannelClient fromConfig(String clientID, String emHostname, int emPort, Dispatcher dispatcher) {
+        return new PushChannelClient(clientID, emHostname, PubSubConfig.getInt(PubSubConfig.EM_CHANNEL_PORT, emPort + 1),
+                dispatcher, PubSubConfig.getString(PubSubConfig.CLIENT_PROTOCOL, "json").equals("binary"));
+    }
+
+    /*
+     * Opens and attaches the channel, then serves it on a background thread. Returns false if the EM couldn't be
+     * reached; the channel is then retried in the background.
+     */
+    public boolean open() {
+        boolean attached = attach();
+        Thread reader = new Thread(this::serve, "push-channel");
+        reader.setDaemon(true);
+        reader.start();
+        return attached;
+    }
+
+    public void close() {
+        closed = true;
+        Socket current = socket;
+        if (current != null) {
+            closeQuietly(current);
+        }
+    }
+
+    private boolean attach() {
+        Socket candidate = new Socket();
+        try {
+            candidate.connect(new InetSocketAddress(emHostname, port), 3000);
+            candidate.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(candidate.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(candidate.getInputStream()));
+
+            Map<String, Object> params = new HashMap<>();
+            params.put("clientID", clientID);
+            if (binary) {
+                params.put("version", BinaryProtocol.VERSION);
+            }
+            DuplexChannel.writeFrame(out, JsonCodec.encode(new JSONRPC2Request(PushChannelServer.ATTACH_METHOD, params, 0)));
+            out.flush();
+            byte[] answer = DuplexChannel.readFrame(in);
+            JSONRPC2Response response = answer == null ? null : JsonCodec.parseResponse(answer);
+            if (response == null || !response.indicatesSuccess()) {
+                closeQuietly(candidate);
+                return false;
+            }
+            // an EM that doesn't speak the binary protocol answers with a message only, and pushes JSON.
+            Object version = response.getResult() instanceof Map ? ((Map<?, ?>) response.getResult()).get("version") : null;
+            binaryChannel = version instanceof Number && ((Number) version).intValue() > 0;
+            this.in = in;
+            this.out = out;
+            socket = candidate;
+            return true;
+        } catch (IOException | JSONRPC2ParseException e) {
+            System.out.println("Couldn't open push channel to " + emHostname + ":" + port + ": " + e.getMessage());
+            closeQuietly(candidate);
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    // answers pushed requests until the agent logs off, reattaching with backoff whenever the channel breaks.
+    private void serve() {
+        long delay = 500;
+        while (!closed) {
+            Socket current = socket;
+            if (current == null) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                delay = Math.min(MAX_RECONNECT_DELAY_MS, delay * 2);
+                if (!closed && attach()) {
+                    System.out.println("Push channel to " + emHostname + " reattached.");
+                }
+                continue;
+            }
+            delay = 500;
+            try {
+                byte[] frame;
+                while ((frame = DuplexChannel.readFrame(in)) != null) {
+                    JSONRPC2Response response;
+                    if (binaryChannel) {
+                        DuplexChannel.writeFrame(out, BinaryProtocol.encode(BinaryProtocol.process(frame, dispatcher)));
+                        out.flush();
+                        continue;
+                    }
+                    try {
+                        response = dispatcher.process(JsonCodec.parseRequest(frame), null);
+                    } catch (JSONRPC2ParseException e) {
+                        response = new JSONRPC2Response(JSONRPC2Error.PARSE_ERROR, null);
+                    }
+                    DuplexChannel.writeFrame(out, JsonCodec.encode(response));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.out.println("Push channel to " + emHostname + " broke: " + e.getMessage());
+                }
+            }
+            closeQuietly(current);
+            socket = null;
+        }
+    }
+}
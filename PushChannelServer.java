@@ -0,0 +1,153 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * PushChannelServer accepts the push channels publishers and subscribers open to the EventManager, by default on port
+ * 9092, the one after the EM's. A client starts its channel with an "attachChannel" request carrying its ID; from then
+ * on ConnectionPool sends that client's pushes over the channel instead of dialing back to it on port 6969, so the
+ * client needs no open port of its own and every push skips the TCP handshake. A channel is only attached for a
+ * client that is logged in from the host the channel comes from, so no other host can take its pushes. A client that
+ * also sends the highest BinaryProtocol version it speaks gets the version both speak back, and the channel carries
+ * binary messages after the attach.
+ */
+package edu.rit.cs;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+class PushChannelServer {
+
+    public static final String ATTACH_METHOD = "attachChannel";
+
+    private final int port;
+    private final Map<String, DuplexChannel> channels = new ConcurrentHashMap<>();
+
+    public PushChannelServer(int port) {
+        this.port = port;
+    }
+
+    public static PushChannelServer fromConfig() {
+        // the port after the EventManager's, so several EMs on one machine don't need their channel ports set.
+        int emPort = PubSubConfig.getInt(PubSubConfig.EM_PORT, 9091);
+        return new PushChannelServer(PubSubConfig.getInt(PubSubConfig.EM_CHANNEL_PORT, emPort + 1));
+    }
+
+    /*
+     * starts accepting channels in the background.
+     */
+    public void start() throws IOException {
+        ServerSocket listener = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = listener.accept();
+                    Thread reader = new Thread(() -> serve(socket), "push-channel-" + socket.getInetAddress());
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            } catch (IOException e) {
+                System.out.println("Push channel listener stopped: " + e.getMessage());
+            }
+        }, "push-channel-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Accepting push channels on port " + port);
+    }
+
+    // returns the client's channel if it has an open one.
+    public DuplexChannel get(String clientID) {
+        DuplexChannel channel = channels.get(clientID);
+        return channel != null && channel.isOpen() ? channel : null;
+    }
+
+    // closes the client's channel, e.g. when it logs off.
+    public void remove(String clientID) {
+        DuplexChannel channel = channels.remove(clientID);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private static boolean isLoggedInFrom(String clientID, Socket socket) {
+        String address = EventManager.PublisherInfo.addressOf(clientID);
+        if (address == null) {
+            address = EventManager.SubscriberInfo.addressOf(clientID);
+        }
+        return address != null && DuplexChannel.isSameHost(socket.getInetAddress(), address);
+    }
+
+    private void serve(Socket socket) {
+        DuplexChannel channel = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            // the first frame has to say which client this is.
+            byte[] hello = DuplexChannel.readFrame(in);
+            JSONRPC2Request attach = hello == null ? null : JsonCodec.parseRequest(hello);
+            Object clientID = attach == null || attach.getNamedParams() == null
+                    ? null : attach.getNamedParams().get("clientID");
+            if (attach == null || !attach.getMethod().equals(ATTACH_METHOD) || !(clientID instanceof String)) {
+                if (attach != null) {
+                    DuplexChannel.writeFrame(out, JsonCodec.encode(
+                            new JSONRPC2Response(JSONRPC2Error.INVALID_REQUEST, attach.getID())));
+                    out.flush();
+                }
+                socket.close();
+                return;
+            }
+            if (!isLoggedInFrom((String) clientID, socket)) {
+                System.out.println("Refused push channel for " + clientID + " from " + socket.getInetAddress()
+                        + ", it isn't logged in from there.");
+                JSONRPC2Error refused = JSONRPC2Error.INVALID_REQUEST.appendMessage(
+                        ": " + clientID + " isn't logged in from this address");
+                DuplexChannel.writeFrame(out, JsonCodec.encode(new JSONRPC2Response(refused, attach.getID())));
+                out.flush();
+                socket.close();
+                return;
+            }
+
+            Object requested = attach.getNamedParams().get("version");
+            int version = requested instanceof Number ? BinaryProtocol.negotiate(((Number) requested).intValue()) : 0;
+            channel = new DuplexChannel((String) clientID, socket, in, out, version > 0);
+            DuplexChannel previous = channels.put(channel.getClientID(), channel);
+            if (previous != null) {
+                // the client reconnected, its old channel is dead or about to be.
+                previous.close();
+            }
+            Object result = "Push channel attached for " + clientID;
+            if (requested != null) {
+                Map<String, Object> attached = new HashMap<>();
+                attached.put("message", result);
+                attached.put("version", version);
+                result = attached;
+            }
+            DuplexChannel.writeFrame(out, JsonCodec.encode(new JSONRPC2Response(result, attach.getID())));
+            out.flush();
+            System.out.println("Push channel attached for " + clientID);
+            channel.readResponses();
+        } catch (IOException | JSONRPC2ParseException e) {
+            System.out.println("Couldn't attach push channel from " + socket.getInetAddress() + ": " + e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        } finally {
+            if (channel != null) {
+                channels.remove(channel.getClientID(), channel);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * RetryScheduler takes retries of failed deliveries off the delivery path. Instead of resending straight away in a
+ * loop, a failed QoS 1/2 delivery is put on a TimingWheel and sent again after a backoff that grows with every
+ * attempt, with some random jitter so retries to a struggling subscriber don't all arrive together. The number of
+ * retries waiting at once is capped; past the cap deliveries go to pending notifications instead.
+ */
+package edu.rit.cs;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class RetryScheduler {
+
+    /*
+     * BackoffPolicy gives the wait before a retry: initialDelayMs before the first one, multiplied by multiplier for
+     * every retry after that up to maxDelayMs, and then moved up or down by a random fraction of at most jitter.
+     */
+    static class BackoffPolicy {
+        private final long initialDelayMs;
+        private final long maxDelayMs;
+        private final double multiplier;
+        private final double jitter;
+
+        BackoffPolicy(long initialDelayMs, long maxDelayMs, double multiplier, double jitter) {
+            this.initialDelayMs = Math.max(1, initialDelayMs);
+            this.maxDelayMs = Math.max(this.initialDelayMs, maxDelayMs);
+            this.multiplier = Math.max(1.0, multiplier);
+            this.jitter = Math.min(1.0, Math.max(0.0, jitter));
+        }
+
+        // attempt is 1 for the first retry.
+        public long delayFor(int attempt) {
+            double delay = initialDelayMs * Math.pow(multiplier, Math.max(0, attempt - 1));
+            delay = Math.min(delay, maxDelayMs);
+            if (jitter > 0) {
+                delay = delay * (1 + ThreadLocalRandom.current().nextDouble(-jitter, jitter));
+            }
+            return Math.max(1, (long) delay);
+        }
+    }
+
+    private final TimingWheel wheel;
+    private final BackoffPolicy qos1Policy;
+    private final BackoffPolicy qos2Policy;
+    private final int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public RetryScheduler(TimingWheel wheel, BackoffPolicy qos1Policy, BackoffPolicy qos2Policy, int maxInFlight) {
+        this.wheel = wheel;
+        this.qos1Policy = qos1Policy;
+        this.qos2Policy = qos2Policy;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /*
+     * builds the retry scheduler from the pubsub.retry.* startup options. Retries run on the given executor, and wait
+     * on the wheel for another tick while it rejects them.
+     */
+    public static RetryScheduler fromConfig(Executor executor) {
+        double multiplier = PubSubConfig.getDouble(PubSubConfig.RETRY_MULTIPLIER, 2.0);
+        double jitter = PubSubConfig.getDouble(PubSubConfig.RETRY_JITTER, 0.2);
+        BackoffPolicy qos1 = new BackoffPolicy(PubSubConfig.getInt(PubSubConfig.RETRY_QOS1_INITIAL_DELAY_MS, 200),
+                PubSubConfig.getInt(PubSubConfig.RETRY_QOS1_MAX_DELAY_MS, 5000), multiplier, jitter);
+        BackoffPolicy qos2 = new BackoffPolicy(PubSubConfig.getInt(PubSubConfig.RETRY_QOS2_INITIAL_DELAY_MS, 500),
+                PubSubConfig.getInt(PubSubConfig.RETRY_QOS2_MAX_DELAY_MS, 15000), multiplier, jitter);
+        TimingWheel wheel = new TimingWheel("retry-wheel", PubSubConfig.getInt(PubSubConfig.RETRY_TICK_MS, 50), 512, executor);
+        return new RetryScheduler(wheel, qos1, qos2, Math.max(1, PubSubConfig.getInt(PubSubConfig.RETRY_MAX_IN_FLIGHT, 10000)));
+    }
+
+    /*
+     * Schedules the attempt'th retry for the given QoS. Returns false, without scheduling anything, for QoS 0 or if
+     * too many retries are already waiting; the caller should then give up on the delivery.
+     */
+    public boolean schedule(Runnable retry, String qos, int attempt) {
+        BackoffPolicy policy;
+        if (qos.equals("1")) {
+            policy = qos1Policy;
+        } else if (qos.equals("2")) {
+            policy = qos2Policy;
+        } else {
+            return false;
+        }
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            return false;
+        }
+        wheel.schedule(() -> {
+            inFlight.decrementAndGet();
+            retry.run();
+        }, policy.delayFor(attempt));
+        return true;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * RpcConnection is a persistent HTTP/1.1 keep-alive connection that JSON-RPC requests are sent over one after the
+ * other, or pipelined. Unlike JSONRPC2Session it owns its socket, so the TCP handshake is only paid once per
+ * connection. A binary connection carries the same requests in BinaryProtocol frames instead, after agreeing on a
+ * version with the peer right after connecting.
+ */
+package edu.rit.cs;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+import com.thetransactioncompany.jsonrpc2.client.JSONRPC2SessionException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+
+class RpcConnection {
+
+    private final String host;
+    private final int port;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final boolean binary;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private volatile long lastUsed;
+    // IDs of the EncodedRequests sent over this connection.
+    private long nextID = 0;
+
+    private interface FrameWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    // the request never reached the peer, or the peer closed the connection before answering: safe to send again.
+    private static class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private StaleConnectionException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    public RpcConnection(String host, int port, int connectTimeoutMs, int readTimeoutMs) {
+        this(host, port, connectTimeoutMs, readTimeoutMs, false);
+    }
+
+    public RpcConnection(String host, int port, int connectTimeoutMs, int readTimeoutMs, boolean binary) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.binary = binary;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /*
+     * Sends the request and waits for its response. The connection is opened on first use and kept open as long as
+     * the peer allows it. If a connection that was reused turns out to be stale, it is reopened and the request is
+     * sent once more. Stale means the request couldn't be written, or the peer closed the connection without
+     * sending a byte of a response; a request that might have been processed, like one whose response timed out,
+     * is never sent twice.
+     */
+    public synchronized JSONRPC2Response send(JSONRPC2Request request) throws JSONRPC2SessionException {
+        return sendFrame(frame(request));
+    }
+
+    /*
+     * Sends a request that was encoded once for many clients, under an ID of this connection's own. Its bytes are
+     * written as they are, after a head of this connection's own.
+     */
+    public synchronized JSONRPC2Response send(EncodedRequest request) throws JSONRPC2SessionException {
+        long id = ++nextID;
+        if (binary) {
+            return sendFrame(out -> {
+                BinaryProtocol.writeVarint(out, request.binaryLength(id));
+                request.writeBinaryTo(out, id);
+            });
+        }
+        byte[] head = HttpFrame.requestHead(host + ":" + port, request.length(id), true);
+        return sendFrame(out -> {
+            out.write(head);
+            request.writeTo(out, id);
+        });
+    }
+
+    private JSONRPC2Response sendFrame(byte[] frame) throws JSONRPC2SessionException {
+        return sendFrame(out -> out.write(frame));
+    }
+
+    // the frame is written once more if the connection was stale, so it has to be able to write itself twice.
+    private JSONRPC2Response sendFrame(FrameWriter frame) throws JSONRPC2SessionException {
+        boolean reused = socket != null;
+        try {
+            return exchange(frame);
+        } catch (IOException e) {
+            close();
+            if (!reused || !(e instanceof StaleConnectionException)) {
+                throw new JSONRPC2SessionException(e.getMessage(), JSONRPC2SessionException.NETWORK_EXCEPTION, e);
+            }
+        }
+        try {
+            return exchange(frame);
+        } catch (IOException e) {
+            close();
+            throw new JSONRPC2SessionException(e.getMessage(), JSONRPC2SessionException.NETWORK_EXCEPTION, e);
+        }
+    }
+
+    /*
+     * Pipelines the requests: all of them are written before the first response is read, and the responses come back
+     * in the same order. Saves a round trip per request when a client has several requests ready at once.
+     */
+    public synchronized List<JSONRPC2Response> sendPipelined(List<JSONRPC2Request> requests) throws JSONRPC2SessionException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (JSONRPC2Request request : requests) {
+            frames.writeBytes(frame(request));
+        }
+        try {
+            if (socket == null) {
+                connect();
+            }
+            out.write(frames.toByteArray());
+            out.flush();
+            List<JSONRPC2Response> responses = new ArrayList<>();
+            for (int i = 0; i < requests.size(); i++) {
+                responses.add(readResponse());
+            }
+            return responses;
+        } catch (IOException e) {
+            close();
+            throw new JSONRPC2SessionException(e.getMessage(), JSONRPC2SessionException.NETWORK_EXCEPTION, e);
+        }
+    }
+
+    private JSONRPC2Response exchange(FrameWriter frame) throws IOException, JSONRPC2SessionException {
+        if (socket == null) {
+            connect();
+        }
+        try {
+            frame.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            throw new StaleConnectionException(e.getMessage(), e);
+        }
+        awaitResponse();
+        return readResponse();
+    }
+
+    /*
+     * Waits for the first byte of the response. A peer that closes an idle connection either ends it or resets it
+     * once our request arrives, so both before the first byte mean the request was never taken up. A read timeout
+     * means nothing of the sort.
+     */
+    private void awaitResponse() throws IOException {
+        int first;
+        try {
+            in.mark(1);
+            first = in.read();
+            in.reset();
+        } catch (SocketException e) {
+            throw new StaleConnectionException(e.getMessage(), e);
+        }
+        if (first < 0) {
+            throw new StaleConnectionException("Connection closed by " + host + ":" + port, null);
+        }
+    }
+
+    private byte[] frame(JSONRPC2Request request) {
+        return binary ? BinaryProtocol.frame(BinaryProtocol.encode(request)) : HttpFrame.request(host + ":" + port, request, true);
+    }
+
+    private JSONRPC2Response readResponse() throws IOException, JSONRPC2SessionException {
+        if (in == null) {
+            throw new IOException("Connection closed by " + host + ":" + port);
+        }
+        if (binary) {
+            byte[] body = BinaryProtocol.read(in);
+            lastUsed = System.currentTimeMillis();
+            if (body == null) {
+                throw new IOException("Connection closed by " + host + ":" + port);
+            }
+            try {
+                return BinaryProtocol.decodeResponse(body);
+            } catch (JSONRPC2ParseException e) {
+                throw new JSONRPC2SessionException("Invalid binary response", JSONRPC2SessionException.BAD_RESPONSE, e);
+            }
+        }
+        HttpFrame reply = HttpFrame.read(in);
+        lastUsed = System.currentTimeMillis();
+        if (reply == null) {
+            throw new IOException("Connection closed by " + host + ":" + port);
+        }
+        if (!reply.isKeepAlive()) {
+            close();
+        }
+        try {
+            return JsonCodec.parseResponse(reply.getBody());
+        } catch (JSONRPC2ParseException e) {
+            throw new JSONRPC2SessionException("Invalid JSON-RPC 2.0 response", JSONRPC2SessionException.BAD_RESPONSE, e);
+        }
+    }
+
+    private void connect() throws IOException {
+        Socket newSocket = new Socket();
+        try {
+            newSocket.setTcpNoDelay(true);
+            newSocket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+            newSocket.setSoTimeout(readTimeoutMs);
+        } catch (IOException e) {
+            newSocket.close();
+            throw e;
+        }
+        socket = newSocket;
+        in = new BufferedInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+        if (binary) {
+            try {
+                out.write(BinaryProtocol.hello(BinaryProtocol.VERSION));
+                out.flush();
+                if (BinaryProtocol.readHello(in) < 1) {
+                    throw new IOException(host + ":" + port + " doesn't speak a version of the binary protocol we do");
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+            socket = null;
+            in = null;
+            out = null;
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return socket != null && !socket.isClosed();
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+}
@@ -6,23 +6,16 @@
 package edu.rit.cs;
 
 
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.reflect.TypeToken;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
-import com.thetransactioncompany.jsonrpc2.client.JSONRPC2Session;
 import com.thetransactioncompany.jsonrpc2.client.JSONRPC2SessionException;
 import com.thetransactioncompany.jsonrpc2.server.Dispatcher;
 import com.thetransactioncompany.jsonrpc2.server.MessageContext;
 import com.thetransactioncompany.jsonrpc2.server.RequestHandler;
 
 import java.io.*;
-import java.lang.reflect.Type;
 import java.net.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -33,14 +26,14 @@ import java.util.*;
  */
 class SubscriberAgentHandler {
 
-    // Implements a handler for an "receiveTopic"/"receiveEvent" JSON-RPC methods.
+    // Implements a handler for an "receiveTopic"/"receiveEvent"/"receiveEvents" JSON-RPC methods.
     public static class ReceiveTopicsAndEventsHandler implements RequestHandler {
 
 
         // Reports the method names of the handled requests
         public String[] handledRequests() {
 
-            return new String[]{"receiveTopic", "receiveEvent"};
+            return new String[]{"receiveTopic", "receiveEvent", "receiveEvents"};
         }
 
 
@@ -51,8 +44,7 @@ class SubscriberAgentHandler {
 
                 // Obtain topic object from myParams from the request sent by EM.
                 Map<String, Object> myParams = req.getNamedParams();
-                Gson gson = new Gson();
-                Topic topic = gson.fromJson(myParams.get("topic").toString(), Topic.class);
+                Topic topic = JsonCodec.topic(myParams.get("topic"));
                 String topicName = topic.getName();
 
                 System.out.println("New Topic Received: " + topicName);
@@ -63,14 +55,30 @@ class SubscriberAgentHandler {
 
                 // Obtain event object from myParams from the request sent by EM.
                 Map<String, Object> myParams = req.getNamedParams();
-                Gson gson = new Gson();
-                Event event = gson.fromJson(myParams.get("event").toString(), Event.class);
+                Event event = JsonCodec.event(myParams.get("event"));
                 String eventName = event.getTitle();
 
                 System.out.println("New Event Received: " + eventName);
 
                 return new JSONRPC2Response(eventName, req.getID());
 
+            } else if (req.getMethod().equals("receiveEvents")) {
+
+                // Obtain the list of events the EM batched together for this subscriber. The batch is acked as a
+                // unit: if any event can't be read none of them is taken and the EM sends the whole batch again.
+                Map<String, Object> myParams = req.getNamedParams();
+                List<Event> events;
+                try {
+                    events = JsonCodec.events(myParams.get("events"));
+                } catch (RuntimeException e) {
+                    return new JSONRPC2Response(JSONRPC2Error.INVALID_PARAMS, req.getID());
+                }
+                for (Event event : events) {
+                    System.out.println("New Event Received: " + event.getTitle());
+                }
+
+                return new JSONRPC2Response(events.size() + " events received", req.getID());
+
             } else {
                 return new JSONRPC2Response(JSONRPC2Error.METHOD_NOT_FOUND, req.getID());
             }
@@ -95,27 +103,15 @@ class SubscriberAgentHandler {
 
                 // Obtain a list of Objects/Events from myParams which are obtained from request received from the EM.
                 Map<String, Object> myParams = req.getNamedParams();
-                Gson gson = new Gson();
-                Type listType = new TypeToken<ArrayList<Object>>() {
-                }.getType();
-                List<Object> pendingNotificationsList = gson.fromJson(myParams.get("pendingNotifications").toString(), listType);
+                List<?> pendingNotificationsList = (List<?>) myParams.get("pendingNotifications");
 
                 // Iterate through the list and print notifications.
                 for (Object o : pendingNotificationsList) {
-                    String topicOrEvent = o.toString();
-                    boolean isTopic = false;
-                    JsonParser parser = new JsonParser();
-                    JsonElement element = parser.parse(topicOrEvent);
-                    JsonObject obj = element.getAsJsonObject(); //since you know it's a JsonObject
-                    Set<Map.Entry<String, JsonElement>> entries = obj.entrySet();//will return members of your object
-                    if (entries.size() == 3) {
-                        isTopic = true;
-                    }
-                    if (isTopic) {
-                        Topic pendingTopic = gson.fromJson(o.toString(), Topic.class);
+                    if (JsonCodec.isTopic(o)) {
+                        Topic pendingTopic = JsonCodec.topic(o);
                         System.out.println("New topic Received : " + pendingTopic.getName());
                     } else {
-                        Event pendingEvent = gson.fromJson(o.toString(), Event.class);
+                        Event pendingEvent = JsonCodec.event(o);
                         System.out.println("New Event Received : " + pendingEvent.getTitle());
                     }
                 }
@@ -128,84 +124,65 @@ class SubscriberAgentHandler {
 }
 
 /*
- * SHandler is new thread spawned for every request from the EM. It maintains a "registry" of all the Handlers and
+ * SHandler is the handler run on the HandlerExecutor for every request from the EM. It maintains a "registry" of all the Handlers and
  * calls them appropriately.
  */
-class SHandler extends Thread {
+class SHandler implements Runnable {
     private String name;
     private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private InputStream in;
+    private OutputStream out;
     private Dispatcher dispatcher;
+    private HandlerExecutor handlerExecutor;
 
     /**
-     * Constructs a handler thread, squirreling away the socket.
+     * Constructs a handler thread, squirreling away the socket and the executor it runs on.
      * All the interesting work is done in the run method.
      */
-    public SHandler(Socket socket) {
+    public SHandler(Socket socket, HandlerExecutor handlerExecutor) {
         this.socket = socket;
+        this.handlerExecutor = handlerExecutor;
+        this.dispatcher = createDispatcher();
+    }
 
-        // Create a new JSON-RPC 2.0 request dispatcher
-        this.dispatcher = new Dispatcher();
+    // Creates a new JSON-RPC 2.0 request dispatcher for the requests the EM pushes, over the listener or the push channel.
+    static Dispatcher createDispatcher() {
+        Dispatcher dispatcher = new Dispatcher();
 
         // Register the "receiveTopic" "receiveEvent", and "receivePendingNotifications" handlers with it
         dispatcher.register(new SubscriberAgentHandler.ReceiveTopicsAndEventsHandler());
         dispatcher.register(new SubscriberAgentHandler.ReceivePendingNotificationsHandler());
-
+        return dispatcher;
     }
 
     /**
-     * Services this thread's client by repeatedly requesting a
-     * screen name until a unique one has been submitted, then
-     * acknowledges the name and registers the output stream for
-     * the client in a global set, then repeatedly gets inputs and
-     * broadcasts them.
+     * Serves the requests the EM sends over this connection. The EM keeps its connections open between pushes,
+     * so requests are answered one after the other until the EM closes the connection, asks us to close it, or
+     * leaves it idle for longer than the keep-alive timeout, or than a moment once other connections wait for a
+     * handler.
      */
     public void run() {
         try {
-            // Create character streams for the socket.
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            // read request
-            String line;
-            line = in.readLine();
-            //System.out.println(line);
-            StringBuilder raw = new StringBuilder();
-            raw.append("" + line);
-            boolean isPost = line.startsWith("POST");
-            int contentLength = 0;
-            while (!(line = in.readLine()).equals("")) {
-                //System.out.println(line);
-                raw.append('\n' + line);
-                if (isPost) {
-                    final String contentHeader = "Content-Length: ";
-                    if (line.startsWith(contentHeader)) {
-                        contentLength = Integer.parseInt(line.substring(contentHeader.length()));
-                    }
+            int keepAliveTimeoutMs = PubSubConfig.getInt(PubSubConfig.KEEP_ALIVE_TIMEOUT_MS, 60000);
+            socket.setSoTimeout(keepAliveTimeoutMs);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+
+            HttpFrame frame;
+            while (handlerExecutor.awaitRequest(socket, in, keepAliveTimeoutMs) && (frame = HttpFrame.read(in)) != null) {
+                JSONRPC2Request request = JsonCodec.parseRequest(frame.getBody());
+                JSONRPC2Response resp = dispatcher.process(request, null);
+
+                // send response
+                boolean keepAlive = frame.isKeepAlive();
+                out.write(HttpFrame.response(resp, keepAlive));
+                out.flush();
+                if (!keepAlive) {
+                    break;
                 }
             }
-            StringBuilder body = new StringBuilder();
-            if (isPost) {
-                int c = 0;
-                for (int i = 0; i < contentLength; i++) {
-                    c = in.read();
-                    body.append((char) c);
-                }
-            }
-
-            JSONRPC2Request request = JSONRPC2Request.parse(body.toString());
-            JSONRPC2Response resp = dispatcher.process(request, null);
-
-
-            // send response
-            out.write("HTTP/1.1 200 OK\r\n");
-            out.write("Content-Type: application/json\r\n");
-            out.write("\r\n");
-            out.write(resp.toJSONString());
-            out.flush();
-            out.close();
-            socket.close();
+        } catch (SocketTimeoutException e) {
+            // the connection sat idle past the keep-alive timeout, just close it.
         } catch (IOException e) {
             System.out.println(e);
         } catch (JSONRPC2ParseException e) {
@@ -225,20 +202,21 @@ class SHandler extends Thread {
  */
 public class SubscriberAgent implements Subscriber {
 
-    public static JSONRPC2Session mySession = null;
+    public static ClusterSession mySession = null;
     public static int requestID = 0;
-
-    // creates a session object by connecting to EM and assigns it to a static variable.
+    private static HandlerExecutor handlerExecutor = HandlerExecutor.fromConfig("subscriber-handler", "thread");
+    // in pull mode events are fetched from the EM by pullConsumer instead of being pushed to the listener.
+    private final boolean pullMode = PubSubConfig.getString(PubSubConfig.SUBSCRIBER_MODE, "push").equals("pull");
+    private PullConsumer pullConsumer = null;
+    // "channel" gets pushes over a connection this subscriber opens to the EM, "listener" on port 6969.
+    private static final boolean pushChannelMode = !PubSubConfig.getString(PubSubConfig.CLIENT_PUSH_MODE, "channel").equals("listener");
+    // one push channel to every EventManager of the cluster.
+    private final List<PushChannelClient> pushChannels = new ArrayList<>();
+
+    // creates a session with the EM, or with every EM of its cluster, and assigns it to a static variable. Every
+    // request to the EM reuses the session's persistent connections.
     public void createEMConnection(String eventManagerHostname, int eventManagerPort) {
-        URL serverURL = null;
-
-        try {
-            serverURL = new URL("http://" + eventManagerHostname + ":" + eventManagerPort);
-        } catch (MalformedURLException e) {
-            System.out.println("EM not up.");
-        }
-
-        mySession = new JSONRPC2Session(serverURL);
+        mySession = ClusterSession.connect(eventManagerHostname, eventManagerPort, 0, 0);
     }
 
     //Takes login request from the user and sends it to EM and mark the subscriber as logged in.
@@ -251,6 +229,7 @@ public class SubscriberAgent implements Subscriber {
         Map<String, Object> myParams = new HashMap<>();
         myParams.put("subscriberID", subscriberID);
         myParams.put("ipAddress", ipAddress);
+        myParams.put("mode", pullMode ? "pull" : "push");
         request.setNamedParams(myParams);
 
         // Send login request to EM and populate response.
@@ -267,11 +246,108 @@ public class SubscriberAgent implements Subscriber {
             System.out.println();
             System.out.println(" ----------" + response.getResult().toString() + " -----------");
             System.out.println();
+            if (pushChannelMode) {
+                for (String node : mySession.getNodes()) {
+                    openPushChannel(subscriberID, node);
+                }
+            }
+            // EventManagers joining the cluster from now on get a login of their own.
+            JSONRPC2Request loginRequest = request;
+            mySession.setNodeListener(node -> loginToNode(loginRequest, subscriberID, node));
+            if (pullMode) {
+                startPulling(subscriberID);
+            }
         }
         else
             System.out.println("Couldn't login " + subscriberID);
     }
 
+    // starts fetching the events of all the topics subscribed to so far, from where this subscriber left off.
+    private void startPulling(String subscriberID) {
+        pullConsumer = PullConsumer.fromConfig(subscriberID, mySession);
+        List<String> topicNames = getSubscriptions(subscriberID);
+        if (topicNames == null) {
+            // the EM didn't answer, go by the topics this machine subscribed to.
+            try {
+                topicNames = Files.readAllLines(Paths.get("/home/rishabh/topicsSubscribedTo.txt"));
+            } catch (IOException e) {
+                // nothing subscribed yet.
+                topicNames = new ArrayList<>();
+            }
+        }
+        for (String topicName : topicNames) {
+            if (!topicName.trim().isEmpty() && !SubscriptionTrie.isPattern(topicName.trim())) {
+                pullConsumer.start(topicName.trim());
+            }
+        }
+    }
+
+    //getSubscriptions is used to get the topic names and patterns the EM has this subscriber subscribed to.
+    public List<String> getSubscriptions(String subscriberID) {
+        String method = "getSubscriptions";
+        requestID += 1;
+        JSONRPC2Request request = new JSONRPC2Request(method, requestID);
+
+        Map<String, Object> myParams = new HashMap<>();
+        myParams.put("subscriberID", subscriberID);
+        request.setNamedParams(myParams);
+
+        try {
+            JSONRPC2Response response = mySession.send(request);
+            if (response.indicatesSuccess()) {
+                List<String> subscriptions = new ArrayList<>();
+                for (Object topicName : (List<?>) response.getResult()) {
+                    subscriptions.add(topicName.toString());
+                }
+                return subscriptions;
+            }
+            System.out.println(response.getError().getMessage());
+        } catch (JSONRPC2SessionException e) {
+            System.err.println(e.getMessage());
+        }
+        return null;
+    }
+
+    /*
+     * logs in on an EventManager that joined the cluster after this subscriber logged in, so that node can push to it
+     * too, and picks up what it has pending there.
+     */
+    private void loginToNode(JSONRPC2Request loginRequest, String subscriberID, String node) {
+        try {
+            JSONRPC2Response response = mySession.sendTo(node, loginRequest);
+            if (!response.indicatesSuccess()) {
+                System.out.println("Couldn't login " + subscriberID + " on " + node);
+                return;
+            }
+            if (pushChannelMode) {
+                openPushChannel(subscriberID, node);
+            }
+            Map<String, Object> myParams = new HashMap<>();
+            myParams.put("machineID", subscriberID);
+            mySession.sendTo(node, new JSONRPC2Request("checkForPendingNotifications", myParams, loginRequest.getID()));
+        } catch (JSONRPC2SessionException e) {
+            System.out.println("Couldn't login " + subscriberID + " on " + node + ": " + e.getMessage());
+        }
+    }
+
+    private void openPushChannel(String subscriberID, String node) {
+        PushChannelClient channel = PushChannelClient.fromConfig(subscriberID, Cluster.hostOf(node), Cluster.portOf(node),
+                SHandler.createDispatcher());
+        channel.open();
+        synchronized (pushChannels) {
+            pushChannels.add(channel);
+        }
+    }
+
+    private void closePushChannels() {
+        synchronized (pushChannels) {
+            for (PushChannelClient channel : pushChannels) {
+                channel.close();
+            }
+            pushChannels.clear();
+        }
+    }
+
     //checkForPendingNotifications is called right after logging to check if the user has any pending notifications.
     public void checkForPendingNotifications(String subscriberID) throws UnknownHostException {
         String method = "checkForPendingNotifications";
@@ -324,6 +400,11 @@ public class SubscriberAgent implements Subscriber {
             System.out.println();
             System.out.println(" ----------" + response.getResult().toString() + " -----------");
             System.out.println();
+            if (pullConsumer != null) {
+                pullConsumer.stopAll();
+            }
+            mySession.setNodeListener(node -> {});
+            closePushChannels();
         }
         else
             System.out.println("Couldn't logoff " + subscriberID);
@@ -350,8 +431,7 @@ public class SubscriberAgent implements Subscriber {
 
         // Print response result / error
         if (response != null && response.indicatesSuccess()) {
-            Gson gson = new Gson();
-            return gson.fromJson(response.getResult().toString(), Topic.class);
+            return JsonCodec.topic(response.getResult());
         } else
             System.out.println("Couldn't get Topic from topic name "+ topicName);
         return null;
@@ -378,10 +458,48 @@ public class SubscriberAgent implements Subscriber {
 
         // Print response result / error
         if (response.indicatesSuccess()) {
-            Gson gson = new Gson();
-            Type mapType = new TypeToken<HashMap<String, Topic>>() {
-            }.getType();
-            return gson.fromJson(response.getResult().toString(), mapType);
+            return JsonCodec.topicsByName(response.getResult());
+        } else
+            System.out.println(response.getError().getMessage());
+        return null;
+    }
+
+    //A page of searchTopics results: the topics matched on this page, how many matched in all, and where the next page starts (-1 if none).
+    static class TopicSearchResult {
+        LinkedHashMap<String, Topic> topics;
+        int total;
+        long nextOffset;
+    }
+
+    //searchTopics is used to find topics with all (matchAll) or any of the keywords, or with keywords starting with them (prefix), a page at a time.
+    public TopicSearchResult searchTopics(List<String> keywords, boolean matchAll, boolean prefix, int offset, int limit) {
+        String method = "searchTopics";
+        requestID += 1;
+        JSONRPC2Request request = new JSONRPC2Request(method, requestID);
+
+        Map<String, Object> myParams = new HashMap<>();
+        myParams.put("keywords", keywords);
+        myParams.put("mode", matchAll ? "and" : "or");
+        myParams.put("prefix", prefix);
+        myParams.put("offset", offset);
+        myParams.put("limit", limit);
+        request.setNamedParams(myParams);
+
+        JSONRPC2Response response;
+        try {
+            response = mySession.send(request);
+        } catch (JSONRPC2SessionException e) {
+            System.err.println(e.getMessage());
+            return null;
+        }
+
+        if (response.indicatesSuccess()) {
+            Map<?, ?> result = (Map<?, ?>) response.getResult();
+            TopicSearchResult page = new TopicSearchResult();
+            page.topics = JsonCodec.topicsByName(result.get("topics"));
+            page.total = ((Number) result.get("total")).intValue();
+            page.nextOffset = ((Number) result.get("nextOffset")).longValue();
+            return page;
         } else
             System.out.println(response.getError().getMessage());
         return null;
@@ -404,10 +522,7 @@ public class SubscriberAgent implements Subscriber {
 
         // Print response result / error
         if (response != null && response.indicatesSuccess()) {
-            Gson gson = new Gson();
-            Type mapType = new TypeToken<HashMap<String, Topic>>() {
-            }.getType();
-            return gson.fromJson(response.getResult().toString(), mapType);
+            return JsonCodec.topicsByName(response.getResult());
         } else
             System.out.println("Couldn't get all topics from event manager.");
         return null;
@@ -417,6 +532,11 @@ public class SubscriberAgent implements Subscriber {
     // subscribe to that topic.
     @Override
     public void subscribe(Topic topic, String subscriberID) {
+        subscribe(topic, subscriberID, null);
+    }
+
+    // subscribe to that topic, getting only the events the filter accepts (see EventFilter). A null filter gets every event.
+    public void subscribe(Topic topic, String subscriberID, String filter) {
         String method = "subscribeTopic";
         requestID += 1;
         JSONRPC2Request request = new JSONRPC2Request(method, requestID);
@@ -424,6 +544,9 @@ public class SubscriberAgent implements Subscriber {
         Map<String, Object> myParams = new HashMap<>();
         myParams.put("subscriberID", subscriberID);
         myParams.put("topic", topic);
+        if (filter != null && !filter.trim().isEmpty()) {
+            myParams.put("filter", filter);
+        }
         request.setNamedParams(myParams);
 
         // Send request to EM and populate response.
@@ -438,7 +561,18 @@ public class SubscriberAgent implements Subscriber {
         // Print response result / error
         if (response != null && response.indicatesSuccess()) {
             System.out.println(subscriberID + " successfully subscribed to " + topic.getName());
-            //write subscribed topicname to a file.
+            if (pullConsumer != null) {
+                pullConsumer.start(topic.getName());
+            }
+            //write subscribed topicname to a file, once.
+            try {
+                if (Files.exists(Paths.get("/home/rishabh/topicsSubscribedTo.txt"))
+                        && Files.readAllLines(Paths.get("/home/rishabh/topicsSubscribedTo.txt")).contains(topic.getName())) {
+                    return;
+                }
+            } catch (IOException i) {
+                i.printStackTrace();
+            }
             try (FileWriter f = new FileWriter("/home/rishabh/topicsSubscribedTo.txt", true);
                  BufferedWriter b = new BufferedWriter(f);
                  PrintWriter p = new PrintWriter(b);) {
@@ -447,7 +581,9 @@ public class SubscriberAgent implements Subscriber {
             } catch (IOException i) {
                 i.printStackTrace();
             }
-        } else
+        } else if (response != null)
+            System.out.println(subscriberID + "couldn't be subscribed to " + topic.getName() + ": " + response.getError().getMessage());
+        else
             System.out.println(subscriberID + "couldn't be subscribed to " + topic.getName());
     }
 
@@ -475,6 +611,9 @@ public class SubscriberAgent implements Subscriber {
 
         // Print response result / error
         if (response != null && response.indicatesSuccess()) {
+            if (pullConsumer != null) {
+                pullConsumer.stop(topic.getName());
+            }
             //remove unsubscribed topic from file.
             File inputFile = new File("/home/rishabh/topicsSubscribedTo.txt");
             File tempFile = new File("/home/rishabh/myTempFile.txt");
@@ -522,6 +661,9 @@ public class SubscriberAgent implements Subscriber {
 
         // Print response result / error
         if (response != null && response.indicatesSuccess()) {
+            if (pullConsumer != null) {
+                pullConsumer.stopAll();
+            }
             //empty the topicsSubscribedTo file, because we're unsubscribing from all topics.
             PrintWriter pw = new PrintWriter("/home/rishabh/topicsSubscribedTo.txt");
             pw.close();
@@ -553,7 +695,11 @@ public class SubscriberAgent implements Subscriber {
         ServerSocket listener = new ServerSocket(6969);
         try {
             while (true) {
-                new SHandler(listener.accept()).start();
+                Socket socket = listener.accept();
+                if (!handlerExecutor.execute(new SHandler(socket, handlerExecutor))) {
+                    System.out.println("Too many notifications in flight, closing connection from " + socket.getInetAddress());
+                    socket.close();
+                }
             }
         } finally {
             listener.close();
@@ -564,13 +710,15 @@ public class SubscriberAgent implements Subscriber {
     //Also create background thread to handle requests from EventManager.
     public static void main(String[] args) throws IOException {
         SubscriberAgent aSubscriber = new SubscriberAgent();
-        new Thread(() -> {
-            try {
-                aSubscriber.listenToNewTopicAdvertisement(); //do we want one or multiple instances running?
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }).start();
+        if (!pushChannelMode) {
+            new Thread(() -> {
+                try {
+                    aSubscriber.listenToNewTopicAdvertisement(); //do we want one or multiple instances running?
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }).start();
+        }
 
         Scanner sc = new Scanner(System.in);
         requestID = new Random().nextInt(5000);
@@ -605,25 +753,43 @@ public class SubscriberAgent implements Subscriber {
                     System.out.println("Incorrect option. Please choose 1 -> by topic name 2 -> by keyword2 -> list all");
                 }
                 if (userChoice.equals("1")) {
-                    System.out.println("Please enter Topic name you want to subscribe to");
+                    System.out.println("Please enter Topic name you want to subscribe to. Use * for any one level and # for any levels, e.g. markets.equities.* or markets.#");
                     String topicRequestedToSubscribe = sc.nextLine();
                     while (topicRequestedToSubscribe.isEmpty()) {
                         System.out.println("Topic name cannot be empty. Please enter again.");
                         topicRequestedToSubscribe = sc.nextLine();
                     }
-                    if (aSubscriber.getTopicFromTopicName(topicRequestedToSubscribe) != null) {
+                    System.out.println("Please enter a filter for the events you want, e.g. title contains 'IBM' and content != '', or press enter for all events");
+                    String filter = sc.nextLine();
+                    if (SubscriptionTrie.isPattern(topicRequestedToSubscribe)) {
+                        //a wildcard subscription, e.g. markets.equities.* or markets.#, also gets topics advertised later.
+                        aSubscriber.subscribe(new Topic(new ArrayList<>(), topicRequestedToSubscribe), subscriberID, filter);
+                    } else if (aSubscriber.getTopicFromTopicName(topicRequestedToSubscribe) != null) {
                         Topic topicToSubscribeTo = aSubscriber.getTopicFromTopicName(topicRequestedToSubscribe);
-                        aSubscriber.subscribe(topicToSubscribeTo, subscriberID);
+                        aSubscriber.subscribe(topicToSubscribeTo, subscriberID, filter);
                     } else {
                         System.out.println("No such Topic exists. Please try again.");
                     }
                 } else if (userChoice.equals("2")) {
-                    System.out.println("Please enter the keyword to search for topics");
-                    String keywordToSearch = sc.nextLine();
-                    HashMap<String, Topic> topicsMap = aSubscriber.getTopicsFromKeyword(keywordToSearch);
+                    System.out.println("Please enter the keywords to search for topics, separated by commas. End a keyword with * to match keywords starting with it");
+                    String keywordsToSearch = sc.nextLine();
+                    List<String> keywords = new ArrayList<>();
+                    boolean prefix = false;
+                    for (String keyword : keywordsToSearch.split(",")) {
+                        if (keyword.trim().endsWith("*")) {
+                            prefix = true;
+                            keyword = keyword.trim().substring(0, keyword.trim().length() - 1);
+                        }
+                        keywords.add(keyword);
+                    }
+                    TopicSearchResult found = aSubscriber.searchTopics(keywords, true, prefix, 0, 100);
+                    HashMap<String, Topic> topicsMap = found == null ? new HashMap<>() : new HashMap<>(found.topics);
                     if (topicsMap.size() != 0) {
-                        System.out.println("Here's a list of topicNames with that keyword.");
-                        System.out.println(topicsMap.keySet());
+                        System.out.println("Here's a list of topicNames with those keywords.");
+                        System.out.println(found.topics.keySet());
+                        if (found.total > found.topics.size()) {
+                            System.out.println("(" + (found.total - found.topics.size()) + " more, add keywords to narrow the search)");
+                        }
                         System.out.println("Please enter a topic name from this list.");
                         String topicName = sc.nextLine();
                         while (topicName.isEmpty()) {
@@ -637,7 +803,7 @@ public class SubscriberAgent implements Subscriber {
                             System.out.println("No such topic exists. Please try again.");
                         }
                     } else {
-                        System.out.println("No topics with that keyword.");
+                        System.out.println("No topics with those keywords.");
                     }
                 } else {
                     HashMap<String, Topic> allTopics = aSubscriber.getAllTopics();
@@ -671,7 +837,9 @@ public class SubscriberAgent implements Subscriber {
                 if (userChoice.equals("1")) {
                     System.out.println("Please enter Topic name you want to unsubscribe from");
                     String topicRequestedToUnsubscribe = sc.nextLine();
-                    if (aSubscriber.getTopicFromTopicName(topicRequestedToUnsubscribe) != null) {
+                    if (SubscriptionTrie.isPattern(topicRequestedToUnsubscribe)) {
+                        aSubscriber.unsubscribe(new Topic(new ArrayList<>(), topicRequestedToUnsubscribe), subscriberID);
+                    } else if (aSubscriber.getTopicFromTopicName(topicRequestedToUnsubscribe) != null) {
                         Topic topicToSubscribeTo = aSubscriber.getTopicFromTopicName(topicRequestedToUnsubscribe);
                         aSubscriber.unsubscribe(topicToSubscribeTo, subscriberID);
                     } else {
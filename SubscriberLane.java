@@ -0,0 +1,272 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * SubscriberLane is the delivery lane of one subscriber. Deliveries to that subscriber wait in the lane's own bounded
+ * queue and are sent one after the other by at most one delivery thread at a time, so a slow or dead subscriber only
+ * ever holds up its own lane and never the other subscribers of a topic. A failed QoS 1/2 delivery is handed to the
+ * RetryScheduler and rejoins the lane after its backoff, so the lane keeps delivering in the meantime. Every lane has
+ * a CircuitBreaker: once it opens, new events go straight to pending notifications without a network attempt, and the
+ * lane probes the subscriber in the background until it is reachable again.
+ *
+ * Events waiting in a lane are coalesced into one receiveEvents request of at most maxBatch events. The lane waits a
+ * little for more events before sending a small batch, and that window adapts to the subscriber's event rate: it
+ * doubles (up to maxBatchDelayMs) while batches fill up and halves while they stay small, so a busy subscriber gets
+ * full batches and a quiet one gets its events without delay.
+ */
+package edu.rit.cs;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+import com.thetransactioncompany.jsonrpc2.client.JSONRPC2SessionException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class SubscriberLane {
+
+    // One request waiting in a lane, and the future its sender is waiting on.
+    static class Delivery {
+        private final EncodedRequest request;
+        // the encoded events in the request, for coalescing it with others.
+        private final List<JsonCodec.Raw> events;
+        private final List<?> notifications;
+        private final String qos;
+        private final long retrails;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private final long queuedAt = System.nanoTime();
+        private int attempts = 0;
+
+        Delivery(EncodedRequest request, List<JsonCodec.Raw> events, List<?> notifications, String qos, long retrails) {
+            this.request = request;
+            this.events = events;
+            this.notifications = notifications;
+            this.qos = qos;
+            this.retrails = retrails;
+        }
+
+        public CompletableFuture<Boolean> getResult() {
+            return result;
+        }
+    }
+
+    private final String clientID;
+    private final BlockingQueue<Delivery> queue;
+    private final CircuitBreaker breaker;
+    private final Executor executor;
+    // runs the tasks the prober schedules on a delivery thread, never on the prober's own.
+    private final Executor handoff;
+    private final RetryScheduler retries;
+    private final ScheduledExecutorService prober;
+    private final long probeIntervalMs;
+    private final int maxBatch;
+    private final long maxBatchDelayMs;
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private volatile String ipAddress;
+    // how long a small batch waits for more events. Only the draining thread touches it.
+    private long batchWindowMs = 0;
+
+    public SubscriberLane(String clientID, int queueSize, int failureThreshold, Executor executor, Executor handoff,
+                          RetryScheduler retries, ScheduledExecutorService prober, long probeIntervalMs,
+                          int maxBatch, long maxBatchDelayMs) {
+        this.clientID = clientID;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.breaker = new CircuitBreaker(failureThreshold);
+        this.executor = executor;
+        this.handoff = handoff;
+        this.retries = retries;
+        this.prober = prober;
+        this.probeIntervalMs = probeIntervalMs;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxBatchDelayMs = Math.max(0, maxBatchDelayMs);
+    }
+
+    /*
+     * Queues a delivery to this subscriber at the given address. If the breaker is open or the lane is full the
+     * notification is parked in pending notifications right away.
+     */
+    public void offer(Delivery delivery, String ipAddress) {
+        this.ipAddress = ipAddress;
+        if (!breaker.allowsDelivery()) {
+            park(delivery, "circuit is open");
+            return;
+        }
+        if (!queue.offer(delivery)) {
+            park(delivery, "delivery lane is full");
+            return;
+        }
+        scheduleDrain();
+    }
+
+    // the client logged in again, so whatever made the breaker open is probably gone.
+    public void reset(String ipAddress) {
+        this.ipAddress = ipAddress;
+        breaker.recordSuccess();
+    }
+
+    public CircuitBreaker.State getState() {
+        return breaker.getState();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        boolean waiting = false;
+        try {
+            while (!queue.isEmpty()) {
+                if (waitForMore()) {
+                    waiting = true;
+                    return;
+                }
+                List<Delivery> batch = new ArrayList<>();
+                queue.drainTo(batch, maxBatch);
+                if (!breaker.allowsDelivery()) {
+                    for (Delivery delivery : batch) {
+                        park(delivery, "circuit is open");
+                    }
+                } else if (send(batch)) {
+                    breaker.recordSuccess();
+                    System.out.println(batch.size() == 1 ? "Event successfully sent to " + clientID
+                            : batch.size() + " events successfully sent to " + clientID);
+                    for (Delivery delivery : batch) {
+                        delivery.result.complete(true);
+                    }
+                } else {
+                    if (breaker.recordFailure()) {
+                        System.out.println("Opened circuit for " + clientID + ", probing it every " + probeIntervalMs + "ms.");
+                        scheduleProbe();
+                    }
+                    // every delivery of the batch is retried on its own terms.
+                    for (Delivery delivery : batch) {
+                        scheduleRetryOrPark(delivery);
+                    }
+                }
+                adaptBatchWindow(batch.size());
+            }
+        } finally {
+            if (!waiting) {
+                draining.set(false);
+                // a delivery may have been queued after the last poll but before draining was cleared.
+                if (!queue.isEmpty()) {
+                    scheduleDrain();
+                }
+            }
+        }
+    }
+
+    /*
+     * If the lane has less than a full batch and the oldest delivery hasn't waited the batch window yet, schedules
+     * the drain for the end of the window and returns true. The lane stays marked as draining in the meantime.
+     */
+    private boolean waitForMore() {
+        if (batchWindowMs == 0 || queue.size() >= maxBatch) {
+            return false;
+        }
+        Delivery oldest = queue.peek();
+        long waitedMs = oldest == null ? batchWindowMs : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.queuedAt);
+        if (waitedMs >= batchWindowMs) {
+            return false;
+        }
+        prober.schedule(() -> handoff.execute(this::drain), batchWindowMs - waitedMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private void adaptBatchWindow(int batchSize) {
+        if (batchSize >= maxBatch && maxBatch > 1) {
+            batchWindowMs = Math.min(maxBatchDelayMs, Math.max(1, batchWindowMs * 2));
+        } else if (batchSize <= maxBatch / 4) {
+            batchWindowMs = batchWindowMs / 2;
+        }
+    }
+
+    private boolean send(List<Delivery> batch) {
+        EncodedRequest request = batch.size() == 1 ? batch.get(0).request : coalesce(batch);
+        try {
+            JSONRPC2Response response = EventManager.ClientConnections.send(clientID, ipAddress, request);
+            return response.indicatesSuccess();
+        } catch (JSONRPC2SessionException e) {
+            return false;
+        }
+    }
+
+    /*
+     * merges the events of several receiveEvent/receiveEvents requests into one receiveEvents request, in the order
+     * they were queued. The events are copied in as they were encoded when they were published.
+     */
+    private static EncodedRequest coalesce(List<Delivery> batch) {
+        List<JsonCodec.Raw> events = new ArrayList<>();
+        for (Delivery delivery : batch) {
+            events.addAll(delivery.events);
+        }
+        Map<String, Object> eventParams = new HashMap<>();
+        eventParams.put("events", events);
+        return EncodedRequest.of("receiveEvents", eventParams);
+    }
+
+    /*
+     * Puts a failed delivery on the retry wheel if its QoS asks for retries and it has retrails left, otherwise it
+     * goes to pending notifications. When the backoff is over the delivery rejoins the back of this lane.
+     */
+    private void scheduleRetryOrPark(Delivery delivery) {
+        delivery.attempts++;
+        boolean retrying = delivery.attempts <= delivery.retrails && breaker.allowsDelivery()
+                && retries.schedule(() -> retry(delivery), delivery.qos, delivery.attempts);
+        if (!retrying) {
+            park(delivery, "it couldn't be reached after " + delivery.attempts + " attempt(s)");
+        }
+    }
+
+    private void retry(Delivery delivery) {
+        if (!queue.offer(delivery)) {
+            park(delivery, "delivery lane is full");
+            return;
+        }
+        scheduleDrain();
+    }
+
+    private void park(Delivery delivery, String reason) {
+        for (Object notification : delivery.notifications) {
+            EventManager.addPendingNotification(clientID, notification);
+        }
+        System.out.println(delivery.notifications.size() == 1
+                ? "Event couldn't be sent to " + clientID + " because " + reason + ". Added to pending notifications."
+                : delivery.notifications.size() + " events couldn't be sent to " + clientID + " because " + reason
+                + ". Added to pending notifications.");
+        delivery.result.complete(false);
+    }
+
+    private void scheduleProbe() {
+        prober.schedule(() -> handoff.execute(this::probe), probeIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    // checks in the background whether the subscriber accepts connections again, and closes the breaker if it does.
+    private void probe() {
+        if (!breaker.tryHalfOpen()) {
+            return;
+        }
+        String address = ipAddress;
+        if (address == null || address.equals("0")) {
+            // logged off, the breaker is reset when it logs in again.
+            breaker.probeFailed();
+            return;
+        }
+        if (EventManager.ClientConnections.isReachable(clientID, address)) {
+            breaker.recordSuccess();
+            System.out.println(clientID + " is reachable again, closed its circuit.");
+        } else {
+            breaker.probeFailed();
+            scheduleProbe();
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * SubscriptionTrie holds which subscribers are subscribed to which topics. Topic names are hierarchical, with levels
+ * separated by dots ("markets.equities.nyse"), and a subscription can be a pattern over them: "*" matches exactly one
+ * level and "#" matches any number of levels, including none. So "markets.equities.*" gets the events of every topic
+ * one level below markets.equities, and "markets.#" those of markets and everything below it, including topics that
+ * are advertised after the subscription.
+ *
+ * Every subscription can have an EventFilter, so the subscriber only gets the events it accepts.
+ *
+ * Subscriptions are stored in a trie keyed by level, so finding the subscribers of a topic walks the topic's levels
+ * instead of testing every pattern. Each node keeps its subscribers as an IntBitmap of their interned IDs (see
+ * IdInterner), a few bits per subscription. The subscribers of recently published topics are cached until the next
+ * subscribe or unsubscribe.
+ */
+package edu.rit.cs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class SubscriptionTrie {
+
+    public static final String ONE_LEVEL = "*";
+    public static final String ANY_LEVELS = "#";
+
+    // The subscribers of a topic and the filters of those that have one. Shared with the cache, so not to be changed.
+    static class Match {
+        private final IntBitmap subscribers;
+        private final Map<Integer, EventFilter> filters;
+
+        Match(IntBitmap subscribers, Map<Integer, EventFilter> filters) {
+            this.subscribers = subscribers;
+            this.filters = filters;
+        }
+
+        // interned IDs of the subscribers.
+        public IntBitmap getSubscribers() {
+            return subscribers;
+        }
+
+        public EventFilter filterOf(int subscriber) {
+            return filters.getOrDefault(subscriber, EventFilter.ALL);
+        }
+    }
+
+    private static class Node {
+        final String pattern;
+        final Map<String, Node> children = new HashMap<>();
+        // subscribers whose pattern ends at this node, and the filters of those subscribed with one. Most aren't.
+        final IntBitmap subscribers = new IntBitmap();
+        final Map<Integer, EventFilter> filters = new HashMap<>(0);
+
+        Node(String pattern) {
+            this.pattern = pattern;
+        }
+
+        boolean isEmpty() {
+            return children.isEmpty() && subscribers.isEmpty();
+        }
+    }
+
+    private final IdInterner ids;
+    private final Node root = new Node("");
+    // every subscriber's subscriptions, for unsubscribing from all of them.
+    private final Map<Integer, Set<Node>> nodesBySubscriber = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Match> matchCache = new ConcurrentHashMap<>();
+    private final int matchCacheSize;
+
+    public SubscriptionTrie(IdInterner ids, int matchCacheSize) {
+        this.ids = ids;
+        this.matchCacheSize = matchCacheSize;
+    }
+
+    public static SubscriptionTrie fromConfig(IdInterner ids) {
+        return new SubscriptionTrie(ids, PubSubConfig.getInt(PubSubConfig.MATCH_CACHE_SIZE, 10000));
+    }
+
+    // true if the name has a wildcard level, i.e. it can only be subscribed to and not advertised.
+    public static boolean isPattern(String name) {
+        for (String level : name.split("\\.", -1)) {
+            if (level.equals(ONE_LEVEL) || level.equals(ANY_LEVELS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean subscribe(String pattern, String subscriberID) {
+        return subscribe(pattern, subscriberID, EventFilter.ALL);
+    }
+
+    /*
+     * Subscribes the subscriber to a topic name or pattern with a filter, replacing the filter if it was subscribed to
+     * it already. Returns false if it was subscribed with the same filter.
+     */
+    public boolean subscribe(String pattern, String subscriberID, EventFilter filter) {
+        int id = ids.intern(subscriberID);
+        lock.writeLock().lock();
+        try {
+            Node node = root;
+            for (String level : levels(pattern)) {
+                Node parent = node;
+                node = node.children.computeIfAbsent(level, k -> new Node(parent == root ? k : parent.pattern + "." + k));
+            }
+            boolean subscribed = node.subscribers.contains(id);
+            if (subscribed && node.filters.getOrDefault(id, EventFilter.ALL) == filter) {
+                return false;
+            }
+            node.subscribers.add(id);
+            if (filter == EventFilter.ALL) {
+                node.filters.remove(id);
+            } else {
+                node.filters.put(id, filter);
+            }
+            nodesBySubscriber.computeIfAbsent(id, k -> new HashSet<>()).add(node);
+            matchCache.clear();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * unsubscribes the subscriber from a topic name or pattern. Returns false if it wasn't subscribed to it.
+     */
+    public boolean unsubscribe(String pattern, String subscriberID) {
+        int id = ids.idOf(subscriberID);
+        if (id < 0) {
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            Set<Node> nodes = nodesBySubscriber.get(id);
+            if (nodes == null) {
+                return false;
+            }
+            Node node = find(pattern);
+            if (node == null || !nodes.remove(node)) {
+                return false;
+            }
+            if (nodes.isEmpty()) {
+                nodesBySubscriber.remove(id);
+            }
+            remove(root, levels(pattern), 0, id);
+            matchCache.clear();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * unsubscribes the subscriber from everything and returns the topic names and patterns it was subscribed to.
+     */
+    public List<String> unsubscribeAll(String subscriberID) {
+        int id = ids.idOf(subscriberID);
+        if (id < 0) {
+            return Collections.emptyList();
+        }
+        lock.writeLock().lock();
+        try {
+            Set<Node> nodes = nodesBySubscriber.remove(id);
+            if (nodes == null) {
+                return Collections.emptyList();
+            }
+            List<String> patterns = new ArrayList<>();
+            for (Node node : nodes) {
+                patterns.add(node.pattern);
+                remove(root, levels(node.pattern), 0, id);
+            }
+            matchCache.clear();
+            return patterns;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * returns the topic names and patterns the subscriber is subscribed to, sorted.
+     */
+    public List<String> subscriptionsOf(String subscriberID) {
+        int id = ids.idOf(subscriberID);
+        List<String> subscriptions = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Node node : nodesBySubscriber.getOrDefault(id, Collections.emptySet())) {
+                subscriptions.add(node.pattern);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Collections.sort(subscriptions);
+        return subscriptions;
+    }
+
+    /*
+     * returns the subscribers subscribed to exactly this topic name or pattern, with their filters.
+     */
+    public Map<String, EventFilter> subscribersOf(String pattern) {
+        Map<String, EventFilter> subscribers = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            Node node = find(pattern);
+            if (node != null) {
+                for (int id : node.subscribers.toArray()) {
+                    subscribers.put(ids.nameOf(id), node.filters.getOrDefault(id, EventFilter.ALL));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return subscribers;
+    }
+
+    /*
+     * returns every topic name and pattern somebody is subscribed to.
+     */
+    public Set<String> patterns() {
+        Set<String> patterns = new HashSet<>();
+        lock.readLock().lock();
+        try {
+            for (Set<Node> nodes : nodesBySubscriber.values()) {
+                for (Node node : nodes) {
+                    patterns.add(node.pattern);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return patterns;
+    }
+
+    /*
+     * Returns the subscribers of a topic, those subscribed to its name and those with a pattern matching it, with the
+     * filter of their events. A subscriber with several matching subscriptions gets the events any of their filters
+     * accepts.
+     */
+    public Match match(String topicName) {
+        Match cached = matchCache.get(topicName);
+        if (cached != null) {
+            return cached;
+        }
+        lock.readLock().lock();
+        try {
+            Set<Node> nodes = new LinkedHashSet<>();
+            collect(root, levels(topicName), 0, nodes);
+            IntBitmap subscribers = new IntBitmap();
+            Map<Integer, List<EventFilter>> filtered = new HashMap<>();
+            for (Node node : nodes) {
+                subscribers = subscribers.or(node.subscribers);
+                for (Map.Entry<Integer, EventFilter> entry : node.filters.entrySet()) {
+                    filtered.computeIfAbsent(entry.getKey(), k -> new ArrayList<>(1)).add(entry.getValue());
+                }
+            }
+            Map<Integer, EventFilter> filters = new HashMap<>();
+            for (Map.Entry<Integer, List<EventFilter>> entry : filtered.entrySet()) {
+                if (!hasUnfilteredSubscription(nodes, entry.getKey())) {
+                    filters.put(entry.getKey(), EventFilter.anyOf(entry.getValue()));
+                }
+            }
+            Match matched = new Match(subscribers, filters);
+            // subscribe/unsubscribe clear the cache under the write lock, so this can't cache a stale match.
+            if (matchCache.size() >= matchCacheSize) {
+                matchCache.clear();
+            }
+            matchCache.put(topicName, matched);
+            return matched;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // true if one of the subscriber's matching subscriptions takes every event.
+    private static boolean hasUnfilteredSubscription(Set<Node> nodes, int subscriber) {
+        for (Node node : nodes) {
+            if (node.subscribers.contains(subscriber) && !node.filters.containsKey(subscriber)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // adds every node below node whose pattern matches the levels from index on.
+    private static void collect(Node node, String[] levels, int index, Set<Node> nodes) {
+        Node anyLevels = node.children.get(ANY_LEVELS);
+        if (anyLevels != null) {
+            // "#" takes none or more of the remaining levels.
+            for (int next = index; next <= levels.length; next++) {
+                collect(anyLevels, levels, next, nodes);
+            }
+        }
+        if (index == levels.length) {
+            if (!node.subscribers.isEmpty()) {
+                nodes.add(node);
+            }
+            return;
+        }
+        Node exact = node.children.get(levels[index]);
+        if (exact != null) {
+            collect(exact, levels, index + 1, nodes);
+        }
+        Node oneLevel = node.children.get(ONE_LEVEL);
+        if (oneLevel != null) {
+            collect(oneLevel, levels, index + 1, nodes);
+        }
+    }
+
+    private Node find(String pattern) {
+        Node node = root;
+        for (String level : levels(pattern)) {
+            node = node.children.get(level);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    // removes the subscriber from the pattern's node and prunes the nodes left empty.
+    private static void remove(Node node, String[] levels, int index, int subscriber) {
+        if (index == levels.length) {
+            node.subscribers.remove(subscriber);
+            node.filters.remove(subscriber);
+            return;
+        }
+        Node child = node.children.get(levels[index]);
+        if (child == null) {
+            return;
+        }
+        remove(child, levels, index + 1, subscriber);
+        if (child.isEmpty()) {
+            node.children.remove(levels[index]);
+        }
+    }
+
+    private static String[] levels(String name) {
+        return name.split("\\.", -1);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * @author-name: Rishab Katta.
+ *
+ * TimingWheel is a hashed timing wheel: a ring of buckets that a single thread walks one bucket per tick. A task is
+ * dropped in the bucket its deadline falls in, with the number of full turns of the wheel it still has to wait.
+ * Scheduling and expiring a task are O(1), however many retries are waiting, and the tasks themselves run on the
+ * given executor so a slow task never delays the wheel. The wheel thread never runs a task itself: the executor
+ * should reject tasks it has no room for rather than run them on the caller, and a rejected task is expired again on
+ * the next tick.
+ */
+package edu.rit.cs;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+class TimingWheel {
+
+    // A scheduled task. Only the wheel thread touches remainingRounds.
+    private static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickNanos;
+    private final List<List<Timeout>> buckets;
+    private final int mask;
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final Executor executor;
+    private final long startTime;
+    private long tick = 0;
+
+    public TimingWheel(String name, long tickMs, int wheelSize, Executor executor) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        // round the wheel up to a power of two so the bucket of a tick is a mask instead of a modulo.
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        this.mask = size - 1;
+        this.executor = executor;
+        this.startTime = System.nanoTime();
+
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /*
+     * runs the task on the executor once the delay has passed, give or take one tick.
+     */
+    public void schedule(Runnable task, long delayMs) {
+        newTimeouts.add(new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs))));
+    }
+
+    private void run() {
+        while (true) {
+            long nextTick = startTime + (tick + 1) * tickNanos;
+            long sleepNanos = nextTick - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            transferNewTimeouts();
+            expire(buckets.get((int) (tick & mask)));
+            tick++;
+        }
+    }
+
+    // puts the timeouts scheduled since the last tick into the bucket their deadline falls in.
+    private void transferNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            long ticks = Math.max((timeout.deadline - startTime + tickNanos - 1) / tickNanos, tick);
+            timeout.remainingRounds = (ticks - tick) / buckets.size();
+            buckets.get((int) (ticks & mask)).add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        Iterator<Timeout> timeouts = bucket.iterator();
+        while (timeouts.hasNext()) {
+            Timeout timeout = timeouts.next();
+            if (timeout.remainingRounds <= 0) {
+                timeouts.remove();
+                try {
+                    executor.execute(timeout.task);
+                } catch (RejectedExecutionException e) {
+                    // no room on the executor right now, its deadline has passed so it goes in the next tick's bucket.
+                    newTimeouts.add(timeout);
+                } catch (RuntimeException e) {
+                    System.out.println("Couldn't run scheduled task: " + e);
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+}
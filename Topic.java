@@ -5,33 +5,27 @@
  */
 package edu.rit.cs;
 
+import net.minidev.json.JSONStreamAwareEx;
+import net.minidev.json.JSONStyle;
+
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.List;
 
-public class Topic implements Serializable {
+public class Topic implements Serializable, JSONStreamAwareEx {
 	private String id;
 	private List<String> keywords;
 	private String name;
-	private static int counter = 0;
 
 	public Topic(String id, List<String> keywords, String name) {
 		this.id = id;
 		this.keywords = keywords;
 		this.name = name;
-		incrementCounter();
 	}
 
+	// a topic with a new ID, unique over all publishers. See IdGenerator.
 	public Topic(List<String> keywords, String name) {
-		this.id = "t" + counter;
-		this.keywords = keywords;
-		this.name = name;
-		incrementCounter();
-	}
-	/*
-	 * incrementCounter function is used to generate a unique serial id.
-	 */
-	private void incrementCounter(){
-		counter += 1;
+		this(IdGenerator.nextId(), keywords, name);
 	}
 
 	public String getId() {
@@ -45,4 +39,15 @@ public class Topic implements Serializable {
 	public String getName() {
 		return name;
 	}
+
+	/*
+	 * writes the topic when it is put in a JSON-RPC message, see JsonCodec.
+	 */
+	public void writeJSONString(Appendable out) throws IOException {
+		JsonCodec.write(this, out);
+	}
+
+	public void writeJSONString(Appendable out, JSONStyle style) throws IOException {
+		JsonCodec.write(this, out);
+	}
 }